@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Accept loop of the blocking engines (threads and virtual mode); config.ini 'acceptors' sets how many run at once.
+ * With several acceptors each one has its own listening socket bound with SO_REUSEPORT where the OS supports it
+ * (Linux), so the kernel spreads new connections across them instead of queuing every one behind a single accept();
+ * elsewhere they all accept from one shared listening socket.
+ * In threads mode every acceptor hands its connections to its own worker group (a thread pool and its admission limit),
+ * so a connection is served by the threads of the acceptor that took it and the groups don't contend on one queue.
+ */
+class Acceptor extends Thread {
+    static final long ERROR_PAUSE = 100; // ms, so a persistent error (e.g. out of file descriptors) doesn't spin
+
+    private final ServerSocketChannel serverChannel;
+    private final ExecutorService executor;
+    private final AdmissionController admission; // threads mode only
+    private final Semaphore connectionPermits; // virtual mode only
+
+    Acceptor(int id, ServerSocketChannel serverChannel, ExecutorService executor,
+             AdmissionController admission, Semaphore connectionPermits) {
+        super("acceptor-" + id);
+        this.serverChannel = serverChannel;
+        this.executor = executor;
+        this.admission = admission;
+        this.connectionPermits = connectionPermits;
+    }
+
+    @Override
+    public void run() {
+        while (ThreadRunnable.serverRunning) {
+            try {
+                if (connectionPermits != null) {
+                    connectionPermits.acquire();
+                }
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = serverChannel.accept();
+                } catch (IOException e) {
+                    if (connectionPermits != null) {
+                        connectionPermits.release();
+                    }
+                    throw e;
+                }
+                dispatch(clientChannel);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    return;
+                }
+                System.err.println(getName() + " - " + e.getMessage());
+                try {
+                    Thread.sleep(ERROR_PAUSE);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void dispatch(SocketChannel clientChannel) throws IOException {
+        ClientLimiter.Client client = TCPServerMultithreaded.CLIENT_LIMITER.acquire(clientChannel.socket().getInetAddress());
+        if (client == null) {
+            TCPServerMultithreaded.CLIENT_LIMITER.reject(clientChannel);
+            releasePermit();
+            return;
+        }
+        if (admission != null && !admission.tryAcquire()) {
+            client.release();
+            admission.reject(clientChannel);
+            return;
+        }
+        long acceptedAt = System.nanoTime();
+        try {
+            configure(clientChannel);
+        } catch (IOException e) {
+            // the client reset the connection before it was served
+            client.release();
+            if (admission != null) {
+                admission.release();
+            }
+            releasePermit();
+            clientChannel.close();
+            return;
+        }
+        Socket clientSocket = clientChannel.socket();
+        TCPServerMultithreaded.METRICS.connectionOpened();
+        if (TCPServerMultithreaded.DEBUG_DUMP) {
+            System.out.println(
+                    clientSocket.getInetAddress().getHostAddress() + ':' + clientSocket.getPort()
+                            + " connected!");
+        }
+        Runnable worker = new ThreadRunnable(clientSocket, acceptedAt, admission, client);
+        if (connectionPermits != null) {
+            executor.execute(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    connectionPermits.release();
+                }
+            });
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            client.release();
+            admission.release();
+            TCPServerMultithreaded.METRICS.connectionClosed();
+            admission.reject(clientChannel);
+        }
+    }
+
+    private void releasePermit() {
+        if (connectionPermits != null) {
+            connectionPermits.release();
+        }
+    }
+
+    /**
+     * Opens the listening sockets for count acceptors, all bound to port: one per acceptor with SO_REUSEPORT
+     * when it is supported, otherwise the same socket repeated count times.
+     */
+    static ServerSocketChannel[] openListeners(int port, int count) throws IOException {
+        ServerSocketChannel[] listeners = new ServerSocketChannel[count];
+        boolean isReusePort = count > 1 && isReusePortSupported();
+        try {
+            for (int i = 0; i < count; i++) {
+                listeners[i] = i == 0 || isReusePort ? openListener(port, isReusePort) : listeners[0];
+            }
+        } catch (IOException e) {
+            close(listeners);
+            throw e;
+        }
+        if (count > 1 && !isReusePort) {
+            System.out.println("SO_REUSEPORT is not supported, " + count + " acceptors share one listening socket");
+        }
+        return listeners;
+    }
+
+    private static ServerSocketChannel openListener(int port, boolean isReusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            if (isReusePort) {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            if (TCPServerMultithreaded.RECEIVE_BUFFER_SIZE > 0) {
+                // set before bind so accepted sockets inherit it and a window above 64KB can be negotiated
+                serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, TCPServerMultithreaded.RECEIVE_BUFFER_SIZE);
+            }
+            serverChannel.bind(new InetSocketAddress(port), TCPServerMultithreaded.ACCEPT_BACKLOG);
+            return serverChannel;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    private static boolean isReusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies the socket options from config.ini to an accepted connection.
+     */
+    static void configure(SocketChannel clientChannel) throws IOException {
+        // headers and body are written separately, don't let Nagle delay the tail
+        clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, TCPServerMultithreaded.TCP_NO_DELAY);
+        if (TCPServerMultithreaded.SEND_BUFFER_SIZE > 0) {
+            clientChannel.setOption(StandardSocketOptions.SO_SNDBUF, TCPServerMultithreaded.SEND_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Answers a connection refused at accept time with a complete pre-encoded response and closes it.
+     */
+    static void refuse(SocketChannel channel, byte[] response) {
+        try {
+            channel.configureBlocking(false); // a fresh socket's send buffer always holds the response, never wait on the client
+            channel.write(ByteBuffer.wrap(response));
+            channel.shutdownOutput();
+            channel.read(ByteBuffer.allocate(1024)); // drop what the client already sent, so that the close doesn't reset the response
+        } catch (IOException e) {
+            // the client is gone already
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // nothing to do
+            }
+        }
+    }
+
+    static void close(ServerSocketChannel[] listeners) {
+        Arrays.stream(listeners).filter(listener -> listener != null).distinct().forEach(listener -> {
+            try {
+                listener.close();
+            } catch (IOException e) {
+                System.err.println("Error closing server socket - " + e.getMessage());
+            }
+        });
+    }
+}
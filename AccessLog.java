@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log in Common or Combined Log Format, written off the request path.
+ * Workers and reactors only push a small record onto a lock-free ring buffer; a background thread drains it,
+ * formats the lines and appends them to the log file in batches, rotating the file once it reaches maxFileSize
+ * (access.log becomes access.log.1, access.log.1 becomes access.log.2, and so on up to maxFiles).
+ * When the buffer is full a record is either dropped (and counted) or the caller waits for room, depending on the policy.
+ */
+class AccessLog {
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_WAIT_NANOS = 10_000_000;
+    private static final long FULL_WAIT_NANOS = 100_000;
+    private static final DateTimeFormatter CLF_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US).withZone(ZoneId.systemDefault());
+
+    private final RingBuffer<Entry> buffer;
+    private final File file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final boolean isCombined;
+    private final boolean shouldBlockWhenFull;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean isRunning = true;
+
+    // used by the writer thread only
+    private final StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+    private OutputStream out;
+    private long fileSize;
+    private long formattedSecond = -1;
+    private String formattedDate;
+
+    /**
+     * @param format     "common" or "combined" (which adds the Referer and User-Agent headers)
+     * @param fullPolicy "drop" or "block"
+     */
+    AccessLog(String path, int bufferSize, String format, String fullPolicy, long maxFileSize, int maxFiles) throws IOException {
+        this.buffer = new RingBuffer<>(bufferSize);
+        this.file = new File(path);
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(maxFiles, 1);
+        this.isCombined = !"common".equalsIgnoreCase(format);
+        this.shouldBlockWhenFull = "block".equalsIgnoreCase(fullPolicy);
+        openFile();
+
+        this.writer = new Thread(this::drainLoop, "access-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a record for a response that has been written. The request must not be used by the caller afterwards,
+     * as the writer thread reads it to format the line.
+     */
+    void log(String clientIP, HTTPResponse httpResponse) {
+        Entry entry = new Entry(clientIP, System.currentTimeMillis(), httpResponse.getHttpRequest(),
+                httpResponse.getStatusCode(), httpResponse.getBodyLength());
+        while (!buffer.offer(entry)) {
+            if (!shouldBlockWhenFull || !isRunning) {
+                dropped.increment();
+                return;
+            }
+            LockSupport.parkNanos(FULL_WAIT_NANOS);
+        }
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Stops the writer thread after it has written everything already queued.
+     * Called by the server's shutdown once the last connection is closed, so no response goes unlogged.
+     */
+    void close() {
+        if (!isRunning) {
+            return;
+        }
+        isRunning = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drainLoop() {
+        while (true) {
+            boolean wasRunning = isRunning;
+            int drained = drainBatch();
+            if (drained == 0) {
+                if (!wasRunning) {
+                    break;
+                }
+                LockSupport.parkNanos(IDLE_WAIT_NANOS);
+            }
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            System.err.println("Error closing access log - " + e.getMessage());
+        }
+    }
+
+    private int drainBatch() {
+        int count = 0;
+        Entry entry;
+        while (count < BATCH_SIZE && (entry = buffer.poll()) != null) {
+            format(entry);
+            count++;
+        }
+        if (count > 0) {
+            write();
+        }
+        return count;
+    }
+
+    private void format(Entry entry) {
+        HTTPRequest httpRequest = entry.httpRequest;
+        String requestLine = httpRequest != null ? httpRequest.getRequestLine() : null;
+
+        batch.append(entry.clientIP).append(" - - [").append(formatDate(entry.time)).append("] \"");
+        appendEscaped(requestLine != null && !requestLine.isEmpty() ? requestLine : "-");
+        batch.append("\" ").append(entry.statusCode != null ? entry.statusCode.getCode() : 0).append(' ');
+        if (entry.bodyLength > 0) {
+            batch.append(entry.bodyLength);
+        } else {
+            batch.append('-');
+        }
+        if (isCombined) {
+            batch.append(" \"");
+            appendEscaped(getHeaderOrDash(httpRequest, "Referer"));
+            batch.append("\" \"");
+            appendEscaped(getHeaderOrDash(httpRequest, "User-Agent"));
+            batch.append('"');
+        }
+        batch.append('\n');
+    }
+
+    private void appendEscaped(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                batch.append('\\').append(c);
+            } else if (c < 0x20 || c == 0x7f) {
+                batch.append("\\x").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xf, 16));
+            } else {
+                batch.append(c);
+            }
+        }
+    }
+
+    private static String getHeaderOrDash(HTTPRequest httpRequest, String name) {
+        String value = httpRequest != null && httpRequest.isValid() ? httpRequest.getHeader(name) : null;
+        return value != null ? value : "-";
+    }
+
+    private String formatDate(long time) {
+        long second = time / 1000;
+        if (second != formattedSecond) {
+            formattedSecond = second;
+            formattedDate = CLF_DATE_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        return formattedDate;
+    }
+
+    private void write() {
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        batch.setLength(0);
+        try {
+            out.write(bytes);
+            fileSize += bytes.length;
+            if (fileSize >= maxFileSize) {
+                rotate();
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing access log - " + e.getMessage());
+        }
+    }
+
+    private void rotate() throws IOException {
+        out.close();
+        String path = file.getPath();
+        new File(path + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            new File(path + "." + i).renameTo(new File(path + "." + (i + 1)));
+        }
+        file.renameTo(new File(path + ".1"));
+        openFile();
+    }
+
+    private void openFile() throws IOException {
+        out = new FileOutputStream(file, true);
+        fileSize = file.length();
+    }
+
+    private static class Entry {
+        final String clientIP;
+        final long time;
+        final HTTPRequest httpRequest;
+        final StatusCode statusCode;
+        final long bodyLength;
+
+        Entry(String clientIP, long time, HTTPRequest httpRequest, StatusCode statusCode, long bodyLength) {
+            this.clientIP = clientIP;
+            this.time = time;
+            this.httpRequest = httpRequest;
+            this.statusCode = statusCode;
+            this.bodyLength = bodyLength;
+        }
+    }
+
+    /**
+     * Bounded multi-producer, single-consumer queue without locks (D. Vyukov's bounded queue).
+     * Every slot carries a sequence number telling whether it is free for the producer claiming position p
+     * (sequence == p) or holds the element published at position p (sequence == p + 1).
+     */
+    static class RingBuffer<T> {
+        private final AtomicReferenceArray<T> elements;
+        private final AtomicLongArray sequences;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private long head; // only touched by the consumer
+
+        RingBuffer(int requestedCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(requestedCapacity - 1, 1)) << 1;
+            this.elements = new AtomicReferenceArray<>(capacity);
+            this.sequences = new AtomicLongArray(capacity);
+            this.mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                sequences.set(i, i);
+            }
+        }
+
+        /**
+         * @return false if the buffer is full.
+         */
+        boolean offer(T element) {
+            long position = tail.get();
+            while (true) {
+                int index = (int) position & mask;
+                long difference = sequences.get(index) - position;
+                if (difference == 0) {
+                    if (tail.compareAndSet(position, position + 1)) {
+                        elements.lazySet(index, element);
+                        sequences.lazySet(index, position + 1);
+                        return true;
+                    }
+                    position = tail.get();
+                } else if (difference < 0) {
+                    return false;
+                } else {
+                    position = tail.get();
+                }
+            }
+        }
+
+        /**
+         * @return the oldest element, or null if the buffer is empty. Called by a single thread.
+         */
+        T poll() {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return null;
+            }
+            T element = elements.get(index);
+            elements.lazySet(index, null);
+            sequences.lazySet(index, head + mask + 1);
+            head++;
+            return element;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal HTTP listener on the admin port (config.ini 'adminPort'), separate from the content port so scraping
+ * never competes with clients for workers. It answers GET /metrics with Metrics in Prometheus text format,
+ * one connection at a time, and closes every connection after its response. A request line or header longer than
+ * MAX_LINE_LENGTH, or more than MAX_HEADER_LINES headers, close the connection without a response.
+ */
+class AdminServer extends Thread {
+    private static final int READ_TIMEOUT = 5000;
+    private static final int MAX_LINE_LENGTH = 8192;
+    private static final int MAX_HEADER_LINES = 100;
+
+    private final ServerSocket serverSocket;
+    private final Metrics metrics;
+
+    AdminServer(String address, int port, Metrics metrics) throws IOException {
+        super("admin-server");
+        setDaemon(true);
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(address));
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void run() {
+        System.out.println("Admin server is listening on " + serverSocket.getLocalSocketAddress() + "...");
+        while (ThreadRunnable.serverRunning) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setSoTimeout(READ_TIMEOUT);
+                handle(socket);
+            } catch (IOException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                System.err.println("Admin server - " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        String line;
+        int headerLines = 0;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            if (++headerLines > MAX_HEADER_LINES) {
+                throw new IOException("More than " + MAX_HEADER_LINES + " headers");
+            }
+            // the headers are not used
+        }
+
+        String[] parts = requestLine.split(" ");
+        String status;
+        String body;
+        if (parts.length < 2 || !parts[0].equals("GET")) {
+            status = "405 Method Not Allowed";
+            body = "Only GET is supported\n";
+        } else if (!parts[1].equals("/metrics")) {
+            status = "404 Not Found";
+            body = "Not found, try /metrics\n";
+        } else {
+            status = "200 OK";
+            body = metrics.toPrometheusText();
+        }
+
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + status + "\r\n"
+                + "Content-Type: text/plain; version=0.0.4; charset=utf-8\r\n"
+                + "Content-Length: " + bodyBytes.length + "\r\n"
+                + "Connection: close\r\n\r\n";
+        OutputStream out = socket.getOutputStream();
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.write(bodyBytes);
+        out.flush();
+    }
+
+    /**
+     * Reads a line ended by LF, with the CR before it dropped.
+     *
+     * @return the line, or null at the end of the input.
+     * @throws IOException if the line is longer than MAX_LINE_LENGTH; the connection is then closed
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                return line.length() == 0 ? null : line.toString();
+            }
+            if (line.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Line over " + MAX_LINE_LENGTH + " bytes");
+            }
+            line.append((char) b); // ISO-8859-1
+        }
+        int length = line.length();
+        if (length > 0 && line.charAt(length - 1) == '\r') {
+            line.setLength(length - 1);
+        }
+        return line.toString();
+    }
+}
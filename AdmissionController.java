@@ -0,0 +1,138 @@
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether an accepted connection is served or shed, for the thread pool engine.
+ * The number of connections admitted at once (being served or waiting in the pool's queue) is capped by a limit
+ * that adapts to latency with a gradient algorithm: every sampleWindow milliseconds the average request latency of
+ * the window is compared to a reference latency (latencyTarget if configured, otherwise a slowly moving average of
+ * past windows). While latency stays at the reference the limit grows, and when it rises above it the limit shrinks
+ * in proportion, so queues stop growing before latency does. The limit stays between the worker thread count and
+ * the worker count plus the queue capacity.
+ * A shed connection gets a pre-encoded 503 Service Unavailable with Retry-After and is closed right away.
+ */
+class AdmissionController {
+    private static final long SAMPLE_WINDOW_NANOS = 1_000_000_000L;
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double SMOOTHING = 0.2;
+    private static final double REFERENCE_DECAY = 0.05; // weight of a new window in the long-term latency average
+
+    private final int queueCapacity;
+    private volatile int minLimit;
+    private volatile int maxLimit;
+    private volatile long latencyTargetNanos;
+    private volatile byte[] serviceUnavailable;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile double limit;
+    private final LongAdder windowLatencySum = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private volatile long windowStart = System.nanoTime();
+    private double referenceLatency; // guarded by this
+
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param latencyTarget milliseconds, 0 to use the long-term average latency as the reference
+     * @param retryAfter    seconds, sent in the Retry-After header of the 503
+     */
+    AdmissionController(int workerThreads, int queueCapacity, long latencyTarget, int retryAfter) {
+        this.queueCapacity = Math.max(queueCapacity, 0);
+        configure(workerThreads, latencyTarget, retryAfter);
+        this.limit = maxLimit;
+    }
+
+    /**
+     * Applies new settings after a config reload; the current limit is kept, only clamped to the new bounds.
+     */
+    synchronized void configure(int workerThreads, long latencyTarget, int retryAfter) {
+        this.minLimit = Math.max(workerThreads, 1);
+        this.maxLimit = minLimit + queueCapacity;
+        this.latencyTargetNanos = latencyTarget * 1_000_000;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, limit));
+        this.serviceUnavailable = new HeaderWriter(128)
+                .statusLine(StatusCode.SERVICE_UNAVAILABLE)
+                .header(HeaderWriter.RETRY_AFTER, retryAfter)
+                .line(HeaderWriter.EMPTY_CONTENT_LENGTH)
+                .line(HeaderWriter.CONNECTION_CLOSE)
+                .toByteArray();
+    }
+
+    /**
+     * @return true if the connection may be served; it must then be released with release() once it is closed.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Records the latency of a response, measured from acceptance for the first request of a connection
+     * so that time spent in the pool's queue counts.
+     */
+    void onSample(long latencyNanos) {
+        windowLatencySum.add(latencyNanos);
+        windowSamples.increment();
+        long now = System.nanoTime();
+        if (now - windowStart >= SAMPLE_WINDOW_NANOS) {
+            updateLimit(now);
+        }
+    }
+
+    private synchronized void updateLimit(long now) {
+        if (now - windowStart < SAMPLE_WINDOW_NANOS) {
+            return; // another thread closed this window
+        }
+        long samples = windowSamples.sumThenReset();
+        long latencySum = windowLatencySum.sumThenReset();
+        windowStart = now;
+        if (samples < MIN_WINDOW_SAMPLES) {
+            return; // too few requests to tell anything
+        }
+
+        double windowLatency = (double) latencySum / samples;
+        if (referenceLatency == 0) {
+            referenceLatency = windowLatency;
+        }
+        double reference = latencyTargetNanos > 0 ? latencyTargetNanos : referenceLatency;
+        double gradient = Math.max(0.5, Math.min(1.0, reference / windowLatency));
+        double newLimit = limit * gradient + Math.sqrt(limit); // the square root lets the limit probe upwards
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if (latencyTargetNanos == 0) {
+            referenceLatency = referenceLatency * (1 - REFERENCE_DECAY) + windowLatency * REFERENCE_DECAY;
+        }
+    }
+
+    /**
+     * Answers a shed connection with the pre-encoded 503 and closes it.
+     */
+    void reject(SocketChannel channel) {
+        Acceptor.refuse(channel, serviceUnavailable);
+    }
+
+    int getLimit() {
+        return (int) limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,267 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of heap and direct ByteBuffers in power-of-two size classes from 1KB to 64KB, shared by both engines for the
+ * read buffers of connections and the response buffers of BufferArena.
+ * Every platform thread keeps a small cache per size class, so a worker or reactor thread reuses its own buffers
+ * without any synchronization; buffers beyond it go to a fixed array of shared slots taken and filled with
+ * compareAndSet, so the pool never locks and never allocates once warm. Virtual threads only use the shared slots,
+ * as a cache per virtual thread would hardly ever be reused. Requests above the largest class get an unpooled buffer.
+ * With leak detection on (debugDump at startup), every buffer handed out is tracked with the stack that acquired it:
+ * releasing one twice is reported right away, and buffers still out when the server stops are reported as leaks.
+ */
+class BufferPool {
+    private static final int MIN_SHIFT = 10; // 1KB
+    private static final int MAX_SHIFT = 16; // 64KB
+    private static final int SIZE_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+    private static final int THREAD_CACHE_SIZE = 4; // buffers per size class and kind cached by each thread
+    private static final int SHARED_SLOTS = 64; // buffers per size class and kind in the shared pool
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private final AtomicReferenceArray<ByteBuffer>[] heapSlots = newSlots();
+    private final AtomicReferenceArray<ByteBuffer>[] directSlots = newSlots();
+    private final ThreadLocal<ThreadCache> threadCaches = ThreadLocal.withInitial(() -> isVirtual() ? null : new ThreadCache());
+    private final Map<ByteBuffer, Throwable> outstanding = Collections.synchronizedMap(new IdentityHashMap<>()); // debug only
+
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+    private boolean isLeakDetection; // set once before any buffer is acquired, as switching it later breaks tracking
+
+    void setLeakDetection(boolean isLeakDetection) {
+        this.isLeakDetection = isLeakDetection;
+    }
+
+    /**
+     * @return a cleared heap buffer of at least capacity bytes.
+     */
+    ByteBuffer acquire(int capacity) {
+        return acquire(capacity, false);
+    }
+
+    /**
+     * @return a cleared direct buffer of at least capacity bytes, for data written to sockets as it is.
+     */
+    ByteBuffer acquireDirect(int capacity) {
+        return acquire(capacity, true);
+    }
+
+    /**
+     * Returns a buffer obtained from acquire or acquireDirect; it must not be used afterwards.
+     */
+    void release(ByteBuffer buffer) {
+        if (isLeakDetection && outstanding.remove(buffer) == null) {
+            new IllegalStateException("Buffer released twice, or not acquired from the pool").printStackTrace();
+            return;
+        }
+        released.increment();
+        int sizeClass = getSizeClass(buffer.capacity());
+        if (sizeClass == -1 || buffer.capacity() != 1 << (sizeClass + MIN_SHIFT)) {
+            return; // unpooled, left to the garbage collector
+        }
+        buffer.clear();
+        ThreadCache threadCache = threadCaches.get();
+        if (threadCache != null && threadCache.offer(buffer, sizeClass)) {
+            return;
+        }
+        AtomicReferenceArray<ByteBuffer> slots = (buffer.isDirect() ? directSlots : heapSlots)[sizeClass];
+        int start = ThreadLocalRandom.current().nextInt(SHARED_SLOTS);
+        for (int i = 0; i < SHARED_SLOTS; i++) {
+            int slot = (start + i) % SHARED_SLOTS;
+            if (slots.get(slot) == null && slots.compareAndSet(slot, null, buffer)) {
+                return;
+            }
+        }
+        // the pool is full, the buffer is dropped
+    }
+
+    private ByteBuffer acquire(int capacity, boolean isDirect) {
+        acquired.increment();
+        ByteBuffer buffer = take(capacity, isDirect);
+        if (isLeakDetection) {
+            outstanding.put(buffer, new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here"));
+        }
+        return buffer;
+    }
+
+    private ByteBuffer take(int capacity, boolean isDirect) {
+        int sizeClass = getSizeClass(capacity);
+        if (sizeClass == -1) {
+            allocated.increment();
+            return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        ThreadCache threadCache = threadCaches.get();
+        if (threadCache != null) {
+            ByteBuffer buffer = threadCache.poll(sizeClass, isDirect);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        AtomicReferenceArray<ByteBuffer> slots = (isDirect ? directSlots : heapSlots)[sizeClass];
+        int start = ThreadLocalRandom.current().nextInt(SHARED_SLOTS);
+        for (int i = 0; i < SHARED_SLOTS; i++) {
+            int slot = (start + i) % SHARED_SLOTS;
+            ByteBuffer buffer = slots.get(slot);
+            if (buffer != null && slots.compareAndSet(slot, buffer, null)) {
+                return buffer;
+            }
+        }
+        allocated.increment();
+        int size = 1 << (sizeClass + MIN_SHIFT);
+        return isDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @return the smallest size class holding capacity bytes, or -1 if it is above the largest one.
+     */
+    private static int getSizeClass(int capacity) {
+        if (capacity > 1 << MAX_SHIFT) {
+            return -1;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1); // ceil(log2(capacity))
+        return Math.max(shift - MIN_SHIFT, 0);
+    }
+
+    long getAcquired() {
+        return acquired.sum();
+    }
+
+    long getAllocated() {
+        return allocated.sum();
+    }
+
+    long getOutstanding() {
+        return acquired.sum() - released.sum();
+    }
+
+    /**
+     * Prints the buffers that were never released, with where they were acquired; only tracked with leak detection on.
+     */
+    void reportLeaks() {
+        synchronized (outstanding) {
+            for (Throwable acquiredAt : outstanding.values()) {
+                System.err.println("Buffer leak:");
+                acquiredAt.printStackTrace();
+            }
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static AtomicReferenceArray<ByteBuffer>[] newSlots() {
+        AtomicReferenceArray<ByteBuffer>[] slots = new AtomicReferenceArray[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            slots[i] = new AtomicReferenceArray<>(SHARED_SLOTS);
+        }
+        return slots;
+    }
+
+    private static boolean isVirtual() {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(Thread.currentThread());
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        // Thread.isVirtual only exists from JDK 21, looked up reflectively like the virtual thread executor
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual", MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The buffers cached by one thread: a small stack per size class and kind, used by that thread only.
+     */
+    private static class ThreadCache {
+        private final ByteBuffer[][] heap = new ByteBuffer[SIZE_CLASSES][THREAD_CACHE_SIZE];
+        private final ByteBuffer[][] direct = new ByteBuffer[SIZE_CLASSES][THREAD_CACHE_SIZE];
+        private final int[] heapCounts = new int[SIZE_CLASSES];
+        private final int[] directCounts = new int[SIZE_CLASSES];
+
+        ByteBuffer poll(int sizeClass, boolean isDirect) {
+            int[] counts = isDirect ? directCounts : heapCounts;
+            if (counts[sizeClass] == 0) {
+                return null;
+            }
+            ByteBuffer[] stack = (isDirect ? direct : heap)[sizeClass];
+            ByteBuffer buffer = stack[--counts[sizeClass]];
+            stack[counts[sizeClass]] = null;
+            return buffer;
+        }
+
+        boolean offer(ByteBuffer buffer, int sizeClass) {
+            int[] counts = buffer.isDirect() ? directCounts : heapCounts;
+            if (counts[sizeClass] == THREAD_CACHE_SIZE) {
+                return false;
+            }
+            (buffer.isDirect() ? direct : heap)[sizeClass][counts[sizeClass]++] = buffer;
+            return true;
+        }
+    }
+}
+
+/**
+ * The buffers a connection reuses for every response it sends, taken from the BufferPool the first time they are
+ * needed and given back when the connection closes: a heap buffer the response head is encoded into and a direct
+ * buffer for the chunks of chunked responses. A connection answers one request at a time, so one of each is enough.
+ * Used by the thread serving the connection only.
+ */
+class BufferArena {
+    private final BufferPool pool;
+    private ByteBuffer headBuffer;
+    private ByteBuffer chunkBuffer;
+
+    BufferArena(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return the array to encode a response head into, of at least capacity bytes.
+     */
+    byte[] getHeadBuffer(int capacity) {
+        if (headBuffer == null) {
+            headBuffer = pool.acquire(capacity);
+        }
+        return headBuffer.array();
+    }
+
+    /**
+     * @return a cleared direct buffer of at least capacity bytes for the chunks of a chunked response.
+     */
+    ByteBuffer getChunkBuffer(int capacity) {
+        if (chunkBuffer != null && chunkBuffer.capacity() < capacity) { // chunkSize was raised by a config reload
+            pool.release(chunkBuffer);
+            chunkBuffer = null;
+        }
+        if (chunkBuffer == null) {
+            chunkBuffer = pool.acquireDirect(capacity);
+        }
+        return chunkBuffer.clear();
+    }
+
+    void close() {
+        if (headBuffer != null) {
+            pool.release(headBuffer);
+            headBuffer = null;
+        }
+        if (chunkBuffer != null) {
+            pool.release(chunkBuffer);
+            chunkBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per client IP limits, shared by both engines: the connections a client has open at once (maxConnectionsPerClient)
+ * and the rate of its requests (requestRate per second, with bursts of up to requestBurst requests).
+ * The rate is a token bucket kept as a single timestamp (the generic cell rate algorithm): the time at which the
+ * bucket would be full again, moved forward by one interval per request, so taking a token is one compareAndSet.
+ * Clients live in a ConcurrentHashMap, whose reads take no lock and whose updates only lock one bin, and each
+ * connection keeps its Client, so requests never look the map up. Clients with no connection and a full bucket are
+ * removed every SWEEP_INTERVAL by whichever acceptor gets there first.
+ * A client over a limit is refused when it connects, before anything is read, with a pre-encoded
+ * 429 Too Many Requests; a request over the rate on an open connection is answered with 429 and the connection closed.
+ * Addresses in the clientAllowlist CIDR blocks are never limited, nor tracked.
+ */
+class ClientLimiter {
+    private static final long SWEEP_INTERVAL = 10_000_000_000L; // ns
+
+    private final Map<InetAddress, Client> clients = new ConcurrentHashMap<>();
+    private final Client unlimited = new Client(false, System.nanoTime());
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL);
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final LongAdder rejectedRequests = new LongAdder();
+
+    private volatile int maxConnections;
+    private volatile long requestInterval; // ns between requests at the allowed rate, 0 for no rate limit
+    private volatile long burstTolerance; // how far ahead of now a client's bucket may be emptied
+    private volatile byte[][] allowlist = new byte[0][]; // network address then a single byte prefix length, per block
+    private volatile byte[] tooManyRequests;
+
+    /**
+     * Applies the settings, at startup and after a config reload.
+     *
+     * @param maxConnections connections per client, 0 for no limit
+     * @param requestRate    requests per second per client, 0 for no limit
+     * @param requestBurst   requests a client may send at once above the rate
+     * @param allowlist      from parseAllowlist
+     * @param retryAfter     seconds, sent in the Retry-After header of the 429
+     */
+    void configure(int maxConnections, int requestRate, int requestBurst, byte[][] allowlist, int retryAfter) {
+        this.maxConnections = maxConnections;
+        this.requestInterval = requestRate > 0 ? 1_000_000_000L / requestRate : 0;
+        this.burstTolerance = requestInterval * Math.max(requestBurst, 1);
+        this.allowlist = allowlist;
+        this.tooManyRequests = new HeaderWriter(128)
+                .statusLine(StatusCode.TOO_MANY_REQUESTS)
+                .header(HeaderWriter.RETRY_AFTER, retryAfter)
+                .line(HeaderWriter.EMPTY_CONTENT_LENGTH)
+                .line(HeaderWriter.CONNECTION_CLOSE)
+                .toByteArray();
+    }
+
+    /**
+     * @return the client connecting from address, with the connection counted, or null if it is over a limit; the
+     * connection must then be refused with reject(), otherwise released with Client.release() once it is closed.
+     */
+    Client acquire(InetAddress address) {
+        if ((maxConnections <= 0 && requestInterval == 0) || isAllowlisted(address)) {
+            return unlimited;
+        }
+        long now = System.nanoTime();
+        long sweepAt = nextSweep.get();
+        if (now - sweepAt >= 0 && nextSweep.compareAndSet(sweepAt, now + SWEEP_INTERVAL)) {
+            sweep(now);
+        }
+        while (true) {
+            // full as of now, not as of a later nanoTime, which would leave a burst of one with no token
+            Client client = clients.computeIfAbsent(address, key -> new Client(true, now));
+            int connections = client.connections.get();
+            if (connections < 0) {
+                continue; // swept meanwhile, its removal from the map is under way
+            }
+            if ((maxConnections > 0 && connections >= maxConnections) || client.isRateExceeded(now)) {
+                rejectedConnections.increment();
+                return null;
+            }
+            if (client.connections.compareAndSet(connections, connections + 1)) {
+                return client;
+            }
+        }
+    }
+
+    /**
+     * Answers a refused connection with the pre-encoded 429 and closes it.
+     */
+    void reject(SocketChannel channel) {
+        Acceptor.refuse(channel, tooManyRequests);
+    }
+
+    private boolean isAllowlisted(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        for (byte[] block : allowlist) {
+            if (block.length - 1 == bytes.length && isInBlock(bytes, block)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isInBlock(byte[] address, byte[] block) {
+        int prefix = block[block.length - 1] & 0xff;
+        for (int i = 0; i < address.length && prefix > 0; i++, prefix -= 8) {
+            int mask = prefix >= 8 ? 0xff : (0xff << (8 - prefix)) & 0xff;
+            if ((address[i] & mask) != (block[i] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the clients with no connection open and a full bucket. A client is first marked removed with a
+     * compareAndSet of its connection count, so a connection racing with the sweep never counts against a client
+     * that is no longer in the map.
+     */
+    private void sweep(long now) {
+        for (Map.Entry<InetAddress, Client> entry : clients.entrySet()) {
+            Client client = entry.getValue();
+            if (now - client.fullAt.get() >= 0 && client.connections.compareAndSet(0, -1)) {
+                clients.remove(entry.getKey(), client);
+            }
+        }
+    }
+
+    /**
+     * @return the addresses of a comma-separated list of CIDR blocks ('10.0.0.0/8', '::1/128', or a single address),
+     * as taken by configure.
+     * @throws IllegalArgumentException if a block is malformed
+     */
+    static byte[][] parseAllowlist(String value) {
+        List<byte[]> blocks = new ArrayList<>();
+        for (String cidr : value.split(",")) {
+            cidr = cidr.trim();
+            if (cidr.isEmpty()) {
+                continue;
+            }
+            int slash = cidr.indexOf('/');
+            String host = slash == -1 ? cidr : cidr.substring(0, slash);
+            boolean isIPv6 = host.indexOf(':') != -1;
+            if (host.isEmpty() || !host.chars().allMatch(c -> c == '.' || c == ':' || Character.digit(c, isIPv6 ? 16 : 10) != -1)) {
+                throw new IllegalArgumentException("Not an IP address in clientAllowlist: " + cidr); // never a DNS lookup
+            }
+            byte[] address;
+            try {
+                address = InetAddress.getByName(host).getAddress();
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("Not an IP address in clientAllowlist: " + cidr);
+            }
+            int prefix = slash == -1 ? address.length * 8 : Integer.parseInt(cidr.substring(slash + 1));
+            if (prefix < 0 || prefix > address.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in clientAllowlist: " + cidr);
+            }
+            byte[] block = new byte[address.length + 1];
+            System.arraycopy(address, 0, block, 0, address.length);
+            block[address.length] = (byte) prefix;
+            blocks.add(block);
+        }
+        return blocks.toArray(new byte[0][]);
+    }
+
+    int getTrackedClients() {
+        return clients.size();
+    }
+
+    long getRejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    /**
+     * The state of one client address: its open connections and its token bucket.
+     */
+    class Client {
+        private final boolean isLimited;
+        private final AtomicInteger connections = new AtomicInteger(); // -1 once swept
+        private final AtomicLong fullAt; // when the bucket is full again
+
+        private Client(boolean isLimited, long now) {
+            this.isLimited = isLimited;
+            this.fullAt = new AtomicLong(now);
+        }
+
+        /**
+         * Takes a token for a request.
+         *
+         * @return false if the client is over the request rate, the request is then to be answered with 429.
+         */
+        boolean tryRequest() {
+            return tryRequest(System.nanoTime());
+        }
+
+        boolean tryRequest(long now) {
+            long interval = requestInterval;
+            if (!isLimited || interval == 0) {
+                return true;
+            }
+            while (true) {
+                long current = fullAt.get();
+                long next = Math.max(current - now, 0) + interval;
+                if (next > burstTolerance) {
+                    rejectedRequests.increment();
+                    return false;
+                }
+                if (fullAt.compareAndSet(current, now + next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if the bucket has no token left, without taking one.
+         */
+        private boolean isRateExceeded(long now) {
+            long interval = requestInterval;
+            return interval > 0 && fullAt.get() - now + interval > burstTolerance;
+        }
+
+        void release() {
+            if (isLimited) {
+                connections.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding negotiation and gzip compression of response bodies.
+ * Only the Content-Types listed in config.ini ('compressionTypes') are compressed, so images and other
+ * already-compressed formats are always sent as they are.
+ */
+class Compression {
+    static final String GZIP = "gzip";
+    static final String BROTLI = "br";
+
+    private Compression() {
+    }
+
+    static boolean isCompressible(String contentType) {
+        int parameters = contentType.indexOf(';');
+        String mediaType = parameters == -1 ? contentType : contentType.substring(0, parameters);
+        return TCPServerMultithreaded.COMPRESSION_TYPES.contains(mediaType.trim().toLowerCase());
+    }
+
+    /**
+     * @return the quality value the Accept-Encoding header gives to coding (RFC 7231 5.3.4), 0 if it is not acceptable.
+     * A coding not listed gets the value of "*", if present.
+     */
+    static double getQuality(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) {
+            return 0;
+        }
+        double wildcardQuality = 0;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String name = parts[0].trim();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    quality = parseQuality(parameter.substring(2));
+                }
+            }
+            if (name.equalsIgnoreCase(coding)) {
+                return quality;
+            }
+            if (name.equals("*")) {
+                wildcardQuality = quality;
+            }
+        }
+        return wildcardQuality;
+    }
+
+    /**
+     * @return the qvalue (RFC 7231 5.3.1): 0 or 1 with up to three decimals, at most 1. Anything else, such as NaN,
+     * 1e0, 1.5 or 0.0001, counts as 0, not acceptable.
+     */
+    private static double parseQuality(String value) {
+        int length = value.length();
+        if (length == 0 || length > 5 || (value.charAt(0) != '0' && value.charAt(0) != '1')
+                || (length > 1 && value.charAt(1) != '.')) {
+            return 0;
+        }
+        int thousandths = 0;
+        for (int i = 2; i < 5; i++) {
+            int digit = i < length ? value.charAt(i) - '0' : 0;
+            if (digit < 0 || digit > 9) {
+                return 0;
+            }
+            thousandths = thousandths * 10 + digit;
+        }
+        if (value.charAt(0) == '1') {
+            return thousandths == 0 ? 1 : 0;
+        }
+        return thousandths / 1000.0;
+    }
+
+    static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 3 + 64);
+        try (OutputStream out = new LeveledGZIPOutputStream(compressed, TCPServerMultithreaded.COMPRESSION_LEVEL)) {
+            out.write(content);
+        } catch (IOException e) {
+            throw new RuntimeException(e); // cannot happen when writing to memory
+        }
+        return compressed.toByteArray();
+    }
+
+    private static class LeveledGZIPOutputStream extends GZIPOutputStream {
+        LeveledGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.util.function.Consumer;
+
+/**
+ * What a connection is waiting for, each phase with its own deadline from config.ini.
+ */
+enum ConnectionPhase {
+    FIRST_BYTE, // the first byte of the first request
+    KEEP_ALIVE, // the first byte of the next request
+    HEADER, // the rest of the header block
+    BODY, // the request body, at minTransferRate once bodyTimeout has passed
+    PROCESSING, // the response being built, no deadline
+    WRITE; // the response being written, at minTransferRate once writeTimeout has passed
+
+    final String label = name().toLowerCase();
+}
+
+/**
+ * The deadline of a connection for the phase it is in, on a TimerWheel: each engine moves its connections from phase
+ * to phase, and when a deadline passes, onExpired gets the phase on the thread advancing the wheel. This is what
+ * bounds slow clients (slowloris): a request trickling in one byte at a time hits the header deadline, a body or a
+ * response read slower than minTransferRate hits the body or write deadline, however long the transfer.
+ * A connection is only touched by its own thread, the wheel's thread only reads the volatile fields.
+ */
+class ConnectionTimer {
+    private final TimerWheel.Timeout timeout;
+    private final Consumer<ConnectionPhase> onExpired;
+    private volatile ConnectionPhase phase;
+    private volatile long phaseStart;
+    private volatile long bytesRead; // over the whole connection
+    private volatile long phaseBytes; // bytesRead when the body started, or the length of the response being written
+
+    ConnectionTimer(TimerWheel wheel, Consumer<ConnectionPhase> onExpired) {
+        this.timeout = new TimerWheel.Timeout(wheel, this::expire);
+        this.onExpired = onExpired;
+    }
+
+    /**
+     * Starts phase, unless the connection is in it already. The body and write phases are entered with startBody
+     * and startWrite instead.
+     */
+    void enter(ConnectionPhase phase) {
+        if (this.phase == phase) {
+            return;
+        }
+        if (phase == ConnectionPhase.BODY) {
+            phaseBytes = bytesRead;
+        }
+        this.phase = phase;
+        phaseStart = System.currentTimeMillis();
+        timeout.set(getDeadline());
+    }
+
+    /**
+     * Starts writing a response of length bytes.
+     */
+    void startWrite(long length) {
+        phaseBytes = length;
+        phase = ConnectionPhase.WRITE;
+        phaseStart = System.currentTimeMillis();
+        timeout.set(getDeadline());
+    }
+
+    void bytesRead(long count) {
+        bytesRead += count; // only the connection's thread writes it
+    }
+
+    ConnectionPhase getPhase() {
+        return phase;
+    }
+
+    void cancel() {
+        phase = null;
+        timeout.cancel();
+    }
+
+    private void expire() {
+        ConnectionPhase expired = phase;
+        long deadline = getDeadline(); // the body may have come in fast enough meanwhile, or the phase changed
+        if (expired == null || deadline == TimerWheel.NONE || deadline > System.currentTimeMillis()) {
+            timeout.set(deadline);
+            return;
+        }
+        TCPServerMultithreaded.METRICS.connectionTimedOut(expired);
+        onExpired.accept(expired);
+    }
+
+    private long getDeadline() {
+        ConnectionPhase phase = this.phase;
+        if (phase == null) {
+            return TimerWheel.NONE;
+        }
+        switch (phase) {
+            case FIRST_BYTE:
+                return after(TCPServerMultithreaded.FIRST_BYTE_TIMEOUT, 0);
+            case KEEP_ALIVE:
+                return after(TCPServerMultithreaded.KEEP_ALIVE_TIMEOUT, 0);
+            case HEADER:
+                return after(TCPServerMultithreaded.HEADER_TIMEOUT, 0);
+            case BODY:
+                return after(TCPServerMultithreaded.BODY_TIMEOUT, bytesRead - phaseBytes);
+            case WRITE:
+                return after(TCPServerMultithreaded.WRITE_TIMEOUT, phaseBytes);
+            default:
+                return TimerWheel.NONE;
+        }
+    }
+
+    /**
+     * @return the end of the phase if it lasts timeout ms plus the time the bytes take at minTransferRate,
+     * or NONE if timeout is 0 (disabled).
+     */
+    private long after(long timeout, long bytes) {
+        if (timeout <= 0) {
+            return TimerWheel.NONE;
+        }
+        int minTransferRate = TCPServerMultithreaded.MIN_TRANSFER_RATE;
+        return phaseStart + timeout + (minTransferRate > 0 ? bytes * 1000 / minTransferRate : 0);
+    }
+}
@@ -0,0 +1,530 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Shared in-memory cache of static files, keyed by their resolved path.
+ * An entry holds the length and the precomputed Content-Type and validator (ETag, Last-Modified) values of a file
+ * version, plus the file content if the file is small enough to be kept in memory. It is trusted
+ * without touching the filesystem for revalidateInterval milliseconds; after that its last-modified time and size
+ * are checked and the content is reloaded if they changed.
+ * The content kept in memory is bounded by a byte budget; when it goes over it, the least recently used entries are
+ * evicted in a batch, down to 7/8 of the budget.
+ * A gzip-compressed variant of a cached file is made on first request and counted in the budget with the file version
+ * it was made from, so it is dropped together with it.
+ * Files of at least mmapThreshold bytes that are too large to be kept on the heap are memory-mapped instead, up to
+ * maxMappedBytes in total (the least recently used mappings are released first). A mapping is shared by all the
+ * responses sending that file version and reference counted, so it is unmapped once the file has changed or been
+ * evicted and the last response using it is done.
+ */
+class FileCache {
+    static final DateTimeFormatter HTTP_DATE_FORMAT =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+    private final Map<String, CachedFile> entries = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+    private final AtomicLong accessClock = new AtomicLong();
+    private volatile long maxBytes;
+    private volatile long maxEntrySize;
+    private volatile long revalidateInterval;
+    private volatile long mmapThreshold;
+    private volatile long maxMappedBytes;
+    private final AtomicLong mappedBytes = new AtomicLong();
+    private final AtomicBoolean isEvicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    FileCache(long maxBytes, long maxEntrySize, long revalidateInterval, long mmapThreshold, long maxMappedBytes) {
+        configure(maxBytes, maxEntrySize, revalidateInterval, mmapThreshold, maxMappedBytes);
+    }
+
+    /**
+     * Applies new limits after a config reload without emptying the cache: entries that no longer fit the limits,
+     * or whose Cache-Control setting changed, are dropped and everything else stays warm.
+     */
+    void configure(long maxBytes, long maxEntrySize, long revalidateInterval, long mmapThreshold, long maxMappedBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = Math.min(maxEntrySize, maxBytes);
+        this.revalidateInterval = revalidateInterval;
+        this.mmapThreshold = mmapThreshold;
+        this.maxMappedBytes = maxMappedBytes;
+
+        for (Map.Entry<String, CachedFile> entry : entries.entrySet()) {
+            CachedFile cachedFile = entry.getValue();
+            boolean fits = cachedFile.content != null
+                    ? cachedFile.length <= this.maxEntrySize
+                    : cachedFile.length > this.maxEntrySize; // smaller files are kept in memory from now on
+            if (!fits || !Objects.equals(cachedFile.cacheControl, getCacheControl(cachedFile.file.getName().toLowerCase()))) {
+                remove(entry.getKey(), cachedFile);
+            }
+        }
+        evictIfNeeded();
+        while (mappedBytes.get() > maxMappedBytes && unmapLeastRecentlyUsed(null)) {
+            // released down to the new mapping budget
+        }
+    }
+
+    /**
+     * @return the cached file, or null if it doesn't exist or isn't a regular file.
+     * The content of files larger than maxEntrySize is not kept, only their metadata.
+     */
+    CachedFile get(String path) {
+        long now = System.currentTimeMillis();
+        CachedFile cachedFile = entries.get(path);
+
+        if (cachedFile != null && now - cachedFile.validatedAt < revalidateInterval) {
+            hits.increment();
+            cachedFile.lastAccess = accessClock.incrementAndGet();
+            return cachedFile;
+        }
+
+        File file = new File(path);
+        if (cachedFile != null && file.lastModified() == cachedFile.lastModified && file.length() == cachedFile.length) {
+            hits.increment();
+            cachedFile.validatedAt = now;
+            cachedFile.lastAccess = accessClock.incrementAndGet();
+            return cachedFile;
+        }
+
+        misses.increment();
+        if (cachedFile != null) {
+            remove(path, cachedFile);
+        }
+        if (!file.isFile()) {
+            return null;
+        }
+        return load(path, file, now);
+    }
+
+    private CachedFile load(String path, File file, long now) {
+        try {
+            long lastModified = file.lastModified();
+            long length = file.length();
+            byte[] content = length <= maxEntrySize ? Files.readAllBytes(file.toPath()) : null;
+            String fileName = file.getName().toLowerCase();
+            CachedFile cachedFile = new CachedFile(file, content, content != null ? content.length : length,
+                    HTTPResponse.getContentType(fileName), getCacheControl(fileName), lastModified, now);
+            cachedFile.lastAccess = accessClock.incrementAndGet();
+
+            CachedFile previous = entries.put(path, cachedFile);
+            if (previous != null) {
+                release(previous);
+            }
+            cachedBytes.addAndGet(cachedFile.getCachedBytes());
+            evictIfNeeded();
+            return cachedFile;
+        } catch (IOException e) {
+            return null; // let the caller serve (or fail on) the file directly
+        }
+    }
+
+    private void evictIfNeeded() {
+        // one thread evicts at a time; the others leave it the bytes they added, and whoever finds the budget still
+        // exceeded once it is done takes over
+        while (cachedBytes.get() > maxBytes && isEvicting.compareAndSet(false, true)) {
+            try {
+                evictLeastRecentlyUsed();
+            } finally {
+                isEvicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries kept in memory until they fit in 7/8 of the budget, from a single
+     * snapshot of the entries sorted by last access: the entries are scanned once per batch of evictions instead of
+     * once per eviction.
+     */
+    private void evictLeastRecentlyUsed() {
+        List<EvictionCandidate> candidates = new ArrayList<>();
+        for (Map.Entry<String, CachedFile> entry : entries.entrySet()) {
+            if (entry.getValue().content != null) {
+                candidates.add(new EvictionCandidate(entry.getKey(), entry.getValue()));
+            }
+        }
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.lastAccess));
+        long targetBytes = maxBytes - maxBytes / 8;
+        for (EvictionCandidate candidate : candidates) {
+            if (cachedBytes.get() <= targetBytes) {
+                return;
+            }
+            if (remove(candidate.path, candidate.cachedFile)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    private boolean remove(String path, CachedFile cachedFile) {
+        if (entries.remove(path, cachedFile)) {
+            release(cachedFile);
+            return true;
+        }
+        return false;
+    }
+
+    private void release(CachedFile cachedFile) {
+        synchronized (cachedFile) {
+            cachedFile.isRemoved = true;
+            cachedBytes.addAndGet(-cachedFile.getCachedBytes());
+            unmap(cachedFile);
+        }
+    }
+
+    /**
+     * @return the file mapped in memory, with a reference the caller must release, or null if the file is kept on
+     * the heap, is below mmapThreshold, or doesn't fit in maxMappedBytes even after releasing the other mappings.
+     */
+    MappedFile acquireMapped(CachedFile cachedFile) {
+        if (cachedFile.content != null || cachedFile.length < mmapThreshold || cachedFile.length > maxMappedBytes
+                || cachedFile.length > Integer.MAX_VALUE) {
+            return null;
+        }
+        MappedFile mappedFile = acquireExistingMapping(cachedFile);
+        if (mappedFile != null || cachedFile.isRemoved) {
+            return mappedFile;
+        }
+        // one request maps the file, the others wait for it; not under the entry's lock, which the responses and the
+        // cache need meanwhile, while the file is opened and mapped and other mappings are released to make room
+        cachedFile.mappingLock.lock();
+        try {
+            mappedFile = acquireExistingMapping(cachedFile);
+            if (mappedFile != null || cachedFile.isRemoved) {
+                return mappedFile;
+            }
+            mappedFile = map(cachedFile);
+            if (mappedFile == null) {
+                return null;
+            }
+            synchronized (cachedFile) {
+                if (cachedFile.isRemoved) { // evicted or changed while it was being mapped
+                    mappedBytes.addAndGet(-cachedFile.length);
+                    mappedFile.release();
+                    return null;
+                }
+                cachedFile.mappedFile = mappedFile;
+                mappedFile.acquire();
+                return mappedFile;
+            }
+        } finally {
+            cachedFile.mappingLock.unlock();
+        }
+    }
+
+    /**
+     * @return the file's current mapping, with a reference the caller must release, or null if it is not mapped.
+     */
+    private MappedFile acquireExistingMapping(CachedFile cachedFile) {
+        synchronized (cachedFile) {
+            if (cachedFile.isRemoved || cachedFile.mappedFile == null) {
+                return null;
+            }
+            cachedFile.mappedFile.acquire();
+            return cachedFile.mappedFile;
+        }
+    }
+
+    private MappedFile map(CachedFile cachedFile) {
+        if (!reserveMappedBytes(cachedFile)) {
+            return null;
+        }
+        try (FileChannel fileChannel = FileChannel.open(cachedFile.file.toPath(), StandardOpenOption.READ)) {
+            if (fileChannel.size() != cachedFile.length) {
+                mappedBytes.addAndGet(-cachedFile.length);
+                return null; // changed since it was validated, FileBody fails or serves it and the next get reloads it
+            }
+            return new MappedFile(fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, cachedFile.length));
+        } catch (IOException e) {
+            mappedBytes.addAndGet(-cachedFile.length);
+            return null;
+        }
+    }
+
+    /**
+     * Makes room for the file's mapping by unmapping the least recently used files, other than this one.
+     */
+    private boolean reserveMappedBytes(CachedFile cachedFile) {
+        while (mappedBytes.addAndGet(cachedFile.length) > maxMappedBytes) {
+            mappedBytes.addAndGet(-cachedFile.length);
+            if (!unmapLeastRecentlyUsed(cachedFile)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return false if no file other than except is mapped.
+     */
+    private boolean unmapLeastRecentlyUsed(CachedFile except) {
+        CachedFile leastRecentlyUsed = null;
+        for (CachedFile entry : entries.values()) {
+            if (entry != except && entry.mappedFile != null
+                    && (leastRecentlyUsed == null || entry.lastAccess < leastRecentlyUsed.lastAccess)) {
+                leastRecentlyUsed = entry;
+            }
+        }
+        if (leastRecentlyUsed == null) {
+            return false;
+        }
+        synchronized (leastRecentlyUsed) {
+            unmap(leastRecentlyUsed);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the cache's reference to the file's mapping; it is unmapped as soon as no response uses it. Called with the entry's lock held.
+     */
+    private void unmap(CachedFile cachedFile) {
+        if (cachedFile.mappedFile != null) {
+            mappedBytes.addAndGet(-cachedFile.length);
+            cachedFile.mappedFile.release();
+            cachedFile.mappedFile = null;
+        }
+    }
+
+    /**
+     * @return the gzip-compressed variant of a file kept in memory, compressed once by the first request that asks for it,
+     * or null if the file is not kept in memory or doesn't get smaller.
+     */
+    CachedFile getGzipVariant(CachedFile cachedFile) {
+        if (cachedFile.content == null) {
+            return null;
+        }
+        FutureTask<CachedFile> gzipVariant = cachedFile.gzipVariant.get();
+        if (gzipVariant == null) {
+            FutureTask<CachedFile> compression = new FutureTask<>(() -> compressGzipVariant(cachedFile));
+            if (cachedFile.gzipVariant.compareAndSet(null, compression)) {
+                compression.run(); // outside any lock, so that no carrier thread is pinned while compressing
+                evictIfNeeded();
+            }
+            gzipVariant = cachedFile.gzipVariant.get();
+        }
+        try {
+            return gzipVariant.get(); // requests arriving meanwhile wait for the compression instead of repeating it
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null; // served uncompressed
+        }
+    }
+
+    private CachedFile compressGzipVariant(CachedFile cachedFile) {
+        byte[] compressed = Compression.gzip(cachedFile.content);
+        if (compressed.length >= cachedFile.content.length) {
+            return null;
+        }
+        CachedFile gzipVariant = new CachedFile(cachedFile.file, compressed, compressed.length,
+                cachedFile.contentType, cachedFile.cacheControl, cachedFile.lastModified, cachedFile.validatedAt);
+        synchronized (cachedFile) { // counted only if release() hasn't already uncounted the entry
+            cachedFile.gzipVariantBytes = compressed.length;
+            if (!cachedFile.isRemoved) {
+                cachedBytes.addAndGet(compressed.length);
+            }
+        }
+        return gzipVariant;
+    }
+
+    /**
+     * @return the precompressed sibling of a file (its path followed by suffix, ".gz" or ".br"), or null if there is none.
+     * Whether the siblings exist is remembered with the entry and rechecked every revalidateInterval, so that files
+     * without siblings, the common case, don't cost a filesystem lookup per request.
+     */
+    CachedFile getPrecompressed(String path, CachedFile cachedFile, String suffix) {
+        long now = System.currentTimeMillis();
+        if (now - cachedFile.siblingsCheckedAt >= revalidateInterval) {
+            cachedFile.hasGzipSibling = new File(path + ".gz").isFile();
+            cachedFile.hasBrotliSibling = new File(path + ".br").isFile();
+            cachedFile.siblingsCheckedAt = now;
+        }
+        boolean hasSibling = suffix.equals(".gz") ? cachedFile.hasGzipSibling : cachedFile.hasBrotliSibling;
+        return hasSibling ? get(path + suffix) : null;
+    }
+
+    private static String getCacheControl(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot == -1 ? null : TCPServerMultithreaded.CACHE_CONTROL.get(fileName.substring(dot + 1));
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    long getCachedBytes() {
+        return cachedBytes.get();
+    }
+
+    long getMappedBytes() {
+        return mappedBytes.get();
+    }
+
+    int getSize() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileCache{entries=" + getSize() + ", bytes=" + getCachedBytes() + ", mappedBytes=" + getMappedBytes() + ", hits=" + getHits()
+                + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "}";
+    }
+
+    static class CachedFile {
+        final File file;
+        final byte[] content; // null when the file is too large to be kept in memory
+        final long length;
+        final String contentType;
+        final byte[] contentTypeLine; // the whole Content-Type header line, encoded once for every response
+        final String cacheControl;
+        final long lastModified;
+        final String lastModifiedHeader;
+        final String etag;
+        volatile long validatedAt;
+        volatile long lastAccess;
+        volatile long siblingsCheckedAt = Long.MIN_VALUE / 2;
+        volatile boolean hasGzipSibling;
+        volatile boolean hasBrotliSibling;
+        // set once, by the first request asking for it
+        private final AtomicReference<FutureTask<CachedFile>> gzipVariant = new AtomicReference<>();
+        private final ReentrantLock mappingLock = new ReentrantLock(); // held while the file is being mapped
+        // guarded by the entry's lock
+        private long gzipVariantBytes;
+        private volatile MappedFile mappedFile;
+        private volatile boolean isRemoved;
+
+        CachedFile(File file, byte[] content, long length, String contentType, String cacheControl, long lastModified, long validatedAt) {
+            this.file = file;
+            this.content = content;
+            this.length = length;
+            this.contentType = contentType;
+            this.contentTypeLine = HeaderWriter.encodeLine("Content-Type: " + contentType);
+            this.cacheControl = cacheControl;
+            this.lastModified = lastModified;
+            this.lastModifiedHeader = HTTP_DATE_FORMAT.format(Instant.ofEpochMilli(lastModified));
+            this.etag = computeEtag(content, length, lastModified);
+            this.validatedAt = validatedAt;
+        }
+
+        long getCachedBytes() {
+            return (content != null ? content.length : 0) + gzipVariantBytes;
+        }
+
+        /**
+         * Files kept in memory get a checksum of their content; larger ones are identified by modification time and size,
+         * so that no file is ever read only to compute its ETag.
+         */
+        private static String computeEtag(byte[] content, long length, long lastModified) {
+            if (content != null) {
+                CRC32C checksum = new CRC32C();
+                checksum.update(content);
+                return "\"" + Long.toHexString(checksum.getValue()) + "-" + Long.toHexString(length) + "\"";
+            }
+            return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        }
+    }
+
+    /**
+     * An entry as it was when an eviction started; lastAccess is copied so that the sort order can't change under it.
+     */
+    private static class EvictionCandidate {
+        final String path;
+        final CachedFile cachedFile;
+        final long lastAccess;
+
+        EvictionCandidate(String path, CachedFile cachedFile) {
+            this.path = path;
+            this.cachedFile = cachedFile;
+            this.lastAccess = cachedFile.lastAccess;
+        }
+    }
+
+    /**
+     * A read-only mapping of a file version, shared by the responses sending it. The cache holds one reference
+     * while the mapping is cached and every response holds one while it is being written; the last release unmaps it.
+     */
+    static class MappedFile {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            // there is no public API to unmap a buffer before it is garbage collected; looked up reflectively so that,
+            // where it isn't available, mappings are simply left for the garbage collector
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                unsafe = theUnsafe.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                System.err.println("Mapped files can't be unmapped explicitly on this JVM, leaving them to the garbage collector");
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger references = new AtomicInteger(1); // the cache's own reference
+
+        MappedFile(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * @return a buffer over [offset, offset + length) of the file, with its own position and limit.
+         */
+        ByteBuffer slice(long offset, long length) {
+            return buffer.duplicate().position((int) offset).limit((int) (offset + length));
+        }
+
+        void acquire() {
+            references.incrementAndGet(); // always called with the cache's reference still held
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0 && INVOKE_CLEANER != null) {
+                try {
+                    INVOKE_CLEANER.invoke(UNSAFE, buffer);
+                } catch (ReflectiveOperationException e) {
+                    System.err.println("Error unmapping file - " + e.getMessage());
+                }
+            }
+        }
+    }
+}
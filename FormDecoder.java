@@ -0,0 +1,114 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Incremental application/x-www-form-urlencoded decoder: decode() is called with each part of a body as it is read
+ * from the socket, and every name=value pair is put into the parameter map as soon as it is complete, so a form body
+ * is never held in memory as a whole. '+' and percent-escapes are decoded (as UTF-8); a malformed escape is kept as it
+ * was. Only the pair being decoded is buffered, in a byte array that grows up to the size of its longest name or value.
+ */
+class FormDecoder {
+    private static final int INITIAL_TOKEN_SIZE = 64;
+
+    private final Map<String, String> parameters;
+    private byte[] token = new byte[INITIAL_TOKEN_SIZE];
+    private int length;
+    private String name; // null while the name of the current pair is being read
+    private int escapeDigits = -1; // hex digits of the current escape read so far, -1 outside an escape
+    private byte escapeFirstDigit;
+
+    FormDecoder(Map<String, String> parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Decodes a whole form or query string, bytes[from, to), into parameters.
+     */
+    static void decode(byte[] bytes, int from, int to, Map<String, String> parameters) {
+        FormDecoder decoder = new FormDecoder(parameters);
+        decoder.decode(bytes, from, to);
+        decoder.finish();
+    }
+
+    void decode(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (escapeDigits != -1) {
+                int digit = Character.digit(b, 16);
+                if (digit != -1) {
+                    if (escapeDigits == 0) {
+                        escapeFirstDigit = b;
+                        escapeDigits = 1;
+                    } else {
+                        append((byte) (Character.digit(escapeFirstDigit, 16) << 4 | digit));
+                        escapeDigits = -1;
+                    }
+                    continue;
+                }
+                flushEscape();
+            }
+            switch (b) {
+                case '&':
+                    endPair();
+                    break;
+                case '=':
+                    if (name == null) {
+                        name = takeToken();
+                    } else {
+                        append(b); // part of the value
+                    }
+                    break;
+                case '+':
+                    append((byte) ' ');
+                    break;
+                case '%':
+                    escapeDigits = 0;
+                    break;
+                default:
+                    append(b);
+            }
+        }
+    }
+
+    /**
+     * Ends the input, completing the last pair.
+     */
+    void finish() {
+        flushEscape();
+        endPair();
+    }
+
+    private void endPair() {
+        if (name != null) {
+            parameters.put(name, takeToken());
+            name = null;
+        } else if (length > 0) {
+            parameters.put(takeToken(), ""); // a name without '='
+        }
+    }
+
+    private String takeToken() {
+        String value = new String(token, 0, length, StandardCharsets.UTF_8);
+        length = 0;
+        return value;
+    }
+
+    private void flushEscape() {
+        if (escapeDigits == -1) {
+            return;
+        }
+        append((byte) '%');
+        if (escapeDigits == 1) {
+            append(escapeFirstDigit);
+        }
+        escapeDigits = -1;
+    }
+
+    private void append(byte b) {
+        if (length == token.length) {
+            token = Arrays.copyOf(token, token.length * 2);
+        }
+        token[length++] = b;
+    }
+}
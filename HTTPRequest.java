@@ -1,114 +1,229 @@
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Objects;
 
 enum RequestType {
-    GET, POST, HEAD, TRACE
+    GET, POST, HEAD, TRACE;
+
+    private static final RequestType[] VALUES = values();
+    private static final byte[][] NAMES = new byte[VALUES.length][];
+
+    static {
+        for (RequestType type : VALUES) {
+            NAMES[type.ordinal()] = type.name().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * @return the request type spelled by bytes[from, to), or null if it isn't one we implement.
+     */
+    static RequestType fromBytes(byte[] bytes, int from, int to) {
+        for (RequestType type : VALUES) {
+            if (Arrays.equals(NAMES[type.ordinal()], 0, NAMES[type.ordinal()].length, bytes, from, to)) {
+                return type;
+            }
+        }
+        return null;
+    }
 }
 
 public class HTTPRequest {
+    private static final int INITIAL_BODY_SIZE = 8192;
+    private static final String FORM_CONTENT_TYPE = "application/x-www-form-urlencoded";
+
     private RequestType type;
-    private final String requestString;
+    private String httpVersion;
+    private String requestString;
     private String requestedResource;
     private boolean isImage;
     private boolean isValid = true;
     private boolean isImplemented = true;
     private boolean isTimedOut = false;
+    private boolean isBodyTooLarge;
+    private boolean isRateLimited;
+    private boolean isHttp2;
     private final Map<String, String> parameters = new HashMap<>();
     private final Map<String, String> headers = new HashMap<>();
     private String body = "";
 
-    public HTTPRequest(String httpRequest) {
-        this.requestString = httpRequest;
-        parseRequest(httpRequest);
-    }
+    // set when the request was read by HTTPRequestParser: the raw bytes of the header block, and the start/end offsets
+    // of every line (the request line first). Headers, parameters and strings are decoded from them on demand.
+    private final byte[] rawRequest;
+    private final int[] lineOffsets;
+    private final int lineCount;
+    private int queryFrom = -1;
+    private int queryTo;
+    // the body, streamed in by HTTPRequestParser: a form is decoded into parameters as it arrives, any other body is kept
+    private FormDecoder formDecoder;
+    private byte[] bodyBytes;
+    private int bodyLength;
+    private boolean areHeadersDecoded = true;
+    private boolean areParametersDecoded = true;
 
     public HTTPRequest(boolean isTimedOut) {
         this.isTimedOut = isTimedOut;
         this.requestString = "";
+        this.rawRequest = null;
+        this.lineOffsets = null;
+        this.lineCount = 0;
+        this.isHttp2 = false;
     }
 
-    private void parseRequest(String httpRequest) {
-        if (httpRequest.trim().isEmpty()) {
-            this.isValid = false;
-            return;
-        }
-        String[] parts = httpRequest.split("\r\n\r\n", 2);
-        String[] requestLines = parts[0].split("\r\n");
-        String requestLine = requestLines[0];
-        String[] headerLines = Arrays.copyOfRange(requestLines, 1, requestLines.length);
-
-        validateAndParseRequestLine(requestLine);
-        parseHeaders(headerLines);
+    /**
+     * @return a request that gets 400 Bad Request, for input that can't be parsed into one: a malformed or oversized
+     * header block.
+     */
+    static HTTPRequest invalid() {
+        HTTPRequest request = new HTTPRequest(false);
+        request.isValid = false;
+        return request;
+    }
 
-        if (parts.length > 1 && headers.containsKey("Content-Length")) {
-            this.body = parts[1];
-        }
-        if (!this.body.isEmpty() && (this.type == RequestType.POST || this.type == RequestType.GET)) {
-                parseParameters(this.body);
-            }
-        }
+    /**
+     * Used by HTTPRequestParser: lineOffsets holds the [start, end) offsets of lineCount lines in rawRequest,
+     * which holds the header block. The body, if any, follows through startBody, appendBody and endBody.
+     */
+    HTTPRequest(byte[] rawRequest, int[] lineOffsets, int lineCount) {
+        this(rawRequest, lineOffsets, lineCount, false);
+    }
 
-    private void validateAndParseRequestLine(String requestLine) {
-        String[] parts = requestLine.split(" ", -1);
+    /**
+     * @param isHttp2 true for the request of an HTTP/2 stream, whose header fields Http2Connection wrote out as an
+     *                HTTP/1.x header block with the version HTTP/2.0 in the request line
+     */
+    HTTPRequest(byte[] rawRequest, int[] lineOffsets, int lineCount, boolean isHttp2) {
+        this.rawRequest = rawRequest;
+        this.lineOffsets = lineOffsets;
+        this.lineCount = lineCount;
+        this.isHttp2 = isHttp2;
+        this.areHeadersDecoded = false;
+        this.areParametersDecoded = false;
+        parseRequestLine(lineOffsets[0], lineOffsets[1]);
+    }
 
-        if (parts.length != 3) {
+    private void parseRequestLine(int from, int to) {
+        int firstSpace = indexOf(rawRequest, (byte) ' ', from, to);
+        int secondSpace = firstSpace == -1 ? -1 : indexOf(rawRequest, (byte) ' ', firstSpace + 1, to);
+        if (secondSpace == -1 || indexOf(rawRequest, (byte) ' ', secondSpace + 1, to) != -1) {
             this.isValid = false;
             return;
         }
-        if (!"HTTP/1.0".equals(parts[2]) && !"HTTP/1.1".equals(parts[2])) {
+        if (isHttp2) {
+            this.httpVersion = "HTTP/2.0";
+        } else if (to - secondSpace - 1 != 8 || !startsWith(rawRequest, secondSpace + 1, "HTTP/1.")
+                || (rawRequest[to - 1] != '0' && rawRequest[to - 1] != '1')) {
             this.isValid = false;
             return;
+        } else {
+            this.httpVersion = rawRequest[to - 1] == '1' ? "HTTP/1.1" : "HTTP/1.0";
         }
-        try {
-            this.type = RequestType.valueOf(parts[0]);
-        } catch (IllegalArgumentException e) {
+        this.type = RequestType.fromBytes(rawRequest, from, firstSpace);
+        if (this.type == null) {
             this.isImplemented = false;
             return;
         }
 
-        String url = parts[1];
-        url = url.replaceAll("/\\.\\./", "/");
-        this.requestedResource = (url.contains("?"))
-                ? (Objects.equals(url.split("\\?")[0], "/") ? TCPServerMultithreaded.DEFAULT_PAGE : url.split("\\?")[0].substring(1))
-                : (Objects.equals(url, "/") ? TCPServerMultithreaded.DEFAULT_PAGE : url.substring(1));
-        if (url.contains("?")) {
-            parseParameters(url.split("\\?")[1]);
+        int queryStart = indexOf(rawRequest, (byte) '?', firstSpace + 1, secondSpace);
+        String resource = normalizePath(rawRequest, firstSpace + 1, queryStart == -1 ? secondSpace : queryStart);
+        if (resource == null) {
+            this.isValid = false;
+            return;
+        }
+        this.requestedResource = resource.isEmpty() ? TCPServerMultithreaded.DEFAULT_PAGE : resource;
+        if (queryStart != -1) {
+            this.queryFrom = queryStart + 1;
+            this.queryTo = secondSpace;
         }
 
-        this.isImage = requestedResource.matches(".*\\.(jpg|bmp|gif)$");
+        this.isImage = requestedResource.endsWith(".jpg") || requestedResource.endsWith(".bmp") || requestedResource.endsWith(".gif");
     }
 
-    private void parseHeaders(String[] lines) {
-        for (String line : lines) {
-            String[] headerParts = line.split(": ", 2);
-            if (headerParts.length == 2) {
-                this.headers.put(headerParts[0], headerParts[1]);
-            }
+    /**
+     * Called by HTTPRequestParser once the header block is complete and the request has a body, of contentLength bytes
+     * or -1 when it is chunked. A form posted to a GET or POST request is decoded into the parameters while it is read;
+     * any other body is kept as it is.
+     */
+    void startBody(long contentLength) {
+        if ((type == RequestType.POST || type == RequestType.GET) && isFormContent()) {
+            formDecoder = new FormDecoder(parameters);
+        } else {
+            // grown as the body arrives rather than trusting Content-Length up front
+            bodyBytes = new byte[(int) Math.min(contentLength < 0 ? INITIAL_BODY_SIZE : contentLength, INITIAL_BODY_SIZE)];
         }
     }
 
-    private void parseParameters(String paramString) {
-        String[] pairs = paramString.split("&");
-        for (String pair : pairs) {
-            String[] keyValue = pair.split("=", 2);
-            if (keyValue.length > 1) {
-                this.parameters.put(keyValue[0], keyValue[1]);
-            } else {
-                this.parameters.put(keyValue[0], "");
-            }
+    void appendBody(byte[] bytes, int from, int to) {
+        if (formDecoder != null) {
+            formDecoder.decode(bytes, from, to);
+            return;
+        }
+        if (bodyLength + (to - from) > bodyBytes.length) {
+            bodyBytes = Arrays.copyOf(bodyBytes, Math.max(bodyBytes.length * 2, bodyLength + (to - from)));
+        }
+        System.arraycopy(bytes, from, bodyBytes, bodyLength, to - from);
+        bodyLength += to - from;
+    }
+
+    void endBody() {
+        if (formDecoder != null) {
+            formDecoder.finish();
+            formDecoder = null;
         }
     }
 
+    /**
+     * Marks a request whose body is larger than maxBodySize; it is answered with 413 and the connection is closed.
+     */
+    void setBodyTooLarge() {
+        this.isBodyTooLarge = true;
+    }
+
+    /**
+     * Marks a request over its client's request rate; it is answered with 429 and the connection is closed.
+     */
+    void setRateLimited() {
+        this.isRateLimited = true;
+    }
+
+    /**
+     * Marks an HTTP/1.1 request that upgraded its connection to h2c: it becomes stream 1 and is answered in frames.
+     */
+    void setUpgradedToHttp2() {
+        this.isHttp2 = true;
+    }
+
+    private boolean isFormContent() {
+        String contentType = getHeader("Content-Type");
+        // a body without a Content-Type has always been read as a form
+        return contentType == null || contentType.regionMatches(true, 0, FORM_CONTENT_TYPE, 0, FORM_CONTENT_TYPE.length());
+    }
+
     public RequestType getType() {
         return type;
     }
 
+    /**
+     * @return the request as received, with its body unless the body was a form, which is not kept once decoded.
+     */
     public String getRequestString() {
+        if (requestString == null) {
+            requestString = new String(rawRequest, StandardCharsets.UTF_8) + getBody();
+        }
         return requestString;
     }
 
+    /**
+     * @return the first line of the request, e.g. "GET /index.html HTTP/1.1", for logging.
+     */
+    public String getRequestLine() {
+        if (rawRequest != null) {
+            return new String(rawRequest, lineOffsets[0], lineOffsets[1] - lineOffsets[0], StandardCharsets.ISO_8859_1);
+        }
+        int lineEnd = requestString.indexOf("\r\n");
+        return lineEnd == -1 ? requestString : requestString.substring(0, lineEnd);
+    }
+
     public String getRequestedResource() {
         return requestedResource;
     }
@@ -118,6 +233,18 @@ public class HTTPRequest {
     }
 
     public Map<String, String> getParameters() {
+        if (!areParametersDecoded) {
+            areParametersDecoded = true;
+            if (queryFrom != -1) {
+                // the body's parameters, decoded as it arrived, take precedence over those of the query
+                Map<String, String> bodyParameters = parameters.isEmpty() ? null : new HashMap<>(parameters);
+                parameters.clear();
+                FormDecoder.decode(rawRequest, queryFrom, queryTo, parameters);
+                if (bodyParameters != null) {
+                    parameters.putAll(bodyParameters);
+                }
+            }
+        }
         return parameters;
     }
 
@@ -133,11 +260,235 @@ public class HTTPRequest {
         return isImplemented;
     }
 
+    public boolean isBodyTooLarge() {
+        return isBodyTooLarge;
+    }
+
+    public boolean isRateLimited() {
+        return isRateLimited;
+    }
+
+    /**
+     * @return true for the request of an HTTP/2 stream, which has its own framing: no chunked encoding, no
+     * connection headers.
+     */
+    public boolean isHttp2() {
+        return isHttp2;
+    }
+
+    public String getHeader(String name) {
+        if (!areHeadersDecoded) {
+            // looked up straight in the raw bytes, so that asking for one header doesn't decode all of them
+            for (int line = 1; line < lineCount; line++) {
+                int from = lineOffsets[2 * line];
+                int colon = indexOf(rawRequest, (byte) ':', from, lineOffsets[2 * line + 1]);
+                if (colon - from == name.length() && equalsIgnoreCase(rawRequest, from, name)) {
+                    return decodeHeaderValue(colon, lineOffsets[2 * line + 1]);
+                }
+            }
+            return null;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the values of every header line named name, joined with ", " as for a header sent as a list (RFC 7230
+     * 3.2.2), or null if there is none; for the headers whose repeats matter, such as Content-Length.
+     */
+    public String getCombinedHeader(String name) {
+        if (areHeadersDecoded) {
+            return getHeader(name); // a repeated header is not kept in the map
+        }
+        String combined = null;
+        for (int line = 1; line < lineCount; line++) {
+            int from = lineOffsets[2 * line];
+            int colon = indexOf(rawRequest, (byte) ':', from, lineOffsets[2 * line + 1]);
+            if (colon - from == name.length() && equalsIgnoreCase(rawRequest, from, name)) {
+                String value = decodeHeaderValue(colon, lineOffsets[2 * line + 1]);
+                combined = combined == null ? value : combined + ", " + value;
+            }
+        }
+        return combined;
+    }
+
+    public String getHttpVersion() {
+        return httpVersion;
+    }
+
+    public boolean isKeepAlive() {
+        if (!isValid || isTimedOut || isBodyTooLarge || isRateLimited || httpVersion == null) {
+            return false;
+        }
+        String connection = getHeader("Connection");
+        if (connection != null) {
+            if (connection.equalsIgnoreCase("close")) {
+                return false;
+            }
+            if (connection.equalsIgnoreCase("keep-alive")) {
+                return true;
+            }
+        }
+        // HTTP/1.1 connections are persistent by default, HTTP/1.0 ones are not
+        return "HTTP/1.1".equals(httpVersion);
+    }
+
     public Map<String, String> getHeaders() {
+        if (!areHeadersDecoded) {
+            areHeadersDecoded = true;
+            for (int line = 1; line < lineCount; line++) {
+                int from = lineOffsets[2 * line];
+                int colon = indexOf(rawRequest, (byte) ':', from, lineOffsets[2 * line + 1]);
+                if (colon != -1) {
+                    headers.put(new String(rawRequest, from, colon - from, StandardCharsets.ISO_8859_1),
+                            decodeHeaderValue(colon, lineOffsets[2 * line + 1]));
+                }
+            }
+        }
         return headers;
     }
 
     public String getBody() {
+        if (bodyLength > 0 && body.isEmpty()) {
+            body = new String(bodyBytes, 0, bodyLength, StandardCharsets.UTF_8);
+        }
         return body;
     }
+
+    private String decodeHeaderValue(int colon, int to) {
+        int from = colon + 1;
+        while (from < to && (rawRequest[from] == ' ' || rawRequest[from] == '\t')) {
+            from++;
+        }
+        return new String(rawRequest, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes and normalizes the path of a request target, bytes[from, to), in a single pass: percent-escapes are
+     * decoded, empty and "." segments dropped and ".." segments remove the previous one, also when they are
+     * percent-encoded. Nothing is copied while the path is already in normal form, the usual case, so that only
+     * the resulting String is allocated.
+     *
+     * @return the path relative to the root without its leading '/' (empty for the root itself), or null if the
+     * path is invalid: not starting with '/', climbing above the root, holding a backslash, a control character,
+     * an encoded '/', or a malformed escape.
+     */
+    static String normalizePath(byte[] bytes, int from, int to) {
+        if (from >= to || bytes[from] != '/') {
+            return null;
+        }
+        byte[] normalized = null; // stays null while the output is bytes[from, from + length) itself
+        int length = 1;
+        int segmentStart = 1;
+        for (int i = from + 1; i <= to; i++) {
+            boolean isEnd = i == to;
+            if (isEnd || bytes[i] == '/') {
+                int segmentLength = length - segmentStart;
+                if (segmentLength == 0 && isEnd) {
+                    break;
+                }
+                int dots = countDotSegment(normalized != null ? normalized : bytes, normalized != null ? 0 : from,
+                        segmentStart, segmentLength);
+                if (segmentLength > 0 && dots == 0) {
+                    if (!isEnd) {
+                        if (normalized != null) {
+                            normalized[length] = '/';
+                        }
+                        length++;
+                    }
+                } else {
+                    if (normalized == null) {
+                        normalized = Arrays.copyOfRange(bytes, from, to);
+                    }
+                    if (dots == 1) {
+                        length = segmentStart;
+                    } else if (dots == 2) {
+                        if (segmentStart == 1) {
+                            return null; // above the root
+                        }
+                        int previous = segmentStart - 2;
+                        while (normalized[previous] != '/') {
+                            previous--;
+                        }
+                        length = previous + 1;
+                    } // an empty segment ("//") is dropped
+                }
+                segmentStart = length;
+                continue;
+            }
+
+            byte value = bytes[i];
+            if (value == '%') {
+                int high = i + 2 < to ? Character.digit(bytes[i + 1], 16) : -1;
+                int low = i + 2 < to ? Character.digit(bytes[i + 2], 16) : -1;
+                if (high == -1 || low == -1) {
+                    return null;
+                }
+                value = (byte) (high << 4 | low);
+                if (value == '/') {
+                    return null;
+                }
+                if (normalized == null) {
+                    normalized = Arrays.copyOfRange(bytes, from, to);
+                }
+                i += 2;
+            }
+            if (value == '\\' || (value >= 0 && value < 0x20) || value == 0x7f) {
+                return null;
+            }
+            if (normalized != null) {
+                normalized[length] = value;
+            }
+            length++;
+        }
+        return normalized != null
+                ? new String(normalized, 1, length - 1, StandardCharsets.UTF_8)
+                : new String(bytes, from + 1, length - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return 1 for a "." segment, 2 for "..", 0 otherwise.
+     */
+    private static int countDotSegment(byte[] bytes, int offset, int segmentStart, int segmentLength) {
+        if (segmentLength == 0 || segmentLength > 2) {
+            return 0;
+        }
+        for (int i = 0; i < segmentLength; i++) {
+            if (bytes[offset + segmentStart + i] != '.') {
+                return 0;
+            }
+        }
+        return segmentLength;
+    }
+
+    private static int indexOf(byte[] bytes, byte value, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] bytes, int from, String prefix) {
+        for (int i = 0; i < prefix.length(); i++) {
+            if (bytes[from + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean equalsIgnoreCase(byte[] bytes, int from, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.toLowerCase((char) bytes[from + i]) != Character.toLowerCase(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
@@ -0,0 +1,394 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Incremental HTTP/1.x request parser working directly on the bytes read from the socket.
+ * parse() is called every time more bytes arrive; it remembers how far it got, so a request split over many reads
+ * is scanned only once. Lines are recorded as offsets, and the header block is copied out of the buffer only once it is
+ * complete, into a single array that HTTPRequest decodes lazily.
+ * The body is then streamed: every call hands the body bytes read so far to the request (which decodes a form right
+ * away) and consumes them from the buffer, so the buffer never has to hold a whole body. Bodies are framed by
+ * Content-Length or by Transfer-Encoding: chunked, and one larger than maxBodySize gets 413 as soon as that is known.
+ * One parser is used per connection, by both the blocking and the non-blocking engine.
+ */
+class HTTPRequestParser {
+    static final int MAX_HEADER_SIZE = 64 * 1024;
+    static final int MAX_LINES = 101; // the request line and up to 100 headers
+    private static final int MAX_CHUNK_LINE_SIZE = 4096; // a chunk size line with its extensions, or a trailer line
+
+    // states of a chunked body
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_EXTENSION = 1;
+    private static final int CHUNK_DATA = 2;
+    private static final int CHUNK_DATA_END = 3; // the CRLF after the data of a chunk
+    private static final int TRAILER = 4;
+    private static final int BODY_END = 5;
+
+    private final int[] lineOffsets = new int[2 * MAX_LINES];
+    private int lineCount;
+    private int lineStart;
+    private int scanned; // bytes of the current request already scanned for line ends
+    private int headerLength = -1;
+    private boolean isTooManyLines; // a line past MAX_LINES was seen before the end of the header block
+
+    private HTTPRequest pendingRequest; // set while its body is being read
+    private boolean isChunked;
+    private long remaining; // bytes left in the body (Content-Length) or in the current chunk
+    private long bodySize; // bytes of body read so far
+    private int chunkState;
+    private int chunkLineLength; // bytes of the current chunk size or trailer line, CR excluded
+    private int trailerLines; // trailer fields read so far, limited like header lines
+    private boolean isLineEnding; // a CR was just read in a chunk size or trailer line
+    private boolean isChunkTooLarge;
+    private boolean isContinueExpected;
+
+    /**
+     * Parses the request starting at the buffer's position (the buffer is in read mode).
+     * Header bytes are left in the buffer until the header block is complete, body bytes are consumed as they arrive.
+     *
+     * @return the request once all of it has been read, with the buffer advanced past it, or null if more bytes are needed.
+     */
+    HTTPRequest parse(ByteBuffer buffer) {
+        if (headerLength == -1) {
+            if (!scanHeaderBlock(buffer)) {
+                if (scanned > MAX_HEADER_SIZE || isTooManyLines) {
+                    return rejectRequest(buffer);
+                }
+                return null;
+            }
+            if (headerLength > MAX_HEADER_SIZE) { // complete in a buffer larger than the limit
+                return rejectRequest(buffer);
+            }
+            HTTPRequest httpRequest = readHeaderBlock(buffer);
+            if (httpRequest != null) {
+                return httpRequest;
+            }
+        }
+        return readBody(buffer);
+    }
+
+    /**
+     * @return true while the header block has been read and the body is still incomplete.
+     */
+    boolean isReadingBody() {
+        return pendingRequest != null;
+    }
+
+    /**
+     * @return how many bytes the buffer must be able to hold for the current request to go on.
+     */
+    int getRequiredCapacity() {
+        return headerLength == -1 ? scanned + 1 : 1; // body bytes are consumed as they arrive
+    }
+
+    /**
+     * @return the bytes still expected for a body framed by Content-Length, or -1 for a chunked one.
+     */
+    long getMissingBodyBytes() {
+        return isChunked ? -1 : remaining;
+    }
+
+    /**
+     * @return true once after the header block of a request sending 'Expect: 100-continue', whose body is wanted:
+     * the caller then sends HeaderWriter.CONTINUE so that the client starts sending it.
+     */
+    boolean takeContinueExpected() {
+        boolean isExpected = isContinueExpected;
+        isContinueExpected = false;
+        return isExpected;
+    }
+
+    private boolean scanHeaderBlock(ByteBuffer buffer) {
+        int start = buffer.position();
+        int available = buffer.remaining();
+
+        for (int i = Math.max(scanned, 1); i < available; i++) {
+            if (buffer.get(start + i) != '\n' || buffer.get(start + i - 1) != '\r') {
+                continue;
+            }
+            int lineEnd = i - 1;
+            if (lineEnd == lineStart && lineCount == 0) {
+                // RFC 7230 3.5: ignore empty lines before the request line, e.g. a stray CRLF after a pipelined request
+                buffer.position(start + i + 1);
+                start = buffer.position();
+                available = buffer.remaining();
+                lineStart = 0;
+                i = 0;
+                continue;
+            }
+            if (lineEnd == lineStart) { // the empty line closing the header block
+                headerLength = i + 1;
+                scanned = headerLength;
+                return true;
+            }
+            if (lineCount == MAX_LINES) {
+                isTooManyLines = true;
+                return false;
+            }
+            lineOffsets[2 * lineCount] = lineStart;
+            lineOffsets[2 * lineCount + 1] = lineEnd;
+            lineCount++;
+            lineStart = i + 1;
+        }
+        scanned = Math.max(available, 1);
+        return false;
+    }
+
+    /**
+     * Copies the complete header block out of the buffer and works out how the body is framed.
+     *
+     * @return the request if it is complete or rejected already, null if its body is to be read.
+     */
+    private HTTPRequest readHeaderBlock(ByteBuffer buffer) {
+        byte[] rawRequest = new byte[headerLength];
+        buffer.get(rawRequest);
+        HTTPRequest httpRequest = new HTTPRequest(rawRequest, Arrays.copyOf(lineOffsets, 2 * lineCount), lineCount);
+        if (!httpRequest.isValid()) {
+            buffer.position(buffer.limit()); // answered with 400 and closed, whatever body it has is dropped
+            reset();
+            return httpRequest;
+        }
+
+        String transferEncoding = httpRequest.getCombinedHeader("Transfer-Encoding");
+        String contentLengthValue = httpRequest.getCombinedHeader("Content-Length");
+        long contentLength = 0;
+        if (transferEncoding != null) {
+            // RFC 7230 3.3.3: chunked must be the final coding, and a Content-Length next to it is a smuggling attempt
+            if (!transferEncoding.trim().equalsIgnoreCase("chunked") || contentLengthValue != null) {
+                return rejectRequest(buffer);
+            }
+            isChunked = true;
+        } else if (contentLengthValue != null) {
+            contentLength = parseContentLength(contentLengthValue);
+            if (contentLength < 0) {
+                return rejectRequest(buffer);
+            }
+            if (contentLength > TCPServerMultithreaded.MAX_BODY_SIZE) {
+                return rejectBody(buffer, httpRequest);
+            }
+        }
+        if (!isChunked && contentLength == 0) {
+            reset();
+            return httpRequest;
+        }
+
+        httpRequest.startBody(isChunked ? -1 : contentLength);
+        pendingRequest = httpRequest;
+        remaining = contentLength;
+        bodySize = 0;
+        String expect = httpRequest.getHeader("Expect");
+        isContinueExpected = expect != null && expect.equalsIgnoreCase("100-continue")
+                && "HTTP/1.1".equals(httpRequest.getHttpVersion());
+        return null;
+    }
+
+    private HTTPRequest readBody(ByteBuffer buffer) {
+        byte[] bytes = buffer.array();
+        int position = buffer.arrayOffset() + buffer.position();
+        int limit = buffer.arrayOffset() + buffer.limit();
+        boolean isComplete;
+        if (isChunked) {
+            position = readChunks(bytes, position, limit);
+            if (position == -1) {
+                return rejectRequest(buffer);
+            }
+            if (isChunkTooLarge) {
+                return rejectBody(buffer, pendingRequest);
+            }
+            isComplete = chunkState == BODY_END;
+        } else {
+            int length = (int) Math.min(remaining, limit - position);
+            pendingRequest.appendBody(bytes, position, position + length);
+            position += length;
+            remaining -= length;
+            isComplete = remaining == 0;
+        }
+        buffer.position(position - buffer.arrayOffset());
+        if (!isComplete) {
+            return null;
+        }
+
+        HTTPRequest httpRequest = pendingRequest;
+        httpRequest.endBody();
+        reset();
+        return httpRequest;
+    }
+
+    /**
+     * Decodes chunked framing from bytes[position, limit), handing the chunk data to the pending request.
+     * Stops early at the end of the body, what follows being the next request, or as soon as a chunk size takes
+     * the body over maxBodySize, setting isChunkTooLarge.
+     *
+     * @return where it stopped, or -1 if the framing is malformed.
+     */
+    private int readChunks(byte[] bytes, int position, int limit) {
+        while (position < limit && chunkState != BODY_END) {
+            if (chunkState == CHUNK_DATA) {
+                int length = (int) Math.min(remaining, limit - position);
+                pendingRequest.appendBody(bytes, position, position + length);
+                position += length;
+                bodySize += length;
+                remaining -= length;
+                if (remaining == 0) {
+                    chunkState = CHUNK_DATA_END;
+                }
+                continue;
+            }
+
+            byte b = bytes[position++];
+            if (isLineEnding) {
+                isLineEnding = false;
+                if (b != '\n' || !endChunkLine()) {
+                    return -1;
+                }
+                if (isChunkTooLarge) {
+                    return position;
+                }
+                continue;
+            }
+            if (b == '\r') {
+                isLineEnding = true;
+                continue;
+            }
+            if (++chunkLineLength > MAX_CHUNK_LINE_SIZE) {
+                return -1;
+            }
+            if (chunkState == CHUNK_SIZE) {
+                int digit = Character.digit(b, 16);
+                if (digit != -1) {
+                    if (remaining > TCPServerMultithreaded.MAX_BODY_SIZE) {
+                        isChunkTooLarge = true; // before the size can overflow
+                        return position;
+                    }
+                    remaining = remaining * 16 + digit;
+                } else if ((b == ';' || b == ' ' || b == '\t') && chunkLineLength > 1) {
+                    chunkState = CHUNK_EXTENSION;
+                } else {
+                    return -1;
+                }
+            } else if (chunkState == CHUNK_DATA_END) {
+                return -1; // more data than the chunk size announced
+            } // extensions and trailer fields are ignored
+        }
+        return position;
+    }
+
+    /**
+     * Moves on once a chunk size line, the CRLF after chunk data or a trailer line has been read.
+     *
+     * @return false if the line was malformed.
+     */
+    private boolean endChunkLine() {
+        switch (chunkState) {
+            case CHUNK_SIZE:
+            case CHUNK_EXTENSION:
+                if (chunkLineLength == 0) {
+                    return false; // no size
+                }
+                if (bodySize + remaining > TCPServerMultithreaded.MAX_BODY_SIZE) {
+                    isChunkTooLarge = true;
+                }
+                chunkState = remaining == 0 ? TRAILER : CHUNK_DATA; // the last chunk has size 0
+                break;
+            case CHUNK_DATA_END:
+                if (chunkLineLength != 0) {
+                    return false;
+                }
+                chunkState = CHUNK_SIZE;
+                break;
+            case TRAILER:
+                if (chunkLineLength == 0) {
+                    chunkState = BODY_END; // the empty line ending the trailer
+                } else if (++trailerLines >= MAX_LINES) {
+                    return false; // more trailer fields than a header block may have
+                }
+                break;
+            default:
+                return false;
+        }
+        chunkLineLength = 0;
+        return true;
+    }
+
+    /**
+     * @return the value of a Content-Length header, combined from all its lines, or -1 if it is not a number or it
+     * holds different ones (RFC 7230 3.3.2: a request framed two ways is a smuggling attempt). Identical values, as
+     * a list or on separate lines, count as one.
+     */
+    static long parseContentLength(String value) {
+        long contentLength = -1;
+        int from = 0;
+        while (from <= value.length()) {
+            int to = value.indexOf(',', from);
+            if (to == -1) {
+                to = value.length();
+            }
+            long element = parseDigits(value, from, to);
+            if (element < 0 || (contentLength >= 0 && element != contentLength)) {
+                return -1;
+            }
+            contentLength = element;
+            from = to + 1;
+        }
+        return contentLength;
+    }
+
+    /**
+     * @return the number written in value[from, to) between optional spaces and tabs, or -1 if there is anything
+     * else or it is over Integer.MAX_VALUE.
+     */
+    private static long parseDigits(String value, int from, int to) {
+        while (from < to && (value.charAt(from) == ' ' || value.charAt(from) == '\t')) {
+            from++;
+        }
+        while (to > from && (value.charAt(to - 1) == ' ' || value.charAt(to - 1) == '\t')) {
+            to--;
+        }
+        if (from == to) {
+            return -1;
+        }
+        long number = 0;
+        for (int i = from; i < to; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            number = number * 10 + (c - '0');
+            if (number > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return number;
+    }
+
+    private HTTPRequest rejectRequest(ByteBuffer buffer) {
+        buffer.position(buffer.limit()); // the connection is closed after the 400, the rest of the input is dropped
+        reset();
+        return HTTPRequest.invalid();
+    }
+
+    private HTTPRequest rejectBody(ByteBuffer buffer, HTTPRequest httpRequest) {
+        buffer.position(buffer.limit()); // the connection is closed after the 413, the rest of the body is dropped
+        reset();
+        httpRequest.setBodyTooLarge();
+        return httpRequest;
+    }
+
+    private void reset() {
+        lineCount = 0;
+        isTooManyLines = false;
+        lineStart = 0;
+        scanned = 0;
+        headerLength = -1;
+        pendingRequest = null;
+        isChunked = false;
+        remaining = 0;
+        bodySize = 0;
+        chunkState = CHUNK_SIZE;
+        chunkLineLength = 0;
+        trailerLines = 0;
+        isLineEnding = false;
+        isChunkTooLarge = false;
+        isContinueExpected = false;
+    }
+}
@@ -1,11 +1,20 @@
 import java.io.*;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 enum StatusCode {
-    OK(200, "OK"), NOT_FOUND(404, "Not Found"), NOT_IMPLEMENTED(501, "Not Implemented"), BAD_REQUEST(400, "Bad Request"), INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
-    REQUEST_TIMEOUT(408, "Request Timeout");
+    OK(200, "OK"), PARTIAL_CONTENT(206, "Partial Content"), NOT_MODIFIED(304, "Not Modified"), NOT_FOUND(404, "Not Found"), NOT_IMPLEMENTED(501, "Not Implemented"), BAD_REQUEST(400, "Bad Request"), INTERNAL_SERVER_ERROR(500, "Internal Server Error"),
+    REQUEST_TIMEOUT(408, "Request Timeout"), PAYLOAD_TOO_LARGE(413, "Payload Too Large"), RANGE_NOT_SATISFIABLE(416, "Range Not Satisfiable"),
+    TOO_MANY_REQUESTS(429, "Too Many Requests"), SERVICE_UNAVAILABLE(503, "Service Unavailable");
 
     private final int code;
     private final String description;
@@ -27,20 +36,44 @@ enum StatusCode {
 public class HTTPResponse {
     private StatusCode statusCode;
     private final HTTPRequest httpRequest;
-    private final StringBuilder response = new StringBuilder();
-    private final StringBuilder responseLine = new StringBuilder();
-    Map<String, String> headers = new HashMap<>();
-    private final StringBuilder headersString = new StringBuilder();
-    private StringBuilder body = new StringBuilder();
+    private final boolean keepAlive;
+    private final BufferArena arena; // the connection's reusable buffers, null to allocate them
+    private ByteBuffer responseHead;
+    private ResponseBody responseBody;
+    private byte[] generatedBody; // TRACE echo and params_info.html, the body set by setResponse
+    private boolean isPreEncoded; // a bodyless error, sent from PreEncodedResponses
+    // headers, written by setResponse when set
+    private String contentType;
+    private byte[] contentTypeLine; // a file's contentType, pre-encoded by FileCache
+    private long contentLength = -1; // -1 for the length of the body
+    private String contentEncoding;
+    private String contentRange;
+    private FileCache.CachedFile validators; // the representation whose ETag and Last-Modified are sent
+    private String cacheControl;
+    private boolean isVaryAcceptEncoding;
+    private boolean isAcceptRanges;
+    private boolean isChunked;
     private static final String[] HTML_SUFFIXES = {".html"};
     private static final String[] IMAGE_SUFFIXES = {".bmp", ".gif", ".png", ".jpg"};
     private static final String[] ICON_SUFFIXES = {".ico"};
-    private static final int CHUNK_SIZE = 1000;
 
     private static final String PARAMS_INFO_HTML = "params_info.html";
+    static final int MAX_RANGES = 16; // more ranges than that are ignored and the whole file is sent
+    private static final int HEAD_CAPACITY = 256; // enough for the heads of file responses, larger ones grow
+    private static final byte[] EMPTY_CONTENT = new byte[0];
 
     public HTTPResponse(HTTPRequest httpRequest) {
+        this(httpRequest, false);
+    }
+
+    public HTTPResponse(HTTPRequest httpRequest, boolean keepAlive) {
+        this(httpRequest, keepAlive, null);
+    }
+
+    HTTPResponse(HTTPRequest httpRequest, boolean keepAlive, BufferArena arena) {
         this.httpRequest = httpRequest;
+        this.keepAlive = keepAlive;
+        this.arena = arena;
         generateResponse();
     }
 
@@ -61,6 +94,10 @@ public class HTTPResponse {
         }
          else if (!httpRequest.isValid()) {
             handleBadRequest();
+        } else if (httpRequest.isRateLimited()) {
+            setError(StatusCode.TOO_MANY_REQUESTS);
+        } else if (httpRequest.isBodyTooLarge()) {
+            setError(StatusCode.PAYLOAD_TOO_LARGE);
         } else if (!httpRequest.isImplemented()) {
             handleNotImplemented();
         } else {
@@ -87,135 +124,331 @@ public class HTTPResponse {
     }
 
     private void handleInternalServerError() {
-        this.statusCode = StatusCode.INTERNAL_SERVER_ERROR;
-        setResponseLine();
+        setError(StatusCode.INTERNAL_SERVER_ERROR);
     }
 
     private void handleBadRequest() {
-        this.statusCode = StatusCode.BAD_REQUEST;
-        setResponseLine();
+        setError(StatusCode.BAD_REQUEST);
     }
 
     private void handleRequestTimeout() {
-        this.statusCode = StatusCode.REQUEST_TIMEOUT;
-        setResponseLine();
+        setError(StatusCode.REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Errors have no body and no other header, so their whole head is taken from PreEncodedResponses.
+     */
+    private void setError(StatusCode statusCode) {
+        this.statusCode = statusCode;
+        this.isPreEncoded = true;
     }
 
     private void handlePostRequest() {
         if (httpRequest.getRequestedResource().equals(PARAMS_INFO_HTML)) {
+            String path = getFullPathOfRequestedResource();
+            Template template;
+            try {
+                template = path != null ? Template.get(path) : null;
+            } catch (IOException e) {
+                System.err.println("Error reading template " + path + " - " + e.getMessage());
+                handleInternalServerError();
+                return;
+            }
+            if (template == null) {
+                handleFileNotFound();
+                return;
+            }
             this.statusCode = StatusCode.OK;
-            setResponseLine();
             String fileName = httpRequest.getRequestedResource().toLowerCase();
-            setContentTypeHeaderBasedOnFileName(fileName);
-            body.append(embedParamsInHtml(getFullPathOfRequestedResource(), httpRequest.getParameters()));
+            contentType = getContentType(fileName);
+            generatedBody = template.render(httpRequest.getParameters());
         } else {
-            File requestedFile = getFile();
-
-            if (requestedFile.exists() && requestedFile.isFile()) {
-                handleFileExists(requestedFile, true);
-            }
+            serveFile(true);
         }
     }
 
     private void handleGetRequest() {
-        File requestedFile = getFile();
-
-        if (requestedFile.exists() && requestedFile.isFile()) {
-            handleFileExists(requestedFile, true);
-        } else {
-            handleFileNotFound();
-        }
+        serveFile(true);
     }
 
     private void handleHeadRequest() {
-        File requestedFile = getFile();
+        serveFile(false);
+    }
 
-        if (requestedFile.exists() && requestedFile.isFile()) {
-            handleFileExists(requestedFile, false);
-        } else {
+    private void serveFile(boolean shouldSendContent) {
+        String path = getFullPathOfRequestedResource();
+        FileCache.CachedFile cachedFile = path != null ? TCPServerMultithreaded.FILE_CACHE.get(path) : null;
+
+        if (cachedFile == null) {
             handleFileNotFound();
+            return;
+        }
+        // the encoded variant has its own content and validators; Content-Type and Cache-Control stay the file's
+        FileCache.CachedFile representation = cachedFile;
+        if (Compression.isCompressible(cachedFile.contentType)) {
+            isVaryAcceptEncoding = true;
+            representation = selectEncoding(path, cachedFile);
+        }
+        if (httpRequest.getType() != RequestType.POST && isNotModified(representation)) {
+            handleNotModified(cachedFile, representation);
+        } else {
+            handleFileExists(cachedFile, representation, shouldSendContent);
         }
     }
 
-    private void handleTraceRequest() {
-        this.statusCode = StatusCode.OK;
-        body.append(httpRequest.getRequestString());
-        setResponseLine();
-        setContentLengthHeader(body.length());
-        headers.put("Content-Type", "message/http");
-        // we don't need to check for the given resource, as we don't need anything from it in this type of request
+    /**
+     * Picks the best encoding the client accepts: a precompressed .br or .gz sibling of the file if there is one,
+     * otherwise a gzip variant compressed on the fly (and cached) for files of at least compressionMinSize bytes.
+     * Sets Content-Encoding when the returned representation is not the file itself.
+     */
+    private FileCache.CachedFile selectEncoding(String path, FileCache.CachedFile cachedFile) {
+        String acceptEncoding = httpRequest.getHeader("Accept-Encoding");
+        double brotliQuality = Compression.getQuality(acceptEncoding, Compression.BROTLI);
+        double gzipQuality = Compression.getQuality(acceptEncoding, Compression.GZIP);
+        FileCache fileCache = TCPServerMultithreaded.FILE_CACHE;
+
+        if (brotliQuality > 0 && brotliQuality >= gzipQuality) {
+            FileCache.CachedFile brotliFile = fileCache.getPrecompressed(path, cachedFile, ".br");
+            if (brotliFile != null) {
+                contentEncoding = Compression.BROTLI;
+                return brotliFile;
+            }
+        }
+        if (gzipQuality > 0) {
+            FileCache.CachedFile gzipFile = fileCache.getPrecompressed(path, cachedFile, ".gz");
+            if (gzipFile == null && cachedFile.length >= TCPServerMultithreaded.COMPRESSION_MIN_SIZE) {
+                gzipFile = fileCache.getGzipVariant(cachedFile);
+            }
+            if (gzipFile != null) {
+                contentEncoding = Compression.GZIP;
+                return gzipFile;
+            }
+        }
+        return cachedFile;
     }
 
-    private File getFile() {
-        String fullPath = getFullPathOfRequestedResource();
+    private void handleFileExists(FileCache.CachedFile cachedFile, FileCache.CachedFile representation, boolean shouldSendContent) {
+        List<long[]> ranges = httpRequest.getType() == RequestType.GET ? getRequestedRanges(representation) : null;
+        if (ranges != null) {
+            handleRanges(cachedFile, representation, ranges);
+            return;
+        }
+        this.statusCode = StatusCode.OK;
+        contentType = cachedFile.contentType;
+        contentTypeLine = cachedFile.contentTypeLine;
+        contentLength = representation.length;
+        isAcceptRanges = true;
+        setValidatorHeaders(cachedFile, representation);
 
-        return new File(fullPath);
+        if (shouldSendContent) {
+            try {
+                responseBody = getRangeBody(representation, new long[]{0, representation.length - 1});
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
-    private String getFullPathOfRequestedResource() {
-        String userHome = System.getProperty("user.home");
-        String fullPath = TCPServerMultithreaded.ROOT + httpRequest.getRequestedResource();
-        fullPath = fullPath.replaceFirst("^~", userHome);
+    /**
+     * Answers a Range request with the requested parts of the representation: one range as a plain 206 body,
+     * several as a multipart/byteranges body, and 416 if none of them overlaps the file.
+     */
+    private void handleRanges(FileCache.CachedFile cachedFile, FileCache.CachedFile representation, List<long[]> ranges) {
+        isAcceptRanges = true;
+        if (ranges.isEmpty()) {
+            this.statusCode = StatusCode.RANGE_NOT_SATISFIABLE;
+            contentRange = "bytes */" + representation.length;
+            return;
+        }
 
-        return fullPath;
+        this.statusCode = StatusCode.PARTIAL_CONTENT;
+        setValidatorHeaders(cachedFile, representation);
+        try {
+            if (ranges.size() == 1) {
+                long[] range = ranges.get(0);
+                contentType = cachedFile.contentType;
+                contentTypeLine = cachedFile.contentTypeLine;
+                contentRange = "bytes " + range[0] + "-" + range[1] + "/" + representation.length;
+                responseBody = getRangeBody(representation, range);
+            } else {
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                List<ResponseBody> parts = new ArrayList<>(2 * ranges.size() + 1);
+                for (long[] range : ranges) {
+                    String partHead = "\r\n--" + boundary + "\r\nContent-Type: " + cachedFile.contentType
+                            + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + representation.length + "\r\n\r\n";
+                    parts.add(new BytesBody(partHead.getBytes(StandardCharsets.ISO_8859_1)));
+                    parts.add(getRangeBody(representation, range));
+                }
+                parts.add(new BytesBody(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1)));
+                contentType = "multipart/byteranges; boundary=" + boundary;
+                responseBody = new MultipartBody(parts);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        contentLength = responseBody.length();
     }
 
-    private void handleFileExists(File requestedFile, boolean shouldSendContent) {
-        String fileName = requestedFile.getName().toLowerCase();
+    /**
+     * The body for bytes [range[0], range[1]] of the file: from the cached copy, the shared mapping of a large file,
+     * or else streamed from disk when the response is written.
+     */
+    private static ResponseBody getRangeBody(FileCache.CachedFile representation, long[] range) throws IOException {
+        long length = range[1] - range[0] + 1;
+        if (representation.content != null) {
+            return new BytesBody(representation.content, (int) range[0], (int) length);
+        }
+        FileCache.MappedFile mappedFile = TCPServerMultithreaded.FILE_CACHE.acquireMapped(representation);
+        if (mappedFile != null) {
+            return new MappedBody(mappedFile, range[0], length);
+        }
+        return new FileBody(representation.file, range[0], length);
+    }
 
-        this.statusCode = StatusCode.OK;
-        setResponseLine();
-        setContentTypeHeaderBasedOnFileName(fileName);
+    /**
+     * Parses the Range header (RFC 7233) against the representation's length.
+     *
+     * @return null if the whole representation should be sent (no Range, an If-Range that doesn't match,
+     * a unit other than bytes, invalid syntax or too many ranges), otherwise the satisfiable [first, last] ranges,
+     * which is empty if none is.
+     */
+    private List<long[]> getRequestedRanges(FileCache.CachedFile representation) {
+        String rangeHeader = httpRequest.getHeader("Range");
+        if (rangeHeader == null || !isIfRangeSatisfied(representation)) {
+            return null;
+        }
+        rangeHeader = rangeHeader.trim();
+        if (!rangeHeader.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = rangeHeader.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
 
-        if (shouldSendContent) {
-            try {
-                byte[] fileContent = readFile(requestedFile);
-                body.append(new String(fileContent, httpRequest.isImage() ? "ISO-8859-1" : "UTF-8"));
-                setContentLengthHeader(body.length());
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+        long length = representation.length;
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash == -1) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) { // the last N bytes
+                    long suffixLength = parseRangeValue(last);
+                    if (suffixLength > 0 && length > 0) {
+                        ranges.add(new long[]{Math.max(0, length - suffixLength), length - 1});
+                    }
+                    continue;
+                }
+                long start = parseRangeValue(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : parseRangeValue(last);
+                if (end < start) {
+                    return null;
+                }
+                if (start < length) {
+                    ranges.add(new long[]{start, Math.min(end, length - 1)});
+                }
             }
+        } catch (NumberFormatException e) {
+            return null;
         }
-        else if (httpRequest.getType() == RequestType.HEAD) {
-            setContentLengthHeader((int) requestedFile.length());
+        return ranges;
+    }
+
+    private static long parseRangeValue(String value) {
+        if (value.isEmpty() || !Character.isDigit(value.charAt(0))) {
+            throw new NumberFormatException(value);
         }
+        return Long.parseLong(value);
     }
 
-    private void setHeadersString() {
-        for (Map.Entry<String, String> entry : headers.entrySet()) {
-            headersString.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+    /**
+     * If-Range holds either an ETag, which must strongly match, or a Last-Modified date, which must be the exact one sent.
+     */
+    private boolean isIfRangeSatisfied(FileCache.CachedFile representation) {
+        String ifRange = httpRequest.getHeader("If-Range");
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return ifRange.equals(representation.etag);
         }
+        return ifRange.equals(representation.lastModifiedHeader);
     }
 
-    private void handleFileNotFound() {
-        this.statusCode = StatusCode.NOT_FOUND;
-        setResponseLine();
+    private void handleNotModified(FileCache.CachedFile cachedFile, FileCache.CachedFile representation) {
+        this.statusCode = StatusCode.NOT_MODIFIED;
+        setValidatorHeaders(cachedFile, representation);
     }
 
-    private void handleNotImplemented() {
-        this.statusCode = StatusCode.NOT_IMPLEMENTED;
-        setResponseLine();
+    private void setValidatorHeaders(FileCache.CachedFile cachedFile, FileCache.CachedFile representation) {
+        validators = representation;
+        cacheControl = cachedFile.cacheControl;
     }
 
-    private byte[] readFile(File file) {
-        try {
-            FileInputStream fileInputStream = new FileInputStream(file);
-            byte[] bFile = new byte[(int) file.length()];
+    /**
+     * If-None-Match takes precedence over If-Modified-Since, as required by RFC 7232.
+     */
+    private boolean isNotModified(FileCache.CachedFile cachedFile) {
+        String ifNoneMatch = httpRequest.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String etag : ifNoneMatch.split(",")) {
+                etag = etag.trim();
+                if (etag.startsWith("W/")) {
+                    etag = etag.substring(2); // If-None-Match uses the weak comparison
+                }
+                if (etag.equals("*") || etag.equals(cachedFile.etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
 
-            while (fileInputStream.available() != 0) {
-                fileInputStream.read(bFile, 0, bFile.length);
+        String ifModifiedSince = httpRequest.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, FileCache.HTTP_DATE_FORMAT).toEpochSecond();
+                return cachedFile.lastModified / 1000 <= since; // HTTP dates have a one second resolution
+            } catch (DateTimeParseException e) {
+                return false; // an invalid date is ignored
             }
+        }
+        return false;
+    }
 
-            fileInputStream.close();
-            return bFile;
-        } catch (FileNotFoundException e) {
-            throw new RuntimeException("File not found", e);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    private void handleTraceRequest() {
+        this.statusCode = StatusCode.OK;
+        generatedBody = httpRequest.getRequestString().getBytes(StandardCharsets.UTF_8);
+        contentType = "message/http";
+        // we don't need to check for the given resource, as we don't need anything from it in this type of request
+    }
+
+    /**
+     * @return the file the request maps to, or null when the resource index knows there is none;
+     * without the index the path is built from the root and checked by the caller.
+     */
+    private String getFullPathOfRequestedResource() {
+        ResourceIndex resourceIndex = TCPServerMultithreaded.RESOURCE_INDEX;
+        if (resourceIndex != null) {
+            return resourceIndex.getPath(httpRequest.getRequestedResource());
         }
+        return TCPServerMultithreaded.ROOT + httpRequest.getRequestedResource();
+    }
+
+    private void handleFileNotFound() {
+        setError(StatusCode.NOT_FOUND);
     }
 
-    private void setContentTypeHeaderBasedOnFileName(String fileName) {
+    private void handleNotImplemented() {
+        setError(StatusCode.NOT_IMPLEMENTED);
+    }
+
+    static String getContentType(String fileName) {
         String contentType;
 
         if (endsWithAny(fileName, HTML_SUFFIXES)) {
@@ -228,103 +461,266 @@ public class HTTPResponse {
             contentType = "application/octet-stream";
         }
 
-        headers.put("Content-Type", contentType);
+        return contentType;
     }
 
-    private void setContentLengthHeader(int bodyLength) {
-        headers.put("Content-Length", String.valueOf(bodyLength));
-    }
+    public void setResponse() {
+        if (isPreEncoded) {
+            responseHead = ByteBuffer.wrap(PreEncodedResponses.get(statusCode, keepAlive));
+            return;
+        }
+        if (generatedBody != null) {
+            responseBody = new BytesBody(encodeGeneratedBody(generatedBody));
+        } else if (responseBody == null) {
+            responseBody = new BytesBody(EMPTY_CONTENT);
+        }
+        manipulateBodyBasedOnChunkHeader();
 
-    public void setResponseLine() {
-        this.responseLine.append("HTTP/1.1 ").append(statusCode.getCode()).append(" ").append(statusCode.getDescription());
+        HeaderWriter head = (arena != null ? new HeaderWriter(arena.getHeadBuffer(HEAD_CAPACITY)) : new HeaderWriter(HEAD_CAPACITY))
+                .statusLine(statusCode);
+        if (contentTypeLine != null) {
+            head.line(contentTypeLine);
+        } else if (contentType != null) {
+            head.header(HeaderWriter.CONTENT_TYPE, contentType);
+        }
+        // a persistent connection needs every response to be delimited, even the empty ones (304 never has a body)
+        if (isChunked) {
+            head.line(HeaderWriter.TRANSFER_ENCODING_CHUNKED);
+        } else if (statusCode != StatusCode.NOT_MODIFIED) {
+            head.header(HeaderWriter.CONTENT_LENGTH, contentLength >= 0 ? contentLength : responseBody.length());
+        }
+        if (contentEncoding != null) {
+            head.header(HeaderWriter.CONTENT_ENCODING, contentEncoding);
+        }
+        if (contentRange != null) {
+            head.header(HeaderWriter.CONTENT_RANGE, contentRange);
+        }
+        if (isAcceptRanges) {
+            head.line(HeaderWriter.ACCEPT_RANGES_BYTES);
+        }
+        if (isVaryAcceptEncoding) {
+            head.line(HeaderWriter.VARY_ACCEPT_ENCODING);
+        }
+        if (validators != null) {
+            head.header(HeaderWriter.ETAG, validators.etag);
+            head.header(HeaderWriter.LAST_MODIFIED, validators.lastModifiedHeader);
+        }
+        if (cacheControl != null) {
+            head.header(HeaderWriter.CACHE_CONTROL, cacheControl);
+        }
+        writeConnectionHeaders(head, keepAlive, TCPServerMultithreaded.KEEP_ALIVE_TIMEOUT);
+        responseHead = head.finish();
     }
 
-    public void setResponse() {
-        manipulateBodyBasedOnChunkHeader();
-        setHeadersString();
+    private static void writeConnectionHeaders(HeaderWriter head, boolean keepAlive, int keepAliveTimeout) {
+        if (keepAlive) {
+            head.line(HeaderWriter.CONNECTION_KEEP_ALIVE);
+            head.header(HeaderWriter.KEEP_ALIVE_TIMEOUT, keepAliveTimeout / 1000);
+        } else {
+            head.line(HeaderWriter.CONNECTION_CLOSE);
+        }
+    }
 
-        response.append(responseLine).append("\r\n").append(headersString).append("\r\n").append(body);
+    /**
+     * Generated pages (params_info.html) are gzip-compressed per response, as they can't be cached.
+     */
+    private byte[] encodeGeneratedBody(byte[] content) {
+        if (statusCode != StatusCode.OK || contentType == null || !Compression.isCompressible(contentType)) {
+            return content;
+        }
+        isVaryAcceptEncoding = true;
+        if (content.length < TCPServerMultithreaded.COMPRESSION_MIN_SIZE
+                || Compression.getQuality(httpRequest.getHeader("Accept-Encoding"), Compression.GZIP) <= 0) {
+            return content;
+        }
+        byte[] compressed = Compression.gzip(content);
+        if (compressed.length >= content.length) {
+            return content;
+        }
+        contentEncoding = Compression.GZIP;
+        return compressed;
     }
 
     private void manipulateBodyBasedOnChunkHeader() {
-        if (httpRequest.getType() != RequestType.HEAD && shouldUseChunkedEncoding()) {
-            headers.put("Transfer-Encoding", "chunked");
-            chunkBody();
+        if (shouldUseChunkedEncoding() && httpRequest.getType() != RequestType.HEAD && statusCode != StatusCode.NOT_MODIFIED) {
+            isChunked = true;
+            int chunkSize = TCPServerMultithreaded.CHUNK_SIZE;
+            responseBody = arena != null
+                    ? new ChunkedBody(responseBody, chunkSize, arena.getChunkBuffer(ChunkedBody.getBufferSize(chunkSize)))
+                    : new ChunkedBody(responseBody, chunkSize);
         }
     }
 
     private boolean shouldUseChunkedEncoding() {
-        if (httpRequest != null) {
-            String chunkedHeader = httpRequest.getHeaders().get("chunked");
+        if (httpRequest != null && !httpRequest.isHttp2()) { // HTTP/2 frames the body itself
+            String chunkedHeader = httpRequest.getHeader("chunked");
             return "yes".equalsIgnoreCase(chunkedHeader);
         }
 
         return false;
     }
 
-    private void chunkBody() {
-        int index = 0;
-        StringBuilder chunkedBody = new StringBuilder();
-
-        while (index < body.length()) {
-            int endIndex = Math.min(index + CHUNK_SIZE, body.length());
-            String chunk = body.substring(index, endIndex);
+    /**
+     * The status line and headers, for logging.
+     */
+    public String getResponse() {
+        return new String(responseHead.array(), responseHead.arrayOffset(), responseHead.limit(), StandardCharsets.ISO_8859_1);
+    }
 
-            chunkedBody.append(Integer.toHexString(chunk.length())).append("\r\n");
-            chunkedBody.append(chunk).append("\r\n");
+    public StatusCode getStatusCode() {
+        return statusCode;
+    }
 
-            index += CHUNK_SIZE;
-        }
+    public HTTPRequest getHttpRequest() {
+        return httpRequest;
+    }
 
-        chunkedBody.append("0\r\n\r\n");
+    /**
+     * @return the number of bytes writeTo sends for the whole response.
+     */
+    public long getLength() {
+        return responseHead.limit() + getBodyLength();
+    }
 
-        body = new StringBuilder(chunkedBody.toString());
+    /**
+     * @return the number of body bytes writeTo sends, 0 for HEAD requests.
+     */
+    public long getBodyLength() {
+        return shouldSendBody() && responseBody != null ? responseBody.length() : 0;
     }
 
-    private String embedParamsInHtml(String filePath, Map<String, String> params) {
-        StringBuilder htmlContentBuilder = new StringBuilder();
+    /**
+     * Writes as much of the response as the channel accepts: first the pre-encoded status line and headers,
+     * then the body. A blocking caller loops until it returns true; a non-blocking one retries when writable.
+     *
+     * @return true once the whole response has been written.
+     */
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        if (responseHead.hasRemaining()) {
+            ByteBuffer bodyBuffer = shouldSendBody() && responseBody != null ? responseBody.getBuffer() : null;
+            if (bodyBuffer != null && channel instanceof GatheringByteChannel) {
+                // in-memory and mapped bodies go out together with the headers in a single write
+                ((GatheringByteChannel) channel).write(new ByteBuffer[]{responseHead, bodyBuffer});
+            } else {
+                channel.write(responseHead);
+            }
+            if (responseHead.hasRemaining()) {
+                return false;
+            }
+        }
+        return writeBodyTo(channel);
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(filePath))) {
-            String line;
-            boolean bodyTagFound = false;
+    /**
+     * Writes as much of the body as the channel accepts, for HTTP/2 streams whose head goes out as HPACK fields
+     * (see getHeaderFields) while the body is written to a channel turning it into DATA frames.
+     *
+     * @return true once the whole body has been written.
+     */
+    boolean writeBodyTo(WritableByteChannel channel) throws IOException {
+        if (!shouldSendBody() || responseBody == null) {
+            return true;
+        }
+        boolean isDone = responseBody.writeTo(channel);
+        if (isDone) {
+            responseBody.close();
+        }
+        return isDone;
+    }
 
-            while ((line = reader.readLine()) != null) {
-                if (line.contains("</body>")) {
-                    bodyTagFound = isBodyTagFoundLogic(params, htmlContentBuilder);
-                }
-                if (!bodyTagFound) {
-                    htmlContentBuilder.append(line).append("\n");
-                } else {
-                    htmlContentBuilder.append(line).append("\n");
-                    bodyTagFound = false;
-                }
+    /**
+     * The head as HTTP/2 header fields: ':status' then every header with its name in lower case, read back from the
+     * encoded head, which is built the same way for both protocols. The HTTP/1.x connection headers are left out,
+     * as HTTP/2 forbids them.
+     *
+     * @return a name then its value, for each field.
+     */
+    List<String> getHeaderFields() {
+        byte[] head = responseHead.array();
+        int end = responseHead.arrayOffset() + responseHead.limit();
+        List<String> fields = new ArrayList<>(24);
+        fields.add(":status");
+        fields.add(Integer.toString(statusCode.getCode()));
+        int lineStart = responseHead.arrayOffset();
+        while (head[lineStart] != '\r') { // skips the status line
+            lineStart++;
+        }
+        for (lineStart += 2; lineStart < end && head[lineStart] != '\r'; ) {
+            int lineEnd = lineStart;
+            while (head[lineEnd] != '\r') {
+                lineEnd++;
             }
-
-            return htmlContentBuilder.toString();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            int colon = lineStart;
+            while (head[colon] != ':') {
+                colon++;
+            }
+            String name = new String(head, lineStart, colon - lineStart, StandardCharsets.ISO_8859_1).toLowerCase();
+            if (!name.equals("connection") && !name.equals("keep-alive") && !name.equals("transfer-encoding")) {
+                fields.add(name);
+                fields.add(new String(head, colon + 2, lineEnd - colon - 2, StandardCharsets.ISO_8859_1));
+            }
+            lineStart = lineEnd + 2;
         }
+        return fields;
+    }
+
+    private boolean shouldSendBody() {
+        return httpRequest == null || httpRequest.getType() != RequestType.HEAD;
     }
 
-    private static boolean isBodyTagFoundLogic(Map<String, String> params, StringBuilder htmlContentBuilder) {
-        boolean bodyTagFound;
-        bodyTagFound = true;
-        StringBuilder paramsBuilder = new StringBuilder();
-        paramsBuilder.append("<table border=\"1\">\n<tr>\n<th>Parameter Name</th>\n<th>Parameter Value</th>\n</tr>\n");
-        for (Map.Entry<String, String> entry : params.entrySet()) {
-            paramsBuilder.append("<tr><td>")
-                    .append(entry.getKey())
-                    .append("</td><td>")
-                    .append(entry.getValue())
-                    .append("</td></tr>\n");
+    /**
+     * Releases the file behind the body if the response is abandoned before being fully written.
+     */
+    public void close() {
+        if (responseBody != null) {
+            responseBody.close();
         }
-        paramsBuilder.append("</table>\n");
-        htmlContentBuilder.append(paramsBuilder.toString());
-        return bodyTagFound;
     }
 
-    public StringBuilder getResponse() {
-        return response;
+    /**
+     * The complete heads of the bodyless responses, encoded once per status code, for keep-alive and for close,
+     * so that errors (mostly 404s under scanner traffic) cost a ByteBuffer wrapper and nothing else.
+     * The keep-alive heads announce keepAliveTimeout and the 429 retryAfter, so the table is encoded again when a
+     * config reload changes them.
+     */
+    private static class PreEncodedResponses {
+        private static volatile PreEncodedResponses table;
+
+        private final int keepAliveTimeout;
+        private final int retryAfter;
+        private final byte[][] keepAliveHeads = new byte[StatusCode.values().length][];
+        private final byte[][] closeHeads = new byte[StatusCode.values().length][];
+
+        private PreEncodedResponses(int keepAliveTimeout, int retryAfter) {
+            this.keepAliveTimeout = keepAliveTimeout;
+            this.retryAfter = retryAfter;
+            for (StatusCode statusCode : StatusCode.values()) {
+                keepAliveHeads[statusCode.ordinal()] = encode(statusCode, true, keepAliveTimeout, retryAfter);
+                closeHeads[statusCode.ordinal()] = encode(statusCode, false, keepAliveTimeout, retryAfter);
+            }
+        }
+
+        static byte[] get(StatusCode statusCode, boolean keepAlive) {
+            PreEncodedResponses table = PreEncodedResponses.table;
+            int keepAliveTimeout = TCPServerMultithreaded.KEEP_ALIVE_TIMEOUT;
+            int retryAfter = TCPServerMultithreaded.RETRY_AFTER;
+            if (table == null || table.keepAliveTimeout != keepAliveTimeout || table.retryAfter != retryAfter) {
+                // racing threads build equal tables, any of them will do
+                table = new PreEncodedResponses(keepAliveTimeout, retryAfter);
+                PreEncodedResponses.table = table;
+            }
+            return (keepAlive ? table.keepAliveHeads : table.closeHeads)[statusCode.ordinal()];
+        }
+
+        private static byte[] encode(StatusCode statusCode, boolean keepAlive, int keepAliveTimeout, int retryAfter) {
+            HeaderWriter head = new HeaderWriter(HEAD_CAPACITY).statusLine(statusCode);
+            if (statusCode == StatusCode.TOO_MANY_REQUESTS) {
+                head.header(HeaderWriter.RETRY_AFTER, retryAfter);
+            }
+            head.line(HeaderWriter.EMPTY_CONTENT_LENGTH);
+            writeConnectionHeaders(head, keepAlive, keepAliveTimeout);
+            return head.toByteArray();
+        }
     }
 
     private static boolean endsWithAny(String value, String[] suffixes) {
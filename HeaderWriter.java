@@ -0,0 +1,139 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes a response head (status line and headers) straight into a byte array.
+ * Status lines, header names and the common fixed header lines are encoded once into the constants below;
+ * values are copied char by char (header values are ISO-8859-1) and numbers are written digit by digit,
+ * so encoding a head allocates nothing but its buffer, and nothing at all into a buffer reused from a BufferArena.
+ */
+class HeaderWriter {
+    static final byte[] CONTENT_TYPE = encodeName("Content-Type");
+    static final byte[] CONTENT_LENGTH = encodeName("Content-Length");
+    static final byte[] CONTENT_ENCODING = encodeName("Content-Encoding");
+    static final byte[] CONTENT_RANGE = encodeName("Content-Range");
+    static final byte[] ETAG = encodeName("ETag");
+    static final byte[] LAST_MODIFIED = encodeName("Last-Modified");
+    static final byte[] CACHE_CONTROL = encodeName("Cache-Control");
+    static final byte[] RETRY_AFTER = encodeName("Retry-After");
+    static final byte[] KEEP_ALIVE_TIMEOUT = "Keep-Alive: timeout=".getBytes(StandardCharsets.ISO_8859_1);
+
+    static final byte[] CONNECTION_CLOSE = encodeLine("Connection: close");
+    static final byte[] CONNECTION_KEEP_ALIVE = encodeLine("Connection: keep-alive");
+    static final byte[] ACCEPT_RANGES_BYTES = encodeLine("Accept-Ranges: bytes");
+    static final byte[] VARY_ACCEPT_ENCODING = encodeLine("Vary: Accept-Encoding");
+    static final byte[] TRANSFER_ENCODING_CHUNKED = encodeLine("Transfer-Encoding: chunked");
+    static final byte[] EMPTY_CONTENT_LENGTH = encodeLine("Content-Length: 0");
+    // interim response asking a client that sent 'Expect: 100-continue' for the body
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // accepts 'Upgrade: h2c', the connection then goes on in HTTP/2
+    static final byte[] SWITCHING_PROTOCOLS_H2C = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final byte[][] STATUS_LINES = new byte[StatusCode.values().length][];
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    static {
+        for (StatusCode statusCode : StatusCode.values()) {
+            STATUS_LINES[statusCode.ordinal()] = encodeLine("HTTP/1.1 " + statusCode.getCode() + " " + statusCode.getDescription());
+        }
+    }
+
+    private byte[] buffer;
+    private int length;
+
+    HeaderWriter(int initialCapacity) {
+        this.buffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Encodes into buffer, e.g. one reused from a BufferArena; a head outgrowing it gets a buffer of its own.
+     */
+    HeaderWriter(byte[] buffer) {
+        this.buffer = buffer;
+    }
+
+    HeaderWriter statusLine(StatusCode statusCode) {
+        return line(STATUS_LINES[statusCode.ordinal()]);
+    }
+
+    /**
+     * Appends a whole pre-encoded header line, one of the constants above.
+     */
+    HeaderWriter line(byte[] headerLine) {
+        put(headerLine);
+        return this;
+    }
+
+    /**
+     * @param name one of the header name constants above, which end with ": "
+     */
+    HeaderWriter header(byte[] name, String value) {
+        put(name);
+        ensureCapacity(value.length() + 2);
+        for (int i = 0; i < value.length(); i++) {
+            buffer[length++] = (byte) value.charAt(i);
+        }
+        put(CRLF);
+        return this;
+    }
+
+    HeaderWriter header(byte[] name, long value) {
+        put(name);
+        ensureCapacity(20 + 2);
+        if (value == 0) {
+            buffer[length++] = '0';
+        } else {
+            int start = length;
+            for (long remaining = value; remaining > 0; remaining /= 10) {
+                buffer[length++] = (byte) ('0' + remaining % 10);
+            }
+            for (int i = start, j = length - 1; i < j; i++, j--) { // the digits were written least significant first
+                byte digit = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = digit;
+            }
+        }
+        put(CRLF);
+        return this;
+    }
+
+    /**
+     * Ends the head with the blank line.
+     *
+     * @return the encoded head, ready to be written.
+     */
+    ByteBuffer finish() {
+        put(CRLF);
+        return ByteBuffer.wrap(buffer, 0, length);
+    }
+
+    /**
+     * Ends the head with the blank line, for heads encoded once and sent many times.
+     */
+    byte[] toByteArray() {
+        put(CRLF);
+        return Arrays.copyOf(buffer, length);
+    }
+
+    private void put(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+        }
+    }
+
+    private static byte[] encodeName(String name) {
+        return (name + ": ").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    static byte[] encodeLine(String headerLine) {
+        return (headerLine + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,464 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541): the static table, the Huffman code and the dynamic table shared by
+ * the Decoder of a connection's requests and the Encoder of its responses.
+ * Header fields are handled as ISO-8859-1 strings, like the HTTP/1.x headers, with names in lower case.
+ */
+class Hpack {
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    private static final int ENTRY_OVERHEAD = 32; // added to the name and value lengths of a dynamic table entry
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    };
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>(); // the first index of each name
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>(); // name and value, for the full matches
+
+    // the Huffman code is canonical (RFC 7541 Appendix B), so the codes follow from their lengths, listed per symbol
+    // (the 256 octets, then EOS)
+    private static final byte[] CODE_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28,
+            28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15,
+            6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20,
+            20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23,
+            24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22,
+            22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27,
+            24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26,
+            26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26, 30
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int[] CODES = new int[EOS + 1];
+    // for decoding: the symbols ordered by code, and per length the first code and where its symbols start
+    private static final int[] SYMBOLS_BY_CODE = new int[EOS + 1];
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] FIRST_SYMBOL = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + ':' + STATIC_TABLE[i][1], i + 1);
+        }
+
+        int position = 0;
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            FIRST_SYMBOL[length] = position;
+            for (int symbol = 0; symbol <= EOS; symbol++) {
+                if (CODE_LENGTHS[symbol] == length) {
+                    CODES[symbol] = code++;
+                    SYMBOLS_BY_CODE[position++] = symbol;
+                    CODE_COUNT[length]++;
+                }
+            }
+            code <<= 1;
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection, keeping its dynamic table from block to block.
+     */
+    static class Decoder {
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private final int maxTableSize; // announced in SETTINGS_HEADER_TABLE_SIZE, the client may only lower it
+
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+        }
+
+        /**
+         * Decodes block[from, to) into fields, a name then its value, in the order they were sent.
+         *
+         * @param maxListSize the most the fields may add up to, counted as in SETTINGS_MAX_HEADER_LIST_SIZE
+         * @return false if the fields were over maxListSize; the whole block is still decoded, as the table must
+         * stay in step with the client's.
+         * @throws Http2Exception a COMPRESSION_ERROR if the block is malformed, which ends the connection
+         */
+        boolean decode(byte[] block, int from, int to, List<String> fields, int maxListSize) throws Http2Exception {
+            int listSize = 0;
+            int[] position = {from};
+            boolean isFieldSeen = false;
+            while (position[0] < to) {
+                int first = block[position[0]] & 0xff;
+                String name;
+                String value;
+                if ((first & 0x80) != 0) { // indexed field
+                    int index = decodeInteger(block, position, to, 7);
+                    name = getName(index);
+                    value = getValue(index);
+                } else if ((first & 0x20) != 0 && (first & 0x40) == 0) { // dynamic table size update
+                    if (isFieldSeen) {
+                        throw compressionError("Table size update after a header field");
+                    }
+                    int size = decodeInteger(block, position, to, 5);
+                    if (size > maxTableSize) {
+                        throw compressionError("Table size " + size + " above the announced " + maxTableSize);
+                    }
+                    table.setMaxSize(size);
+                    continue;
+                } else { // literal, with incremental indexing (01), without indexing (0000) or never indexed (0001)
+                    boolean isIndexed = (first & 0x40) != 0;
+                    int index = decodeInteger(block, position, to, isIndexed ? 6 : 4);
+                    name = index == 0 ? decodeString(block, position, to) : getName(index);
+                    value = decodeString(block, position, to);
+                    if (isIndexed) {
+                        table.add(name, value);
+                    }
+                }
+                isFieldSeen = true;
+                listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                if (listSize <= maxListSize) {
+                    fields.add(name);
+                    fields.add(value);
+                }
+            }
+            return listSize <= maxListSize;
+        }
+
+        private String getName(int index) throws Http2Exception {
+            if (index <= 0) {
+                throw compressionError("Invalid index 0");
+            }
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][0];
+            }
+            DynamicTable.Entry entry = table.get(index - STATIC_TABLE.length - 1);
+            if (entry == null) {
+                throw compressionError("Index " + index + " beyond the dynamic table");
+            }
+            return entry.name;
+        }
+
+        private String getValue(int index) throws Http2Exception {
+            if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1][1];
+            }
+            return table.get(index - STATIC_TABLE.length - 1).value; // getName checked it
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection's responses. Fields whose value changes from response to response
+     * (lengths, validators, dates) are sent as literals without indexing, so they don't push the fields that repeat
+     * (content types, Vary, Cache-Control...) out of the dynamic table, which is why a page and its images send their
+     * common headers once and then as single bytes.
+     */
+    static class Encoder {
+        private static final Set<String> NOT_INDEXED = Set.of("content-length", "content-range", "etag",
+                "last-modified", "date", "retry-after");
+
+        private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+        private byte[] buffer = new byte[256];
+        private int length;
+        private int pendingTableSize = -1; // a table size update to send at the start of the next block
+        private int pendingMinTableSize; // the smallest size the table went down to since the last block
+
+        /**
+         * Applies the client's SETTINGS_HEADER_TABLE_SIZE: the encoder may use at most that much of a table.
+         */
+        void setMaxTableSize(int size) {
+            int capped = Math.min(size, DEFAULT_TABLE_SIZE);
+            if (capped != table.maxSize) {
+                pendingMinTableSize = pendingTableSize == -1 ? capped : Math.min(pendingMinTableSize, capped);
+                table.setMaxSize(capped);
+                pendingTableSize = capped;
+            }
+        }
+
+        /**
+         * @param fields a name then its value, names in lower case
+         * @return the header block, valid until the next call.
+         */
+        byte[] encode(List<String> fields) {
+            length = 0;
+            if (pendingTableSize != -1) {
+                // RFC 7541 4.2: a size that went down then up again is signalled at its smallest too, as the entries
+                // it evicted are gone from this table and have to go from the client's
+                if (pendingMinTableSize < pendingTableSize) {
+                    encodeInteger(0x20, 5, pendingMinTableSize);
+                }
+                encodeInteger(0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+            for (int i = 0; i < fields.size(); i += 2) {
+                encodeField(fields.get(i), fields.get(i + 1));
+            }
+            return buffer;
+        }
+
+        /**
+         * @return the length of the block returned by the last encode.
+         */
+        int getLength() {
+            return length;
+        }
+
+        private void encodeField(String name, String value) {
+            Integer staticIndex = STATIC_FIELDS.get(name + ':' + value);
+            if (staticIndex != null) {
+                encodeInteger(0x80, 7, staticIndex);
+                return;
+            }
+            int dynamicIndex = table.indexOf(name, value);
+            if (dynamicIndex != -1) {
+                encodeInteger(0x80, 7, STATIC_TABLE.length + 1 + dynamicIndex);
+                return;
+            }
+            int nameIndex = STATIC_NAMES.getOrDefault(name, 0);
+            if (nameIndex == 0) {
+                int dynamicNameIndex = table.indexOfName(name);
+                nameIndex = dynamicNameIndex == -1 ? 0 : STATIC_TABLE.length + 1 + dynamicNameIndex;
+            }
+            boolean isIndexed = !NOT_INDEXED.contains(name);
+            if (isIndexed) {
+                encodeInteger(0x40, 6, nameIndex);
+            } else {
+                encodeInteger(0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                encodeString(name);
+            }
+            encodeString(value);
+            if (isIndexed) {
+                table.add(name, value);
+            }
+        }
+
+        private void encodeInteger(int prefixBits, int prefixLength, int value) {
+            ensureCapacity(6);
+            int maxPrefix = (1 << prefixLength) - 1;
+            if (value < maxPrefix) {
+                buffer[length++] = (byte) (prefixBits | value);
+                return;
+            }
+            buffer[length++] = (byte) (prefixBits | maxPrefix);
+            value -= maxPrefix;
+            while (value >= 0x80) {
+                buffer[length++] = (byte) (value & 0x7f | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        /**
+         * Writes value Huffman-coded when that is shorter, as a plain literal otherwise.
+         */
+        private void encodeString(String value) {
+            long bits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                bits += CODE_LENGTHS[value.charAt(i) & 0xff];
+            }
+            int huffmanLength = (int) ((bits + 7) / 8);
+            if (huffmanLength >= value.length()) {
+                encodeInteger(0x00, 7, value.length());
+                ensureCapacity(value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    buffer[length++] = (byte) value.charAt(i);
+                }
+                return;
+            }
+            encodeInteger(0x80, 7, huffmanLength);
+            ensureCapacity(huffmanLength);
+            long pending = 0; // bits not written yet, in the low pendingBits bits
+            int pendingBits = 0;
+            for (int i = 0; i < value.length(); i++) {
+                int symbol = value.charAt(i) & 0xff;
+                pending = pending << CODE_LENGTHS[symbol] | CODES[symbol];
+                pendingBits += CODE_LENGTHS[symbol];
+                while (pendingBits >= 8) {
+                    pendingBits -= 8;
+                    buffer[length++] = (byte) (pending >>> pendingBits);
+                }
+            }
+            if (pendingBits > 0) { // padded with the most significant bits of EOS, all ones
+                buffer[length++] = (byte) (pending << (8 - pendingBits) | 0xff >>> pendingBits);
+            }
+        }
+
+        private void ensureCapacity(int additional) {
+            if (length + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + additional));
+            }
+        }
+    }
+
+    /**
+     * The dynamic table: a ring of entries, newest first for indexing, evicted oldest first to stay within maxSize.
+     */
+    private static class DynamicTable {
+        private Entry[] entries = new Entry[16];
+        private int head; // the slot of the newest entry
+        private int count;
+        private int size;
+        private int maxSize;
+
+        DynamicTable(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @param index 0 for the newest entry
+         */
+        Entry get(int index) {
+            return index < count ? entries[(head + index) % entries.length] : null;
+        }
+
+        int indexOf(String name, String value) {
+            for (int i = 0; i < count; i++) {
+                Entry entry = entries[(head + i) % entries.length];
+                if (entry.name.equals(name) && entry.value.equals(value)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int indexOfName(String name) {
+            for (int i = 0; i < count; i++) {
+                if (entries[(head + i) % entries.length].name.equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            evict(maxSize - entrySize);
+            if (entrySize > maxSize) {
+                return; // larger than the table, which is left empty
+            }
+            if (count == entries.length) {
+                Entry[] grown = new Entry[entries.length * 2];
+                for (int i = 0; i < count; i++) {
+                    grown[i] = entries[(head + i) % entries.length];
+                }
+                entries = grown;
+                head = 0;
+            }
+            head = (head - 1 + entries.length) % entries.length;
+            entries[head] = new Entry(name, value);
+            count++;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int targetSize) {
+            while (size > targetSize && count > 0) {
+                int oldest = (head + count - 1) % entries.length;
+                Entry entry = entries[oldest];
+                entries[oldest] = null;
+                count--;
+                size -= entry.name.length() + entry.value.length() + ENTRY_OVERHEAD;
+            }
+        }
+
+        private static class Entry {
+            final String name;
+            final String value;
+
+            Entry(String name, String value) {
+                this.name = name;
+                this.value = value;
+            }
+        }
+    }
+
+    /**
+     * Decodes an integer with an N-bit prefix (RFC 7541 5.1) at position[0], advancing it.
+     */
+    private static int decodeInteger(byte[] block, int[] position, int to, int prefixLength) throws Http2Exception {
+        int maxPrefix = (1 << prefixLength) - 1;
+        int value = block[position[0]++] & maxPrefix;
+        if (value < maxPrefix) {
+            return value;
+        }
+        for (int shift = 0; ; shift += 7) {
+            if (position[0] >= to || shift > 21) { // nothing legitimate needs more than 28 bits
+                throw compressionError("Truncated or oversized integer");
+            }
+            int next = block[position[0]++] & 0xff;
+            value += (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String decodeString(byte[] block, int[] position, int to) throws Http2Exception {
+        if (position[0] >= to) {
+            throw compressionError("Truncated string");
+        }
+        boolean isHuffman = (block[position[0]] & 0x80) != 0;
+        int length = decodeInteger(block, position, to, 7);
+        int from = position[0];
+        if (length > to - from) {
+            throw compressionError("Truncated string");
+        }
+        position[0] += length;
+        return isHuffman ? decodeHuffman(block, from, from + length) : new String(block, from, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Decodes a Huffman-coded string a bit at a time with the canonical code tables: a code of a given length is the
+     * symbol at FIRST_SYMBOL + (code - FIRST_CODE) when it falls within the codes of that length.
+     */
+    private static String decodeHuffman(byte[] block, int from, int to) throws Http2Exception {
+        StringBuilder decoded = new StringBuilder((to - from) * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = from; i < to; i++) {
+            int octet = block[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = code << 1 | (octet >>> bit & 1);
+                codeLength++;
+                int offset = code - FIRST_CODE[codeLength];
+                if (offset >= 0 && offset < CODE_COUNT[codeLength]) {
+                    int symbol = SYMBOLS_BY_CODE[FIRST_SYMBOL[codeLength] + offset];
+                    if (symbol == EOS) {
+                        throw compressionError("EOS in a Huffman-coded string");
+                    }
+                    decoded.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw compressionError("Invalid Huffman code");
+                }
+            }
+        }
+        // the padding must be a prefix of EOS (all ones) shorter than an octet
+        if (codeLength > 7 || code != (1 << codeLength) - 1) {
+            throw compressionError("Invalid Huffman padding");
+        }
+        return decoded.toString();
+    }
+
+    private static Http2Exception compressionError(String message) {
+        return new Http2Exception(Http2Exception.COMPRESSION_ERROR, "HPACK: " + message);
+    }
+}
@@ -0,0 +1,1406 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An HTTP/2 connection over cleartext TCP (h2c, RFC 7540), served by the blocking engine: started by a client sending
+ * the connection preface right away (prior knowledge), or by an HTTP/1.1 request with 'Upgrade: h2c', which becomes
+ * stream 1.
+ * The connection's thread reads and handles the frames; each request, once complete, is answered on
+ * TCPServerMultithreaded.HTTP2_STREAMS by the same HTTPRequest and HTTPResponse as over HTTP/1.x, so many requests
+ * are in progress on one connection at once (up to http2MaxConcurrentStreams). Requests are rebuilt from their HPACK
+ * fields into an HTTP/1.x header block, and responses are sent as HPACK fields read back from their head followed by
+ * DATA frames. The frames of all the streams go out one at a time under writeLock, DATA frames within the send windows
+ * the client grants, so a stream waiting for its window never holds the others up. The locks are ReentrantLocks, as a
+ * virtual thread blocked on a monitor pins its carrier thread.
+ * The streams in progress across all connections are capped by TCPServerMultithreaded.HTTP2_STREAM_PERMITS; a stream
+ * past it is refused with REFUSED_STREAM, which the client may retry. A connection answers at most
+ * http2StreamsPerConnection of its streams at once, the others wait for one of them to finish, so that a single client
+ * cannot take all the permits. A response waits for its send windows no longer than it may take to be written
+ * (writeTimeout plus its length at minTransferRate): then the stream is reset, or the connection closed when its own
+ * window is the one the client does not open.
+ * Request bodies are consumed as they arrive and the receive windows given back once half used (http2InitialWindowSize).
+ */
+class Http2Connection {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384; // the most the client may send, never raised
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+    private static final int MAX_HEADER_BLOCK_SIZE = 2 * HTTPRequestParser.MAX_HEADER_SIZE; // with its CONTINUATIONs
+    // RST_STREAM frames a client may send per CLIENT_RESET_WINDOW before the connection is closed: opening streams
+    // and resetting them right away costs the client nothing and the server a response each (rapid reset)
+    static final int MAX_CLIENT_RESETS = 200;
+    private static final long CLIENT_RESET_WINDOW = TimeUnit.SECONDS.toNanos(30);
+
+    // frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    // frame flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final WritableByteChannel out;
+    private final ConnectionTimer timer; // the reading phases, shared with the ThreadRunnable
+    private final ConnectionTimer writeTimer = new ConnectionTimer(TCPServerMultithreaded.TIMER_WHEEL, phase -> closeSocket());
+    private final String clientIP;
+    private final String clientEndpoint;
+    private final ClientLimiter.Client client;
+    private final int maxConcurrentStreams;
+    private final int maxRunningStreams; // streams answered at once, the others wait in waitingStreams
+    private final int initialWindowSize; // the receive window of every stream, and of the connection
+
+    // the reading side, owned by the connection's thread
+    private byte[] input;
+    private int inputPosition;
+    private int inputLimit;
+    private final byte[] frameHeader = new byte[FRAME_HEADER_LENGTH];
+    private final byte[] payload = new byte[DEFAULT_MAX_FRAME_SIZE];
+    private byte[] headerBlock = new byte[1024];
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Map<Integer, Stream> streams = new ConcurrentHashMap<>(); // open, or half-closed until answered
+    private int lastStreamId; // written under lock, read by the shutdown thread in goAway
+    private int connectionReceiveWindow;
+    private int connectionUnacknowledged; // bytes consumed but not given back with a WINDOW_UPDATE yet
+    private volatile int incompleteRequests; // streams still receiving their request
+    private int clientResets; // RST_STREAM frames received since clientResetsSince
+    private long clientResetsSince = System.nanoTime();
+
+    // the writing side, guarded by writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final ByteBuffer frameHeaderOut = ByteBuffer.allocate(FRAME_HEADER_LENGTH);
+    private final ByteBuffer controlPayload = ByteBuffer.allocate(64); // SETTINGS, PING, WINDOW_UPDATE, RST_STREAM, GOAWAY
+
+    // flow control of what is sent and the client's settings, guarded by lock; windowChanged is signalled when a send
+    // window grows or a stream or the connection is closed
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowChanged = lock.newCondition();
+    private long connectionSendWindow = DEFAULT_WINDOW_SIZE;
+    private int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    private int peerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private boolean isClosed;
+    private volatile boolean isStarted; // the server's SETTINGS, which must be the first frame, have been sent
+    private boolean isGoingAway; // GOAWAY sent: the streams already open are answered, new ones refused
+    private int runningStreams; // dispatched to HTTP2_STREAMS
+    private final ArrayDeque<Stream> waitingStreams = new ArrayDeque<>(); // complete, waiting for a running one to finish
+
+    /**
+     * @param buffered the bytes already read from the socket past the preface or the upgrade request, in read mode
+     */
+    Http2Connection(Socket socket, InputStream in, WritableByteChannel out, ByteBuffer buffered, ConnectionTimer timer,
+                    String clientEndpoint, ClientLimiter.Client client) {
+        this.socket = socket;
+        this.in = in;
+        this.out = out;
+        this.timer = timer;
+        this.clientIP = socket.getInetAddress().getHostAddress();
+        this.clientEndpoint = clientEndpoint;
+        this.client = client;
+        this.maxConcurrentStreams = TCPServerMultithreaded.HTTP2_MAX_CONCURRENT_STREAMS;
+        this.maxRunningStreams = TCPServerMultithreaded.HTTP2_STREAMS_PER_CONNECTION;
+        this.initialWindowSize = Math.max(TCPServerMultithreaded.HTTP2_INITIAL_WINDOW_SIZE, DEFAULT_WINDOW_SIZE);
+        this.connectionReceiveWindow = initialWindowSize;
+        this.input = new byte[Math.max(DEFAULT_MAX_FRAME_SIZE, buffered.remaining())];
+        this.inputLimit = buffered.remaining();
+        buffered.get(input, 0, inputLimit);
+    }
+
+    /**
+     * @return 1 if buffer (in read mode) starts with the HTTP/2 connection preface, which is then consumed,
+     * 0 if it holds the start of it and more bytes are needed, -1 if it is something else.
+     */
+    static int matchPreface(ByteBuffer buffer) {
+        int length = Math.min(buffer.remaining(), PREFACE.length);
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(buffer.position() + i) != PREFACE[i]) {
+                return -1;
+            }
+        }
+        if (length < PREFACE.length) {
+            return 0;
+        }
+        buffer.position(buffer.position() + PREFACE.length);
+        return 1;
+    }
+
+    /**
+     * @return the SETTINGS payload of the HTTP2-Settings header if httpRequest asks to upgrade to h2c (RFC 7540 3.2),
+     * otherwise null, and the request is answered over HTTP/1.1 as if there were no Upgrade header.
+     */
+    static byte[] getUpgradeSettings(HTTPRequest httpRequest) {
+        String upgrade = httpRequest.getHeader("Upgrade");
+        String connection = httpRequest.getHeader("Connection");
+        String settings = httpRequest.getHeader("HTTP2-Settings");
+        if (upgrade == null || connection == null || settings == null || !httpRequest.isValid()
+                || !"HTTP/1.1".equals(httpRequest.getHttpVersion()) || !hasToken(upgrade, "h2c")
+                || !hasToken(connection, "upgrade") || !hasToken(connection, "http2-settings")) {
+            return null;
+        }
+        try {
+            byte[] payload = Base64.getUrlDecoder().decode(settings.trim());
+            return payload.length % 6 == 0 ? payload : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean hasToken(String value, String token) {
+        for (String part : value.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serves the connection until the client closes it, it times out, the server shuts down or a connection error.
+     *
+     * @param upgradeRequest the request that asked for the upgrade, answered on stream 1, or null when the client
+     *                       started with the preface
+     * @param upgradeSettings the client's settings from its HTTP2-Settings header
+     */
+    void serve(HTTPRequest upgradeRequest, byte[] upgradeSettings) {
+        TCPServerMultithreaded.METRICS.http2ConnectionOpened();
+        try {
+            sendSettings();
+            isStarted = true;
+            if (upgradeRequest != null) {
+                applySettings(upgradeSettings, 0, upgradeSettings.length);
+                lock.lock();
+                try {
+                    lastStreamId = 1; // answered even if a GOAWAY has just been sent
+                } finally {
+                    lock.unlock();
+                }
+                Stream stream = openStream(1);
+                upgradeRequest.setUpgradedToHttp2(); // its response goes out in frames now
+                stream.httpRequest = upgradeRequest;
+                dispatch(stream);
+                readPreface();
+            }
+            while (readFrameHeader()) {
+                handleFrame();
+            }
+        } catch (Http2Exception e) {
+            System.err.println("HTTP/2 connection error: " + clientEndpoint + " - " + e.getMessage());
+            goAway(e.getErrorCode());
+        } catch (IOException e) {
+            if (!isClosing()) {
+                System.err.println("IOException: " + clientEndpoint + " - " + e.getMessage());
+            }
+        } finally {
+            lock.lock();
+            try {
+                isClosed = true;
+                windowChanged.signalAll(); // streams waiting for a window give up
+            } finally {
+                lock.unlock();
+            }
+            for (Stream stream : streams.values()) {
+                stream.isReset = true;
+            }
+        }
+    }
+
+    /**
+     * Starts a graceful shutdown of the connection: a GOAWAY tells the client that no new stream will be served,
+     * the streams in progress are answered and the connection is closed once they are done (or right away if there
+     * are none). Called during the server's graceful shutdown, repeatedly.
+     */
+    void shutdown() {
+        if (!isStarted) {
+            return; // called again shortly
+        }
+        goAway(Http2Exception.NO_ERROR);
+        closeIfDone();
+    }
+
+    // ---- reading
+
+    private void readPreface() throws IOException {
+        for (byte expected : PREFACE) {
+            if (!fill(1) || input[inputPosition++] != expected) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    /**
+     * Reads the next frame header into frameHeader, waiting in the phase that matches what is in progress.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean readFrameHeader() throws IOException {
+        updatePhase();
+        if (!fill(FRAME_HEADER_LENGTH)) {
+            return false;
+        }
+        System.arraycopy(input, inputPosition, frameHeader, 0, FRAME_HEADER_LENGTH);
+        inputPosition += FRAME_HEADER_LENGTH;
+        return true;
+    }
+
+    /**
+     * Waits for the client while streams receive their request (body deadline), or while none is open (keep-alive
+     * deadline); not while requests are only being answered, the client then has nothing to send.
+     */
+    private void updatePhase() {
+        lock.lock();
+        try {
+            if (incompleteRequests > 0) {
+                timer.enter(ConnectionPhase.BODY);
+            } else if (streams.isEmpty()) {
+                timer.enter(ConnectionPhase.KEEP_ALIVE);
+            } else {
+                timer.enter(ConnectionPhase.PROCESSING);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes sure count bytes are in input from inputPosition on, reading from the socket as needed.
+     *
+     * @return false if the input ended first.
+     */
+    private boolean fill(int count) throws IOException {
+        if (inputLimit - inputPosition >= count) {
+            return true;
+        }
+        System.arraycopy(input, inputPosition, input, 0, inputLimit - inputPosition);
+        inputLimit -= inputPosition;
+        inputPosition = 0;
+        while (inputLimit < count) {
+            int read = in.read(input, inputLimit, input.length - inputLimit);
+            if (read == -1) {
+                return false;
+            }
+            inputLimit += read;
+            timer.bytesRead(read);
+            TCPServerMultithreaded.METRICS.bytesRead(read);
+        }
+        return true;
+    }
+
+    private void readPayload(int length) throws IOException {
+        if (!fill(length)) {
+            throw new IOException("Connection closed within a frame");
+        }
+        System.arraycopy(input, inputPosition, payload, 0, length);
+        inputPosition += length;
+    }
+
+    private void handleFrame() throws IOException {
+        int length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8 | frameHeader[2] & 0xff;
+        int type = frameHeader[3] & 0xff;
+        int flags = frameHeader[4] & 0xff;
+        int streamId = readInt(frameHeader, 5) & MAX_WINDOW_SIZE;
+        if (length > DEFAULT_MAX_FRAME_SIZE) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+        }
+        readPayload(length);
+        switch (type) {
+            case DATA:
+                handleData(streamId, flags, length);
+                break;
+            case HEADERS:
+                handleHeaders(streamId, flags, length);
+                break;
+            case PRIORITY:
+                requireStream(streamId);
+                break; // streams are answered as soon as they are complete, priorities are not used
+            case RST_STREAM:
+                handleRstStream(streamId, length);
+                break;
+            case SETTINGS:
+                handleSettings(streamId, flags, length);
+                break;
+            case PING:
+                handlePing(streamId, flags, length);
+                break;
+            case GOAWAY:
+                handleGoAway(streamId);
+                break;
+            case WINDOW_UPDATE:
+                handleWindowUpdate(streamId, length);
+                break;
+            case PUSH_PROMISE:
+            case CONTINUATION: // only valid right after HEADERS, read along with them
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Unexpected frame of type " + type);
+            default:
+                break; // unknown frame types are ignored
+        }
+    }
+
+    private void handleData(int streamId, int flags, int length) throws IOException {
+        requireStream(streamId);
+        connectionReceiveWindow -= length; // padding included
+        if (connectionReceiveWindow < 0) {
+            throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+        }
+        giveBackConnectionWindow(length);
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+            }
+            return; // the stream is done, what was in flight when it was reset is ignored (RFC 7540 5.1)
+        }
+        if (stream.isReset) {
+            return; // reset already, but still being answered: the same
+        }
+        if (!stream.isReceiving) {
+            resetStream(stream, Http2Exception.STREAM_CLOSED); // the request was complete already
+            return;
+        }
+        stream.receiveWindow -= length;
+        if (stream.receiveWindow < 0) {
+            resetStream(stream, Http2Exception.FLOW_CONTROL_ERROR);
+            return;
+        }
+        int from = 0;
+        int to = length;
+        if ((flags & PADDED) != 0) {
+            int padLength = length > 0 ? payload[0] & 0xff : Integer.MAX_VALUE;
+            if (padLength >= length) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+            }
+            from = 1;
+            to = length - padLength;
+        }
+
+        HTTPRequest httpRequest = stream.httpRequest;
+        stream.bodySize += to - from;
+        if (stream.bodySize > TCPServerMultithreaded.MAX_BODY_SIZE) {
+            httpRequest.setBodyTooLarge(); // answered with 413 once complete, the rest is dropped
+        } else if (!httpRequest.isBodyTooLarge() && to > from) {
+            httpRequest.appendBody(payload, from, to);
+        }
+        if ((flags & END_STREAM) != 0) {
+            completeRequest(stream);
+        } else {
+            stream.receiveUnacknowledged += length;
+            if (stream.receiveUnacknowledged >= initialWindowSize / 2) {
+                stream.receiveWindow += stream.receiveUnacknowledged;
+                sendWindowUpdate(streamId, stream.receiveUnacknowledged);
+                stream.receiveUnacknowledged = 0;
+            }
+        }
+    }
+
+    private void giveBackConnectionWindow(int length) throws IOException {
+        connectionUnacknowledged += length;
+        if (connectionUnacknowledged >= initialWindowSize / 2) {
+            connectionReceiveWindow += connectionUnacknowledged;
+            sendWindowUpdate(0, connectionUnacknowledged);
+            connectionUnacknowledged = 0;
+        }
+    }
+
+    private void handleHeaders(int streamId, int flags, int length) throws IOException {
+        requireStream(streamId);
+        int from = 0;
+        int to = length;
+        if ((flags & PADDED) != 0) {
+            int padLength = length > 0 ? payload[0] & 0xff : Integer.MAX_VALUE;
+            if (padLength >= length) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid padding");
+            }
+            from = 1;
+            to = length - padLength;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            from += 5; // stream dependency and weight, not used
+            if (from > to) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "HEADERS too short for its priority");
+            }
+        }
+        int blockLength = readHeaderBlock(streamId, flags, from, to);
+
+        // the block is decoded whatever becomes of the stream, to keep the dynamic table in step with the client's
+        List<String> fields = new ArrayList<>(32);
+        boolean isWithinLimit = decoder.decode(headerBlock, 0, blockLength, fields, HTTPRequestParser.MAX_HEADER_SIZE);
+        boolean isEndStream = (flags & END_STREAM) != 0;
+
+        Stream stream = streams.get(streamId);
+        if (stream != null) { // trailers
+            if (!stream.isReceiving) {
+                resetStream(stream, Http2Exception.STREAM_CLOSED);
+            } else if (!isEndStream) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS within stream " + streamId);
+            } else {
+                completeRequest(stream); // trailers are not used
+            }
+            return;
+        }
+        if (streamId <= lastStreamId || (streamId & 1) == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "HEADERS opening stream " + streamId);
+        }
+        boolean isRefused;
+        lock.lock();
+        try {
+            // together, so a stream opened before the GOAWAY is within its last stream id, one after it is refused
+            lastStreamId = streamId;
+            isRefused = isGoingAway || streams.size() >= maxConcurrentStreams;
+        } finally {
+            lock.unlock();
+        }
+        if (isRefused) {
+            TCPServerMultithreaded.METRICS.http2StreamRefused();
+            sendRstStream(streamId, Http2Exception.REFUSED_STREAM);
+            return;
+        }
+
+        long parseStart = System.nanoTime();
+        HTTPRequest httpRequest = isWithinLimit ? toRequest(fields) : HTTPRequest.invalid(); // 400 when too large
+        if (httpRequest == null) {
+            sendRstStream(streamId, Http2Exception.PROTOCOL_ERROR); // malformed
+            return;
+        }
+        stream = openStream(streamId);
+        stream.httpRequest = httpRequest;
+        TCPServerMultithreaded.METRICS.requestParsed(httpRequest, System.nanoTime() - parseStart);
+        if (isEndStream) {
+            dispatch(stream);
+            return;
+        }
+        stream.isReceiving = true;
+        incompleteRequests++;
+        String contentLength = httpRequest.getCombinedHeader("Content-Length");
+        stream.contentLength = contentLength != null ? HTTPRequestParser.parseContentLength(contentLength) : -1;
+        if (contentLength != null && stream.contentLength < 0) {
+            resetStream(stream, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        if (stream.contentLength > TCPServerMultithreaded.MAX_BODY_SIZE) {
+            httpRequest.setBodyTooLarge();
+        } else if (httpRequest.isValid()) {
+            httpRequest.startBody(stream.contentLength);
+        } else {
+            httpRequest.setBodyTooLarge(); // nothing to keep, a 400 is sent once the body is over
+        }
+    }
+
+    /**
+     * Copies the header block fragment payload[from, to) and those of the CONTINUATION frames that follow it into
+     * headerBlock.
+     *
+     * @return the length of the whole block.
+     */
+    private int readHeaderBlock(int streamId, int flags, int from, int to) throws IOException {
+        int blockLength = 0;
+        while (true) {
+            if (blockLength + (to - from) > MAX_HEADER_BLOCK_SIZE) {
+                throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "Header block over " + MAX_HEADER_BLOCK_SIZE + " bytes");
+            }
+            if (blockLength + (to - from) > headerBlock.length) {
+                byte[] grown = new byte[Math.max(headerBlock.length * 2, blockLength + (to - from))];
+                System.arraycopy(headerBlock, 0, grown, 0, blockLength);
+                headerBlock = grown;
+            }
+            System.arraycopy(payload, from, headerBlock, blockLength, to - from);
+            blockLength += to - from;
+            if ((flags & END_HEADERS) != 0) {
+                return blockLength;
+            }
+            if (!readFrameHeader()) {
+                throw new IOException("Connection closed within a header block");
+            }
+            int length = (frameHeader[0] & 0xff) << 16 | (frameHeader[1] & 0xff) << 8 | frameHeader[2] & 0xff;
+            if ((frameHeader[3] & 0xff) != CONTINUATION || (readInt(frameHeader, 5) & MAX_WINDOW_SIZE) != streamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Header block interrupted");
+            }
+            if (length > DEFAULT_MAX_FRAME_SIZE) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+            readPayload(length);
+            flags = frameHeader[4] & 0xff;
+            from = 0;
+            to = length;
+        }
+    }
+
+    /**
+     * Rebuilds the request of a stream from its fields: the pseudo-headers make the request line
+     * 'METHOD path HTTP/2.0', ':authority' becomes Host, cookie fields are joined into one Cookie header
+     * (RFC 7540 8.1.2.5) and the other fields become header lines, so the request is parsed like an HTTP/1.x one.
+     *
+     * @return the request, an invalid one (400) if it has too many fields, or null if it is malformed (RFC 7540 8.1.2).
+     */
+    private static HTTPRequest toRequest(List<String> fields) {
+        String method = null;
+        String path = null;
+        String scheme = null;
+        String authority = null;
+        StringBuilder block = new StringBuilder(256);
+        StringBuilder cookie = null;
+        int lineCount = 1;
+        boolean isPseudoAllowed = true;
+        List<Integer> lineEnds = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i += 2) {
+            String name = fields.get(i);
+            String value = fields.get(i + 1);
+            if (!isValidName(name) || !isValidValue(value)) {
+                return null;
+            }
+            if (name.charAt(0) == ':') {
+                if (!isPseudoAllowed) {
+                    return null;
+                }
+                switch (name) {
+                    case ":method":
+                        if (method != null) {
+                            return null;
+                        }
+                        method = value;
+                        break;
+                    case ":path":
+                        if (path != null || value.isEmpty()) {
+                            return null;
+                        }
+                        path = value;
+                        break;
+                    case ":scheme":
+                        if (scheme != null) {
+                            return null;
+                        }
+                        scheme = value;
+                        break;
+                    case ":authority":
+                        if (authority != null) {
+                            return null;
+                        }
+                        authority = value;
+                        break;
+                    default:
+                        return null;
+                }
+                continue;
+            }
+            isPseudoAllowed = false;
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    return null;
+                case "te":
+                    if (!value.equals("trailers")) {
+                        return null;
+                    }
+                    break;
+                case "cookie":
+                    cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+                    continue;
+                case "host":
+                    if (authority != null) {
+                        continue; // :authority takes precedence
+                    }
+                    break;
+                default:
+                    break;
+            }
+            block.append("\r\n").append(name).append(": ").append(value);
+            lineEnds.add(block.length());
+            lineCount++;
+        }
+        if (method == null || path == null || scheme == null) {
+            return null;
+        }
+        if (authority != null) {
+            block.append("\r\nhost: ").append(authority);
+            lineEnds.add(block.length());
+            lineCount++;
+        }
+        if (cookie != null) {
+            block.append("\r\ncookie: ").append(cookie);
+            lineEnds.add(block.length());
+            lineCount++;
+        }
+        if (lineCount > HTTPRequestParser.MAX_LINES) {
+            return HTTPRequest.invalid(); // 400, like an HTTP/1.x request with too many headers
+        }
+        String requestLine = method + ' ' + path + " HTTP/2.0";
+        byte[] rawRequest = (requestLine + block + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        int[] lineOffsets = new int[2 * lineCount];
+        lineOffsets[1] = requestLine.length();
+        for (int line = 1; line < lineCount; line++) {
+            lineOffsets[2 * line] = lineOffsets[2 * line - 1] + 2;
+            lineOffsets[2 * line + 1] = requestLine.length() + lineEnds.get(line - 1);
+        }
+        return new HTTPRequest(rawRequest, lineOffsets, lineCount, true);
+    }
+
+    private static boolean isValidName(String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = name.charAt(0) == ':' ? 1 : 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c <= ' ' || c >= 0x7f || c == ':' || (c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isValidValue(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\r' || c == '\n' || c == '\0') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void handleRstStream(int streamId, int length) throws IOException {
+        requireStream(streamId);
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+        }
+        if (streamId > lastStreamId) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+        }
+        long now = System.nanoTime();
+        if (now - clientResetsSince > CLIENT_RESET_WINDOW) {
+            clientResets = 0;
+            clientResetsSince = now;
+        }
+        if (++clientResets > MAX_CLIENT_RESETS) {
+            throw new Http2Exception(Http2Exception.ENHANCE_YOUR_CALM, "More than " + MAX_CLIENT_RESETS + " RST_STREAM in "
+                    + TimeUnit.NANOSECONDS.toSeconds(CLIENT_RESET_WINDOW) + " s");
+        }
+        Stream stream = streams.get(streamId);
+        if (stream != null) {
+            closeStream(stream);
+        }
+    }
+
+    private void handleSettings(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & ACK) != 0) {
+            if (length != 0) {
+                throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS acknowledgement with a payload");
+            }
+            return;
+        }
+        if (length % 6 != 0) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+        }
+        applySettings(payload, 0, length);
+        writeFrame(SETTINGS, ACK, 0, ByteBuffer.allocate(0));
+    }
+
+    private void applySettings(byte[] settings, int from, int to) throws IOException {
+        for (int i = from; i < to; i += 6) {
+            int id = (settings[i] & 0xff) << 8 | settings[i + 1] & 0xff;
+            int value = readInt(settings, i + 2);
+            switch (id) {
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    writeLock.lock();
+                    try {
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if (value != 0 && value != 1) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_ENABLE_PUSH " + value);
+                    }
+                    break; // nothing is pushed
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if (value < 0) {
+                        throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Invalid SETTINGS_INITIAL_WINDOW_SIZE");
+                    }
+                    lock.lock();
+                    try {
+                        int delta = value - peerInitialWindowSize;
+                        peerInitialWindowSize = value;
+                        for (Stream stream : streams.values()) {
+                            stream.sendWindow += delta;
+                            if (stream.sendWindow > MAX_WINDOW_SIZE) { // RFC 7540 6.9.2
+                                throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR,
+                                        "SETTINGS_INITIAL_WINDOW_SIZE overflows the window of stream " + stream.id);
+                            }
+                        }
+                        windowChanged.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Invalid SETTINGS_MAX_FRAME_SIZE " + value);
+                    }
+                    lock.lock();
+                    try {
+                        peerMaxFrameSize = value;
+                    } finally {
+                        lock.unlock();
+                    }
+                    break;
+                default:
+                    break; // SETTINGS_MAX_CONCURRENT_STREAMS and SETTINGS_MAX_HEADER_LIST_SIZE limit what we don't do
+            }
+        }
+    }
+
+    private void handlePing(int streamId, int flags, int length) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "PING on stream " + streamId);
+        }
+        if (length != 8) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+        }
+        if ((flags & ACK) == 0) {
+            writeLock.lock();
+            try {
+                controlPayload.clear();
+                controlPayload.put(payload, 0, 8).flip();
+                writeFrameLocked(PING, ACK, 0, controlPayload);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The client is closing: the streams in progress are answered, then the connection is closed.
+     */
+    private void handleGoAway(int streamId) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+        }
+        goAway(Http2Exception.NO_ERROR);
+        closeIfDone();
+    }
+
+    private void handleWindowUpdate(int streamId, int length) throws IOException {
+        if (length != 4) {
+            throw new Http2Exception(Http2Exception.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+        }
+        int increment = readInt(payload, 0) & MAX_WINDOW_SIZE;
+        if (streamId == 0) {
+            if (increment == 0) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            lock.lock();
+            try {
+                connectionSendWindow += increment;
+                if (connectionSendWindow > MAX_WINDOW_SIZE) {
+                    throw new Http2Exception(Http2Exception.FLOW_CONTROL_ERROR, "Connection send window overflow");
+                }
+                windowChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            return;
+        }
+        Stream stream = streams.get(streamId);
+        if (stream == null) {
+            if (streamId > lastStreamId) {
+                throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+            }
+            return; // the stream is done, what was in flight is ignored
+        }
+        if (increment == 0) {
+            resetStream(stream, Http2Exception.PROTOCOL_ERROR);
+            return;
+        }
+        lock.lock();
+        try {
+            stream.sendWindow += increment;
+            if (stream.sendWindow > MAX_WINDOW_SIZE) {
+                stream.isReset = true; // reset below, once out of the lock
+            }
+            windowChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (stream.sendWindow > MAX_WINDOW_SIZE) {
+            resetStream(stream, Http2Exception.FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private static void requireStream(int streamId) throws Http2Exception {
+        if (streamId == 0) {
+            throw new Http2Exception(Http2Exception.PROTOCOL_ERROR, "Frame requires a stream");
+        }
+    }
+
+    // ---- streams
+
+    private Stream openStream(int streamId) {
+        Stream stream = new Stream(streamId);
+        lock.lock();
+        try {
+            stream.sendWindow = peerInitialWindowSize;
+        } finally {
+            lock.unlock();
+        }
+        stream.receiveWindow = initialWindowSize;
+        streams.put(streamId, stream);
+        TCPServerMultithreaded.METRICS.http2StreamOpened();
+        return stream;
+    }
+
+    private void completeRequest(Stream stream) {
+        finishReceiving(stream);
+        HTTPRequest httpRequest = stream.httpRequest;
+        if (!httpRequest.isBodyTooLarge()) {
+            httpRequest.endBody();
+            if (stream.contentLength >= 0 && stream.bodySize != stream.contentLength) {
+                resetStream(stream, Http2Exception.PROTOCOL_ERROR); // malformed, RFC 7540 8.1.2.6
+                return;
+            }
+        }
+        dispatch(stream);
+    }
+
+    /**
+     * Ends the request side of a stream, which no longer holds the connection in the body phase.
+     */
+    private void finishReceiving(Stream stream) {
+        if (stream.isReceiving) {
+            stream.isReceiving = false;
+            incompleteRequests--;
+        }
+    }
+
+    /**
+     * Answers a complete request, right away if the connection has fewer than maxRunningStreams streams running,
+     * otherwise once one of them is done.
+     */
+    private void dispatch(Stream stream) {
+        lock.lock();
+        try {
+            if (runningStreams >= maxRunningStreams) {
+                waitingStreams.add(stream);
+                return;
+            }
+            runningStreams++;
+        } finally {
+            lock.unlock();
+        }
+        start(stream);
+    }
+
+    /**
+     * Runs stream, counted in runningStreams already, on HTTP2_STREAMS; if it is refused, the next waiting stream
+     * takes its place.
+     */
+    private void start(Stream stream) {
+        while (stream != null) {
+            Semaphore permits = TCPServerMultithreaded.HTTP2_STREAM_PERMITS;
+            if (permits.tryAcquire()) {
+                Stream started = stream;
+                try {
+                    TCPServerMultithreaded.HTTP2_STREAMS.execute(() -> {
+                        try {
+                            respond(started);
+                        } finally {
+                            permits.release();
+                            start(nextWaitingStream());
+                        }
+                    });
+                    stream.isDispatched = true;
+                    return;
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                }
+            }
+            TCPServerMultithreaded.METRICS.http2StreamRefused(); // the server is busy, the client may retry it
+            resetStream(stream, Http2Exception.REFUSED_STREAM);
+            stream = nextWaitingStream();
+        }
+    }
+
+    /**
+     * Ends a running stream, and counts the next waiting stream that is still open as running instead.
+     *
+     * @return that stream, to start, or null if none is waiting.
+     */
+    private Stream nextWaitingStream() {
+        lock.lock();
+        try {
+            runningStreams--;
+            Stream next;
+            do {
+                next = waitingStreams.poll();
+            } while (next != null && next.isReset);
+            if (next != null) {
+                runningStreams++;
+            }
+            return next;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Answers a complete request, on a thread of HTTP2_STREAMS.
+     */
+    private void respond(Stream stream) {
+        HTTPRequest httpRequest = stream.httpRequest;
+        HTTPResponse httpResponse = null;
+        try {
+            if (stream.isReset) {
+                return; // reset while it waited, nothing to build
+            }
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
+                System.out.println(httpRequest.getRequestString());
+            }
+            if (!client.tryRequest()) {
+                httpRequest.setRateLimited(); // 429 on this stream, the connection stays open
+            }
+            long requestStart = System.nanoTime();
+            httpResponse = new HTTPResponse(httpRequest, true);
+            TCPServerMultithreaded.METRICS.responseBuilt(System.nanoTime() - requestStart);
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
+                System.out.println(httpResponse.getResponse());
+            }
+            long writeStart = System.nanoTime();
+            writeResponse(stream, httpResponse);
+            TCPServerMultithreaded.METRICS.responseWritten(httpResponse, requestStart, writeStart);
+            if (TCPServerMultithreaded.ACCESS_LOG != null) {
+                TCPServerMultithreaded.ACCESS_LOG.log(clientIP, httpResponse);
+            }
+        } catch (IOException e) {
+            if (!stream.isReset && !isClosing()) {
+                System.err.println("IOException: " + clientEndpoint + " - " + e.getMessage());
+                closeSocket();
+            }
+        } catch (RuntimeException e) {
+            System.err.println(clientEndpoint + " - " + e.getMessage());
+            resetStream(stream, Http2Exception.INTERNAL_ERROR);
+        } finally {
+            if (httpResponse != null) {
+                httpResponse.close();
+            }
+            closeStream(stream);
+        }
+    }
+
+    private void writeResponse(Stream stream, HTTPResponse httpResponse) throws IOException {
+        long bodyLength = httpResponse.getBodyLength();
+        writeLock.lock();
+        try {
+            if (stream.isReset) {
+                return;
+            }
+            // encoded under the lock, the client decodes the blocks in the order they are sent
+            byte[] block = encoder.encode(httpResponse.getHeaderFields());
+            int blockLength = encoder.getLength();
+            int maxFrameSize = getPeerMaxFrameSize();
+            int type = HEADERS;
+            int from = 0;
+            do {
+                int length = Math.min(blockLength - from, maxFrameSize);
+                int flags = (from + length == blockLength ? END_HEADERS : 0)
+                        | (type == HEADERS && bodyLength == 0 ? END_STREAM : 0);
+                writeFrameLocked(type, flags, stream.id, ByteBuffer.wrap(block, from, length));
+                type = CONTINUATION;
+                from += length;
+            } while (from < blockLength);
+        } finally {
+            writeLock.unlock();
+        }
+        if (bodyLength > 0) {
+            DataChannel channel = new DataChannel(stream, bodyLength);
+            while (!httpResponse.writeBodyTo(channel)) {
+                // the data channel takes everything it is given, a file body stops early only after a partial transfer
+            }
+        }
+    }
+
+    /**
+     * Sends a body as DATA frames, each within the send windows of the stream and the connection, the last one
+     * ending the stream.
+     */
+    private class DataChannel implements WritableByteChannel {
+        private final Stream stream;
+        private long remaining;
+        private final long deadline; // for the whole body, as a response over HTTP/1.x
+
+        DataChannel(Stream stream, long length) {
+            this.stream = stream;
+            this.remaining = length;
+            int writeTimeout = TCPServerMultithreaded.WRITE_TIMEOUT;
+            int minTransferRate = TCPServerMultithreaded.MIN_TRANSFER_RATE;
+            this.deadline = writeTimeout <= 0 ? TimerWheel.NONE : System.currentTimeMillis() + writeTimeout
+                    + (minTransferRate > 0 ? length * 1000 / minTransferRate : 0);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = 0;
+            while (src.hasRemaining()) {
+                int length = acquireSendWindow(stream, src.remaining(), deadline);
+                ByteBuffer frame = src.slice();
+                frame.limit(length);
+                remaining -= length;
+                writeFrame(DATA, remaining <= 0 ? END_STREAM : 0, stream.id, frame);
+                src.position(src.position() + length);
+                written += length;
+            }
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !stream.isReset;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Waits until both the stream and the connection may send, then takes up to wanted bytes, at most one frame,
+     * from their windows. Past deadline (ms, or TimerWheel.NONE), the stream is reset if its own window is closed,
+     * otherwise the connection is closed, as every stream waits for its window.
+     */
+    private int acquireSendWindow(Stream stream, int wanted, long deadline) throws IOException {
+        boolean isConnectionStalled;
+        lock.lock();
+        try {
+            while (!isClosed && !stream.isReset && (connectionSendWindow <= 0 || stream.sendWindow <= 0)) {
+                long timeout = deadline - System.currentTimeMillis();
+                if (deadline != TimerWheel.NONE && timeout <= 0) {
+                    break;
+                }
+                try {
+                    if (deadline == TimerWheel.NONE) {
+                        windowChanged.await();
+                    } else {
+                        windowChanged.await(timeout, TimeUnit.MILLISECONDS);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted waiting for a send window");
+                }
+            }
+            if (isClosed || stream.isReset) {
+                throw new IOException("Stream " + stream.id + " closed");
+            }
+            if (connectionSendWindow > 0 && stream.sendWindow > 0) {
+                int length = (int) Math.min(Math.min(wanted, peerMaxFrameSize), Math.min(connectionSendWindow, stream.sendWindow));
+                connectionSendWindow -= length;
+                stream.sendWindow -= length;
+                return length;
+            }
+            isConnectionStalled = connectionSendWindow <= 0;
+        } finally {
+            lock.unlock();
+        }
+        if (isConnectionStalled) {
+            if (!socket.isClosed()) { // counted once, though every stream of the connection times out
+                TCPServerMultithreaded.METRICS.connectionTimedOut(ConnectionPhase.WRITE);
+            }
+            closeSocket(); // the reading thread notices
+        } else {
+            resetStream(stream, Http2Exception.CANCEL);
+        }
+        throw new IOException("Stream " + stream.id + " timed out waiting for a send window");
+    }
+
+    private int getPeerMaxFrameSize() {
+        lock.lock();
+        try {
+            return peerMaxFrameSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the writers waiting for a send window, so that those of a closed stream give up.
+     */
+    private void signalWindowChanged() {
+        lock.lock();
+        try {
+            windowChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void resetStream(Stream stream, int errorCode) {
+        stream.isReset = true;
+        signalWindowChanged();
+        finishReceiving(stream);
+        resetStream(stream.id, errorCode);
+        if (!stream.isDispatched) {
+            closeStream(stream);
+        }
+    }
+
+    private void resetStream(int streamId, int errorCode) {
+        try {
+            sendRstStream(streamId, errorCode);
+        } catch (IOException e) {
+            closeSocket(); // the reading thread notices
+        }
+    }
+
+    private void closeStream(Stream stream) {
+        if (streams.remove(stream.id, stream)) {
+            finishReceiving(stream);
+            stream.isReset = true; // any writer still waiting gives up
+            signalWindowChanged();
+            if (streams.isEmpty()) {
+                updatePhase(); // the connection is idle, the keep-alive timeout starts
+                closeIfDone();
+            }
+        }
+    }
+
+    // ---- writing
+
+    private void sendSettings() throws IOException {
+        writeLock.lock();
+        try {
+            controlPayload.clear();
+            putSetting(SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+            putSetting(SETTINGS_INITIAL_WINDOW_SIZE, initialWindowSize);
+            putSetting(SETTINGS_MAX_HEADER_LIST_SIZE, HTTPRequestParser.MAX_HEADER_SIZE);
+            controlPayload.flip();
+            writeFrameLocked(SETTINGS, 0, 0, controlPayload);
+            if (initialWindowSize > DEFAULT_WINDOW_SIZE) { // the connection window can only be raised this way
+                controlPayload.clear();
+                controlPayload.putInt(initialWindowSize - DEFAULT_WINDOW_SIZE).flip();
+                writeFrameLocked(WINDOW_UPDATE, 0, 0, controlPayload);
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void putSetting(int id, int value) {
+        controlPayload.putShort((short) id).putInt(value);
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) throws IOException {
+        writeLock.lock();
+        try {
+            controlPayload.clear();
+            controlPayload.putInt(increment).flip();
+            writeFrameLocked(WINDOW_UPDATE, 0, streamId, controlPayload);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void sendRstStream(int streamId, int errorCode) throws IOException {
+        writeLock.lock();
+        try {
+            controlPayload.clear();
+            controlPayload.putInt(errorCode).flip();
+            writeFrameLocked(RST_STREAM, 0, streamId, controlPayload);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends GOAWAY once, with the last stream that will be answered.
+     */
+    private void goAway(int errorCode) {
+        int lastAnsweredStreamId;
+        lock.lock();
+        try {
+            if (isGoingAway) {
+                return;
+            }
+            isGoingAway = true;
+            lastAnsweredStreamId = lastStreamId;
+        } finally {
+            lock.unlock();
+        }
+        writeLock.lock();
+        try {
+            try {
+                controlPayload.clear();
+                controlPayload.putInt(lastAnsweredStreamId).putInt(errorCode).flip();
+                writeFrameLocked(GOAWAY, 0, 0, controlPayload);
+            } catch (IOException e) {
+                // the connection is gone already
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Once GOAWAY has been sent and the last stream is answered, ends the input so the reading thread closes.
+     */
+    private void closeIfDone() {
+        boolean isDone;
+        lock.lock();
+        try {
+            isDone = isGoingAway && streams.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+        if (isDone) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // closed already
+            }
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer framePayload) throws IOException {
+        writeLock.lock();
+        try {
+            writeFrameLocked(type, flags, streamId, framePayload);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, ByteBuffer framePayload) throws IOException {
+        int length = framePayload.remaining();
+        frameHeaderOut.clear();
+        frameHeaderOut.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+                .put((byte) type).put((byte) flags).putInt(streamId).flip();
+        writeTimer.startWrite(FRAME_HEADER_LENGTH + length);
+        try {
+            if (out instanceof GatheringByteChannel) {
+                ByteBuffer[] buffers = {frameHeaderOut, framePayload};
+                while (framePayload.hasRemaining() || frameHeaderOut.hasRemaining()) {
+                    ((GatheringByteChannel) out).write(buffers);
+                }
+            } else {
+                while (frameHeaderOut.hasRemaining()) {
+                    out.write(frameHeaderOut);
+                }
+                while (framePayload.hasRemaining()) {
+                    out.write(framePayload);
+                }
+            }
+        } finally {
+            writeTimer.cancel();
+        }
+    }
+
+    private boolean isClosing() {
+        lock.lock();
+        try {
+            if (isClosed || isGoingAway) {
+                return true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return socket.isClosed() || !ThreadRunnable.serverRunning;
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closed already
+        }
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) << 24 | (bytes[offset + 1] & 0xff) << 16 | (bytes[offset + 2] & 0xff) << 8
+                | bytes[offset + 3] & 0xff;
+    }
+
+    /**
+     * A stream from its HEADERS until it is answered or reset. The request side is only touched by the reading
+     * thread, the send window under the connection's lock.
+     */
+    private static class Stream {
+        final int id;
+        HTTPRequest httpRequest;
+        long contentLength = -1;
+        long bodySize;
+        int receiveWindow;
+        int receiveUnacknowledged;
+        long sendWindow;
+        boolean isReceiving; // HEADERS without END_STREAM, waiting for the body
+        volatile boolean isDispatched;
+        volatile boolean isReset;
+
+        Stream(int id) {
+            this.id = id;
+        }
+    }
+}
+
+/**
+ * An HTTP/2 error, with its error code (RFC 7540 7): a connection error ends the connection with GOAWAY.
+ */
+class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+
+    private final int errorCode;
+
+    Http2Exception(int errorCode, String message) {
+        super(message);
+        this.errorCode = errorCode;
+    }
+
+    int getErrorCode() {
+        return errorCode;
+    }
+}
@@ -0,0 +1,303 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and latency histograms, shared by both engines and exposed in Prometheus text format by AdminServer.
+ * Everything on the request path is a LongAdder, so worker and reactor threads never contend on a single counter;
+ * the values are only summed when the metrics are scraped.
+ */
+class Metrics {
+    private final LongAdder[] requestsByType = newAdders(RequestType.values().length + 1); // the last one counts unknown methods
+    private final LongAdder[] responsesByStatus = newAdders(StatusCode.values().length);
+    private final LatencyHistogram[] requestDurationByStatus = new LatencyHistogram[StatusCode.values().length];
+    private final LatencyHistogram firstByteTime = new LatencyHistogram();
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram buildTime = new LatencyHistogram();
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder connectionsAccepted = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder[] timeoutsByPhase = newAdders(ConnectionPhase.values().length);
+    private final LongAdder http2Connections = new LongAdder();
+    private final LongAdder http2Streams = new LongAdder();
+    private final LongAdder http2StreamsRefused = new LongAdder();
+    private final List<ThreadPoolExecutor> executors = new CopyOnWriteArrayList<>();
+    private final List<AdmissionController> admissionControllers = new CopyOnWriteArrayList<>();
+
+    Metrics() {
+        for (int i = 0; i < requestDurationByStatus.length; i++) {
+            requestDurationByStatus[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Registers the worker pool and admission controller of an acceptor; the gauges report the sum over all of them.
+     * Executors other than a ThreadPoolExecutor and a null admission controller are ignored.
+     */
+    void addWorkerGroup(ExecutorService executorService, AdmissionController admission) {
+        if (executorService instanceof ThreadPoolExecutor && !executors.contains(executorService)) {
+            executors.add((ThreadPoolExecutor) executorService);
+        }
+        if (admission != null) {
+            admissionControllers.add(admission);
+        }
+    }
+
+    void connectionOpened() {
+        connectionsAccepted.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void connectionTimedOut(ConnectionPhase phase) {
+        timeoutsByPhase[phase.ordinal()].increment();
+    }
+
+    void http2ConnectionOpened() {
+        http2Connections.increment();
+    }
+
+    void http2StreamOpened() {
+        http2Streams.increment();
+    }
+
+    void http2StreamRefused() {
+        http2StreamsRefused.increment();
+    }
+
+    long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    void bytesRead(long count) {
+        bytesIn.add(count);
+    }
+
+    void requestParsed(HTTPRequest httpRequest, long parseNanos) {
+        RequestType type = httpRequest.getType();
+        requestsByType[type != null ? type.ordinal() : requestsByType.length - 1].increment();
+        parseTime.record(parseNanos);
+    }
+
+    void responseBuilt(long buildNanos) {
+        buildTime.record(buildNanos);
+    }
+
+    /**
+     * @param requestStart     when the request was parsed (or the error was detected), from System.nanoTime
+     * @param writeStart       when the first byte of the response was handed to the socket
+     */
+    void responseWritten(HTTPResponse httpResponse, long requestStart, long writeStart) {
+        long now = System.nanoTime();
+        StatusCode statusCode = httpResponse.getStatusCode();
+        if (statusCode != null) {
+            responsesByStatus[statusCode.ordinal()].increment();
+            requestDurationByStatus[statusCode.ordinal()].record(now - requestStart);
+        }
+        writeTime.record(now - writeStart);
+        bytesOut.add(httpResponse.getLength());
+    }
+
+    /**
+     * Records the time from accepting a connection to writing the first byte of its first response.
+     */
+    void firstByteWritten(long acceptedAt) {
+        firstByteTime.record(System.nanoTime() - acceptedAt);
+    }
+
+    /**
+     * @return all the metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    String toPrometheusText() {
+        StringBuilder text = new StringBuilder(16 * 1024);
+
+        writeHeader(text, "http_requests_total", "counter", "Requests received, by method.");
+        for (RequestType type : RequestType.values()) {
+            writeSample(text, "http_requests_total", "method=\"" + type + "\"", requestsByType[type.ordinal()].sum());
+        }
+        writeSample(text, "http_requests_total", "method=\"other\"", requestsByType[requestsByType.length - 1].sum());
+
+        writeHeader(text, "http_responses_total", "counter", "Responses written, by status code.");
+        for (StatusCode statusCode : StatusCode.values()) {
+            writeSample(text, "http_responses_total", "code=\"" + statusCode.getCode() + "\"", responsesByStatus[statusCode.ordinal()].sum());
+        }
+
+        writeHeader(text, "http_request_duration_seconds", "histogram", "Time from a parsed request to its fully written response, by status code.");
+        for (StatusCode statusCode : StatusCode.values()) {
+            LatencyHistogram histogram = requestDurationByStatus[statusCode.ordinal()];
+            if (histogram.getCount() > 0) {
+                histogram.writeTo(text, "http_request_duration_seconds", "code=\"" + statusCode.getCode() + "\",");
+            }
+        }
+        writeHistogram(text, "http_first_byte_seconds", "Time from accepting a connection to writing the first byte of its first response.", firstByteTime);
+        writeHistogram(text, "http_request_parse_seconds", "Time spent parsing a request once it is complete.", parseTime);
+        writeHistogram(text, "http_response_build_seconds", "Time spent building a response.", buildTime);
+        writeHistogram(text, "http_response_write_seconds", "Time from the first to the last byte of a response handed to the socket.", writeTime);
+
+        writeHeader(text, "http_received_bytes_total", "counter", "Bytes read from clients.");
+        writeSample(text, "http_received_bytes_total", null, bytesIn.sum());
+        writeHeader(text, "http_sent_bytes_total", "counter", "Bytes of complete responses written to clients.");
+        writeSample(text, "http_sent_bytes_total", null, bytesOut.sum());
+        writeHeader(text, "http_connections_total", "counter", "Connections accepted.");
+        writeSample(text, "http_connections_total", null, connectionsAccepted.sum());
+        writeHeader(text, "http_active_connections", "gauge", "Connections currently open.");
+        writeSample(text, "http_active_connections", null, activeConnections.sum());
+        writeHeader(text, "http_timeouts_total", "counter", "Connections timed out, by what they were waiting for.");
+        for (ConnectionPhase phase : ConnectionPhase.values()) {
+            if (phase != ConnectionPhase.PROCESSING) {
+                writeSample(text, "http_timeouts_total", "phase=\"" + phase.label + "\"", timeoutsByPhase[phase.ordinal()].sum());
+            }
+        }
+        writeHeader(text, "http2_connections_total", "counter", "Connections that switched to HTTP/2, with the preface or Upgrade: h2c.");
+        writeSample(text, "http2_connections_total", null, http2Connections.sum());
+        writeHeader(text, "http2_streams_total", "counter", "HTTP/2 streams opened by clients, one per request.");
+        writeSample(text, "http2_streams_total", null, http2Streams.sum());
+        writeHeader(text, "http2_streams_refused_total", "counter", "HTTP/2 streams refused past http2MaxConcurrentStreams, after GOAWAY or while the server is busy.");
+        writeSample(text, "http2_streams_refused_total", null, http2StreamsRefused.sum());
+
+        if (!executors.isEmpty()) {
+            long queueDepth = 0;
+            long activeThreads = 0;
+            long poolSize = 0;
+            for (ThreadPoolExecutor executor : executors) {
+                queueDepth += executor.getQueue().size();
+                activeThreads += executor.getActiveCount();
+                poolSize += executor.getPoolSize();
+            }
+            writeHeader(text, "executor_queue_depth", "gauge", "Accepted connections waiting for a worker thread.");
+            writeSample(text, "executor_queue_depth", null, queueDepth);
+            writeHeader(text, "executor_active_threads", "gauge", "Worker threads currently serving a connection.");
+            writeSample(text, "executor_active_threads", null, activeThreads);
+            writeHeader(text, "executor_pool_size", "gauge", "Worker threads in the pool.");
+            writeSample(text, "executor_pool_size", null, poolSize);
+        }
+
+        if (!admissionControllers.isEmpty()) {
+            long limit = 0;
+            long inFlight = 0;
+            long rejected = 0;
+            for (AdmissionController admission : admissionControllers) {
+                limit += admission.getLimit();
+                inFlight += admission.getInFlight();
+                rejected += admission.getRejected();
+            }
+            writeHeader(text, "admission_limit", "gauge", "Connections admitted at once, adapted to latency.");
+            writeSample(text, "admission_limit", null, limit);
+            writeHeader(text, "admission_in_flight", "gauge", "Connections currently admitted, served or queued.");
+            writeSample(text, "admission_in_flight", null, inFlight);
+            writeHeader(text, "admission_rejected_total", "counter", "Connections shed with 503 Service Unavailable.");
+            writeSample(text, "admission_rejected_total", null, rejected);
+        }
+
+        ClientLimiter clientLimiter = TCPServerMultithreaded.CLIENT_LIMITER;
+        writeHeader(text, "client_limit_tracked_clients", "gauge", "Client addresses whose connections and request rate are tracked.");
+        writeSample(text, "client_limit_tracked_clients", null, clientLimiter.getTrackedClients());
+        writeHeader(text, "client_limit_rejected_connections_total", "counter", "Connections refused with 429 Too Many Requests when accepted.");
+        writeSample(text, "client_limit_rejected_connections_total", null, clientLimiter.getRejectedConnections());
+        writeHeader(text, "client_limit_rejected_requests_total", "counter", "Requests over their client's rate, answered with 429 Too Many Requests.");
+        writeSample(text, "client_limit_rejected_requests_total", null, clientLimiter.getRejectedRequests());
+
+        FileCache fileCache = TCPServerMultithreaded.FILE_CACHE;
+        if (fileCache != null) {
+            writeHeader(text, "file_cache_hits_total", "counter", "File lookups answered by the file cache.");
+            writeSample(text, "file_cache_hits_total", null, fileCache.getHits());
+            writeHeader(text, "file_cache_misses_total", "counter", "File lookups that went to the disk.");
+            writeSample(text, "file_cache_misses_total", null, fileCache.getMisses());
+            writeHeader(text, "file_cache_evictions_total", "counter", "Files evicted from the file cache.");
+            writeSample(text, "file_cache_evictions_total", null, fileCache.getEvictions());
+            writeHeader(text, "file_cache_bytes", "gauge", "File content held in memory by the file cache.");
+            writeSample(text, "file_cache_bytes", null, fileCache.getCachedBytes());
+            writeHeader(text, "file_cache_mapped_bytes", "gauge", "Bytes of large files currently memory-mapped.");
+            writeSample(text, "file_cache_mapped_bytes", null, fileCache.getMappedBytes());
+        }
+
+        BufferPool bufferPool = TCPServerMultithreaded.BUFFER_POOL;
+        writeHeader(text, "buffer_pool_acquired_total", "counter", "I/O buffers handed out by the buffer pool.");
+        writeSample(text, "buffer_pool_acquired_total", null, bufferPool.getAcquired());
+        writeHeader(text, "buffer_pool_allocated_total", "counter", "I/O buffers the buffer pool had to allocate.");
+        writeSample(text, "buffer_pool_allocated_total", null, bufferPool.getAllocated());
+        writeHeader(text, "buffer_pool_outstanding", "gauge", "I/O buffers currently in use by connections.");
+        writeSample(text, "buffer_pool_outstanding", null, bufferPool.getOutstanding());
+
+        AccessLog accessLog = TCPServerMultithreaded.ACCESS_LOG;
+        if (accessLog != null) {
+            writeHeader(text, "access_log_dropped_total", "counter", "Access log records dropped because the log buffer was full.");
+            writeSample(text, "access_log_dropped_total", null, accessLog.getDropped());
+        }
+        return text.toString();
+    }
+
+    private static void writeHistogram(StringBuilder text, String name, String help, LatencyHistogram histogram) {
+        writeHeader(text, name, "histogram", help);
+        histogram.writeTo(text, name, "");
+    }
+
+    private static void writeHeader(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeSample(StringBuilder text, String name, String labels, long value) {
+        text.append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Fixed log2 buckets from 1 microsecond to about 67 seconds: bucket i counts the values up to 2^i microseconds,
+     * so recording a value is a few shifts and one LongAdder increment, with no allocation and no resizing.
+     */
+    static class LatencyHistogram {
+        private static final int BUCKETS = 27;
+
+        private final LongAdder[] buckets = newAdders(BUCKETS + 1); // the last one holds the values above every bound
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sumNanos = new LongAdder();
+
+        void record(long nanos) {
+            long micros = Math.max(nanos, 0) / 1000;
+            int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+            buckets[Math.min(bucket, BUCKETS)].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Writes the cumulative buckets, sum and count; labels is either empty or a label list ending with a comma.
+         */
+        void writeTo(StringBuilder text, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += buckets[i].sum();
+                text.append(name).append("_bucket{").append(labels).append("le=\"").append((1L << i) / 1e6).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            cumulative += buckets[BUCKETS].sum();
+            text.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+            String sampleLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+            text.append(name).append("_sum").append(sampleLabels).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+            text.append(name).append("_count").append(sampleLabels).append(' ').append(cumulative).append('\n');
+        }
+    }
+}
@@ -0,0 +1,525 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event-driven engine used when config.ini has mode=nio.
+ * Acceptor threads (config.ini 'acceptors', see Acceptor for how they share the port) hand connections round-robin
+ * to a fixed set of reactor threads, each of which multiplexes its connections over a single Selector, so idle or slow
+ * clients don't hold a thread. Each acceptor feeds its own subset of the reactors.
+ * Responses are built on a pool of worker threads (config.ini 'nioWorkers'), as building one may read a file, compress
+ * it or render a template; the reactor only parses requests and writes responses, so a slow response doesn't stall the
+ * other connections of its reactor.
+ */
+class NioServer {
+    private static final long SELECT_TIMEOUT = TimerWheel.TICK; // the reactor's timer wheel advances at least once per tick
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
+    private final int port;
+    private final Reactor[] reactors;
+    private final ExecutorService workers;
+    private final int acceptorCount;
+    private volatile ServerSocketChannel[] listeners;
+
+    NioServer(int port, int reactorCount, int workerCount, int acceptorCount) throws IOException {
+        this.port = port;
+        this.acceptorCount = acceptorCount;
+        AtomicInteger workerIndex = new AtomicInteger();
+        // at most one response per connection is being built at a time, which bounds the queue
+        this.workers = Executors.newFixedThreadPool(workerCount, task -> {
+            Thread worker = new Thread(task, "nio-worker-" + workerIndex.getAndIncrement());
+            worker.setDaemon(true);
+            return worker;
+        });
+        this.reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(i, workers);
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        for (Reactor reactor : reactors) {
+            reactor.start();
+        }
+
+        ServerSocketChannel[] listeners = Acceptor.openListeners(port, acceptorCount);
+        this.listeners = listeners;
+        try {
+            System.out.println("Server is listening on port " + port + " (nio, " + reactors.length + " reactors, "
+                    + acceptorCount + " acceptors)...");
+            Thread[] acceptors = new Thread[acceptorCount];
+            for (int i = 0; i < acceptorCount; i++) {
+                ServerSocketChannel serverChannel = listeners[i];
+                Reactor[] group = getReactorGroup(i);
+                acceptors[i] = new Thread(() -> accept(serverChannel, group), "nio-acceptor-" + i);
+                acceptors[i].start();
+            }
+            for (Thread acceptor : acceptors) {
+                acceptor.join();
+            }
+        } finally {
+            Acceptor.close(listeners);
+        }
+    }
+
+    /**
+     * First step of a graceful shutdown, once ThreadRunnable.serverRunning is false: closes the listening sockets and
+     * has the reactors close their idle connections. The others are closed once their current response is written.
+     */
+    void stopAccepting() {
+        ServerSocketChannel[] listeners = this.listeners;
+        if (listeners != null) {
+            Acceptor.close(listeners);
+        }
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+    }
+
+    /**
+     * Last step of a graceful shutdown: closes every connection still open and stops the reactors.
+     */
+    void stop() {
+        for (Reactor reactor : reactors) {
+            reactor.isStopped = true;
+            reactor.selector.wakeup();
+        }
+        workers.shutdown();
+    }
+
+    /**
+     * @return the reactors serving the connections of an acceptor: every acceptorCount-th one starting at its index,
+     * or a single shared reactor when there are more acceptors than reactors.
+     */
+    private Reactor[] getReactorGroup(int acceptorIndex) {
+        if (reactors.length <= acceptorCount) {
+            return new Reactor[]{reactors[acceptorIndex % reactors.length]};
+        }
+        Reactor[] group = new Reactor[(reactors.length - acceptorIndex + acceptorCount - 1) / acceptorCount];
+        for (int i = 0; i < group.length; i++) {
+            group[i] = reactors[acceptorIndex + i * acceptorCount];
+        }
+        return group;
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Reactor[] group) {
+        int next = 0;
+        while (ThreadRunnable.serverRunning) {
+            SocketChannel clientChannel;
+            try {
+                clientChannel = serverChannel.accept();
+            } catch (IOException e) {
+                if (!serverChannel.isOpen()) {
+                    return;
+                }
+                System.err.println(Thread.currentThread().getName() + " - " + e.getMessage());
+                try {
+                    Thread.sleep(Acceptor.ERROR_PAUSE);
+                } catch (InterruptedException ignored) {
+                    return;
+                }
+                continue;
+            }
+            ClientLimiter.Client client = TCPServerMultithreaded.CLIENT_LIMITER.acquire(clientChannel.socket().getInetAddress());
+            if (client == null) {
+                TCPServerMultithreaded.CLIENT_LIMITER.reject(clientChannel);
+                continue;
+            }
+            try {
+                Acceptor.configure(clientChannel);
+            } catch (IOException e) {
+                client.release();
+                closeQuietly(clientChannel); // the client reset the connection already
+                continue;
+            }
+            long acceptedAt = System.nanoTime();
+            TCPServerMultithreaded.METRICS.connectionOpened();
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
+                System.out.println(
+                        clientChannel.socket().getInetAddress().getHostAddress() + ':' + clientChannel.socket().getPort()
+                                + " connected!");
+            }
+            group[next].register(new Connection(clientChannel, acceptedAt, client));
+            next = (next + 1) % group.length;
+        }
+    }
+
+    private static class Reactor extends Thread {
+        private final Selector selector;
+        private final Queue<Connection> pendingConnections = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> builtResponses = new ConcurrentLinkedQueue<>(); // handed back by the workers
+        private final TimerWheel timerWheel = new TimerWheel(); // advanced by the reactor thread, so timeouts run on it
+        private final ExecutorService workers;
+        private volatile boolean isStopped;
+
+        Reactor(int index, ExecutorService workers) throws IOException {
+            super("nio-reactor-" + index);
+            this.selector = Selector.open();
+            this.workers = workers;
+        }
+
+        void register(Connection connection) {
+            pendingConnections.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Called by a worker once the response of a connection is built, so that the reactor writes it.
+         */
+        void responseBuilt(Connection connection) {
+            builtResponses.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!isStopped) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    registerPendingConnections();
+                    writeBuiltResponses();
+                    processSelectedKeys();
+                    if (!ThreadRunnable.serverRunning) {
+                        closeIdleConnections();
+                    }
+                    timerWheel.advance(System.currentTimeMillis());
+                } catch (IOException e) {
+                    System.err.println(getName() + " - " + e.getMessage());
+                }
+            }
+            registerPendingConnections();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+        }
+
+        private void registerPendingConnections() {
+            Connection connection;
+            while ((connection = pendingConnections.poll()) != null) {
+                try {
+                    connection.register(this);
+                } catch (IOException e) {
+                    System.err.println("Error registering connection - " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+
+        private void writeBuiltResponses() {
+            Connection connection;
+            while ((connection = builtResponses.poll()) != null) {
+                try {
+                    connection.onResponseBuilt();
+                } catch (Exception e) {
+                    System.err.println(connection.getClientEndpoint() + " - " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (Exception e) {
+                    System.err.println(connection.getClientEndpoint() + " - " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Closes the connections waiting for their next request, during a graceful shutdown.
+         */
+        private void closeIdleConnections() {
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && key.isValid() && connection.isWaitingForRequest()) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection read/write state machine. Bytes are read into a buffer and fed to an HTTPRequestParser, which keeps
+     * the header block until it is complete and consumes the body as it arrives; a complete request is answered through HTTPResponse.
+     * Pipelined requests are answered one at a time, in order; reading is paused while a response is being written.
+     * The read buffer is taken from the BufferPool when bytes arrive and given back as soon as they are all consumed,
+     * so idle keep-alive connections hold no buffer.
+     */
+    private static class Connection {
+        private final SocketChannel channel;
+        private Reactor reactor;
+        private final long acceptedAt;
+        private final ClientLimiter.Client client;
+        private SelectionKey key;
+        private final String clientIP;
+        private final String clientEndpoint;
+        private ByteBuffer readBuffer; // null while no unparsed bytes are buffered
+        private final BufferArena arena = new BufferArena(TCPServerMultithreaded.BUFFER_POOL);
+        private final HTTPRequestParser requestParser = new HTTPRequestParser();
+        private HTTPResponse pendingResponse;
+        private volatile HTTPResponse builtResponse; // set by the worker building it
+        private boolean isBuilding; // a worker is building the response, reading is paused meanwhile
+        private boolean isBuiltKeepAlive; // written by the worker only on failure, before it hands the response back
+        private long requestStart;
+        private long writeStart;
+        private boolean isFirstByteWritten;
+        private boolean closeAfterWrite;
+        private int requestsServed;
+        private ConnectionTimer timer;
+
+        Connection(SocketChannel channel, long acceptedAt, ClientLimiter.Client client) {
+            this.channel = channel;
+            this.acceptedAt = acceptedAt;
+            this.client = client;
+            this.clientIP = channel.socket().getInetAddress().getHostAddress();
+            this.clientEndpoint = clientIP + ":" + channel.socket().getPort();
+        }
+
+        void register(Reactor reactor) throws IOException {
+            this.reactor = reactor;
+            timer = new ConnectionTimer(reactor.timerWheel, this::onTimeout);
+            timer.enter(ConnectionPhase.FIRST_BYTE);
+            channel.configureBlocking(false);
+            key = channel.register(reactor.selector, SelectionKey.OP_READ, this);
+        }
+
+        void onReadable() throws IOException {
+            if (readBuffer == null) {
+                readBuffer = TCPServerMultithreaded.BUFFER_POOL.acquire(INITIAL_BUFFER_SIZE);
+            } else if (!readBuffer.hasRemaining()) {
+                readBuffer = grow(readBuffer, requestParser.getRequiredCapacity());
+            }
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                close();
+                return;
+            }
+            timer.bytesRead(read);
+            TCPServerMultithreaded.METRICS.bytesRead(read);
+            processBufferedRequest();
+        }
+
+        void onWritable() throws IOException {
+            if (writeStart == 0) {
+                writeStart = System.nanoTime();
+            }
+            boolean isDone = pendingResponse.writeTo(channel);
+            if (!isFirstByteWritten) {
+                TCPServerMultithreaded.METRICS.firstByteWritten(acceptedAt);
+                isFirstByteWritten = true;
+            }
+            if (!isDone) {
+                return;
+            }
+            TCPServerMultithreaded.METRICS.responseWritten(pendingResponse, requestStart, writeStart);
+            if (TCPServerMultithreaded.ACCESS_LOG != null) {
+                TCPServerMultithreaded.ACCESS_LOG.log(clientIP, pendingResponse);
+            }
+            pendingResponse = null;
+            writeStart = 0;
+            if (closeAfterWrite) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            timer.enter(ConnectionPhase.KEEP_ALIVE);
+            processBufferedRequest(); // a pipelined request may already be waiting
+        }
+
+        private void processBufferedRequest() throws IOException {
+            if (readBuffer == null) {
+                return;
+            }
+            readBuffer.flip();
+            long parseStart = System.nanoTime();
+            HTTPRequest httpRequest = requestParser.parse(readBuffer);
+            readBuffer.compact();
+            if (readBuffer.position() == 0) { // no pipelined bytes left
+                releaseReadBuffer();
+            }
+            if (httpRequest == null) {
+                if (requestParser.isReadingBody()) {
+                    timer.enter(ConnectionPhase.BODY);
+                } else if (readBuffer != null) {
+                    timer.enter(ConnectionPhase.HEADER);
+                }
+                if (requestParser.takeContinueExpected()) {
+                    // nothing else is being written at this point, so the socket's send buffer takes it whole
+                    ByteBuffer interimResponse = ByteBuffer.wrap(HeaderWriter.CONTINUE);
+                    if (channel.write(interimResponse) != interimResponse.capacity()) {
+                        throw new IOException("Error writing 100 Continue");
+                    }
+                }
+                return;
+            }
+            timer.enter(ConnectionPhase.PROCESSING);
+            requestStart = System.nanoTime();
+            TCPServerMultithreaded.METRICS.requestParsed(httpRequest, requestStart - parseStart);
+
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
+                System.out.println(httpRequest.getRequestString());
+            }
+            requestsServed++;
+            if (!client.tryRequest()) {
+                httpRequest.setRateLimited();
+            }
+            boolean keepAlive = requestsServed < TCPServerMultithreaded.MAX_KEEP_ALIVE_REQUESTS && httpRequest.isKeepAlive()
+                    && ThreadRunnable.serverRunning;
+            isBuilding = true;
+            isBuiltKeepAlive = keepAlive;
+            key.interestOps(0);
+            try {
+                reactor.workers.execute(() -> {
+                    builtResponse = buildResponse(httpRequest, keepAlive);
+                    reactor.responseBuilt(this);
+                });
+            } catch (RejectedExecutionException e) { // shutting down
+                builtResponse = buildResponse(httpRequest, keepAlive);
+                onResponseBuilt();
+            }
+        }
+
+        /**
+         * Runs on a worker thread; the arena is only used by that thread until the response is handed back.
+         */
+        private HTTPResponse buildResponse(HTTPRequest httpRequest, boolean keepAlive) {
+            HTTPResponse httpResponse;
+            try {
+                httpResponse = new HTTPResponse(httpRequest, keepAlive, arena);
+            } catch (RuntimeException e) {
+                System.err.println(clientEndpoint + " - " + e.getMessage());
+                httpResponse = new HTTPResponse(null); // 500, and the connection is closed after it
+                isBuiltKeepAlive = false;
+            }
+            TCPServerMultithreaded.METRICS.responseBuilt(System.nanoTime() - requestStart);
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
+                System.out.println(httpResponse.getResponse());
+            }
+            return httpResponse;
+        }
+
+        /**
+         * Called on the reactor thread once a worker has built the response.
+         */
+        void onResponseBuilt() throws IOException {
+            HTTPResponse httpResponse = builtResponse;
+            builtResponse = null;
+            isBuilding = false;
+            if (!channel.isOpen()) { // closed while it was being built
+                httpResponse.close();
+                arena.close();
+                return;
+            }
+            respond(httpResponse, isBuiltKeepAlive);
+        }
+
+        private void respond(HTTPResponse httpResponse, boolean keepAlive) throws IOException {
+            pendingResponse = httpResponse;
+            closeAfterWrite = !keepAlive;
+            timer.startWrite(httpResponse.getLength());
+            key.interestOps(SelectionKey.OP_WRITE); // written as soon as the selector reports the socket writable
+        }
+
+        boolean isWaitingForRequest() {
+            return pendingResponse == null && !isBuilding && readBuffer == null && !requestParser.isReadingBody();
+        }
+
+        /**
+         * Called on the reactor thread when the deadline of the current phase passes: a connection waiting for a
+         * request or not reading its response is closed, one in the middle of a request is answered with 408.
+         */
+        private void onTimeout(ConnectionPhase phase) {
+            if (phase != ConnectionPhase.HEADER && phase != ConnectionPhase.BODY) {
+                if (phase == ConnectionPhase.WRITE) {
+                    System.err.println("SocketTimeoutException: " + clientEndpoint + " - Write timed out");
+                }
+                close();
+                return;
+            }
+            System.err.println("SocketTimeoutException: " + clientEndpoint + " - Read timed out");
+            try {
+                releaseReadBuffer();
+                requestStart = System.nanoTime();
+                respond(new HTTPResponse(new HTTPRequest(true)), false);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (pendingResponse != null) {
+                pendingResponse.close();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            if (timer != null) {
+                timer.cancel();
+            }
+            closeQuietly(channel);
+            releaseReadBuffer();
+            if (!isBuilding) { // otherwise closed once the worker is done with it
+                arena.close();
+            }
+            client.release();
+            TCPServerMultithreaded.METRICS.connectionClosed();
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
+                System.out.println(clientEndpoint + " disconnected!");
+            }
+        }
+
+        String getClientEndpoint() {
+            return clientEndpoint;
+        }
+
+        private void releaseReadBuffer() {
+            if (readBuffer != null) {
+                TCPServerMultithreaded.BUFFER_POOL.release(readBuffer);
+                readBuffer = null;
+            }
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int requiredCapacity) {
+            ByteBuffer grown = TCPServerMultithreaded.BUFFER_POOL.acquire(Math.max(buffer.capacity() * 2, requiredCapacity));
+            buffer.flip();
+            grown.put(buffer);
+            TCPServerMultithreaded.BUFFER_POOL.release(buffer);
+            return grown;
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // nothing to do, the connection is going away anyway
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the regular files under the root directory, keyed by their normalized request path
+ * (relative to the root, '/'-separated, as returned by HTTPRequest.normalizePath). It is built once by walking
+ * the tree and kept current by a WatchService thread, so that resolving a request, and answering 404 for one
+ * that matches no file, needs no filesystem call. If the watch queue overflows the index is rebuilt from scratch.
+ * Directory entries that are symbolic links are not followed.
+ */
+class ResourceIndex {
+    private final String root;
+    private final Path rootDirectory;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private volatile Map<String, String> paths = new ConcurrentHashMap<>(); // request path -> full path
+
+    /**
+     * @param root the root directory as configured, with its trailing separator; the full paths of files are
+     *             this string followed by their request path, the same as when they are resolved without the index
+     */
+    ResourceIndex(String root) throws IOException {
+        this.root = root;
+        this.rootDirectory = Paths.get(root).toAbsolutePath().normalize();
+        this.watchService = FileSystems.getDefault().newWatchService();
+        try {
+            index(rootDirectory, paths);
+        } catch (IOException e) {
+            watchService.close();
+            throw e;
+        }
+
+        Thread watcher = new Thread(this::watch, "resource-index");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * @return the full path of the file at the normalized request path, or null if there is no such file.
+     */
+    String getPath(String requestPath) {
+        return paths.get(requestPath);
+    }
+
+    String getRoot() {
+        return root;
+    }
+
+    int getSize() {
+        return paths.size();
+    }
+
+    void close() {
+        try {
+            watchService.close(); // ends the watcher thread
+        } catch (IOException e) {
+            System.err.println("Error closing the resource index - " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the files under directory to index and watches every directory on the way.
+     */
+    private void index(Path directory, Map<String, String> index) throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                watchedDirectories.put(dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE), dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() || (attributes.isSymbolicLink() && Files.isRegularFile(file))) {
+                    String requestPath = getRequestPath(file);
+                    index.put(requestPath, root + requestPath);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                System.err.println("Resource index - cannot read " + file + " - " + e.getMessage());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private String getRequestPath(Path file) {
+        String requestPath = rootDirectory.relativize(file).toString();
+        return File.separatorChar == '/' ? requestPath : requestPath.replace(File.separatorChar, '/');
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rebuild();
+                    } else if (directory != null) {
+                        onEvent(event.kind(), directory.resolve((Path) event.context()));
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key); // the directory is gone
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed, the index is no longer used
+        }
+    }
+
+    private void onEvent(WatchEvent.Kind<?> kind, Path path) {
+        String requestPath = getRequestPath(path);
+        if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+            // a file, or a directory whose files all go with it
+            paths.remove(requestPath);
+            String directoryPrefix = requestPath + "/";
+            paths.keySet().removeIf(indexed -> indexed.startsWith(directoryPrefix));
+        } else if (Files.isDirectory(path, java.nio.file.LinkOption.NOFOLLOW_LINKS)) {
+            try {
+                index(path, paths); // files may have been added before the directory was watched
+            } catch (IOException e) {
+                System.err.println("Resource index - cannot index " + path + " - " + e.getMessage());
+            }
+        } else if (Files.isRegularFile(path)) {
+            paths.put(requestPath, root + requestPath);
+        }
+    }
+
+    private void rebuild() {
+        Map<String, String> rebuilt = new ConcurrentHashMap<>();
+        try {
+            index(rootDirectory, rebuilt);
+            paths = rebuilt;
+        } catch (IOException e) {
+            System.err.println("Resource index - rebuild failed, keeping the current index - " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * The payload of an HTTPResponse, written after the status line and headers.
+ * writeTo writes as much as the channel accepts, so the same body works for blocking and non-blocking channels.
+ */
+interface ResponseBody {
+    long length();
+
+    /**
+     * @return true once the whole body has been written.
+     */
+    boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * Copies the next bytes of the body into dst, for an encoding wrapping the body (ChunkedBody).
+     * A body is either written with writeTo or read, never both.
+     *
+     * @return the number of bytes copied, or -1 at the end of the body.
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * @return the whole body as one buffer if it is in memory (or mapped), so it can go out in a single gathering
+     * write with the headers, otherwise null.
+     */
+    default ByteBuffer getBuffer() {
+        return null;
+    }
+
+    default void close() {
+    }
+}
+
+/**
+ * A body that is already in memory, e.g. generated HTML, a TRACE echo or a cached file (or a range of it).
+ */
+class BytesBody implements ResponseBody {
+    private final ByteBuffer buffer;
+    private final int length;
+
+    BytesBody(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+
+    BytesBody(byte[] bytes, int offset, int length) {
+        this.buffer = ByteBuffer.wrap(bytes, offset, length);
+        this.length = length;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        channel.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), buffer.remaining());
+        dst.put(buffer.slice().limit(count));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+}
+
+/**
+ * A memory-mapped file, or a byte range of it, written from the mapping shared through FileCache.
+ * The body holds a reference to the mapping until it is closed.
+ */
+class MappedBody implements ResponseBody {
+    private final FileCache.MappedFile mappedFile;
+    private final ByteBuffer buffer;
+    private final long length;
+    private boolean isClosed;
+
+    MappedBody(FileCache.MappedFile mappedFile, long offset, long length) {
+        this.mappedFile = mappedFile;
+        this.buffer = mappedFile.slice(offset, length);
+        this.length = length;
+    }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        channel.write(buffer);
+        return !buffer.hasRemaining();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int count = Math.min(dst.remaining(), buffer.remaining());
+        dst.put(buffer.slice().limit(count));
+        buffer.position(buffer.position() + count);
+        return count;
+    }
+
+    @Override
+    public void close() {
+        if (!isClosed) {
+            isClosed = true;
+            mappedFile.release();
+        }
+    }
+}
+
+/**
+ * A file, or a byte range of it, streamed straight from disk with FileChannel.transferTo, which becomes sendfile
+ * when the target is a socket, so the file content never goes through the heap and only the requested bytes are read.
+ */
+class FileBody implements ResponseBody {
+    private final FileChannel fileChannel;
+    private final long length;
+    private final long end;
+    private long position;
+
+    FileBody(File file, long offset, long length) throws IOException {
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.length = length;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (position < end) {
+            long transferred = fileChannel.transferTo(position, end - position, channel);
+            if (transferred <= 0) {
+                if (position >= fileChannel.size()) {
+                    throw new IOException("File was truncated while being sent");
+                }
+                return false; // the socket buffer is full, try again when it is writable
+            }
+            position += transferred;
+        }
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (position >= end) {
+            return -1;
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + (int) Math.min(dst.remaining(), end - position));
+        int read = fileChannel.read(dst, position);
+        dst.limit(limit);
+        if (read == -1) {
+            throw new IOException("File was truncated while being sent");
+        }
+        position += read;
+        return read;
+    }
+
+    @Override
+    public void close() {
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing file - " + e.getMessage());
+        }
+    }
+}
+
+/**
+ * Several bodies sent one after the other, e.g. the parts of a multipart/byteranges response and their delimiters.
+ */
+class MultipartBody implements ResponseBody {
+    private final List<ResponseBody> parts;
+    private final long length;
+    private int current;
+
+    MultipartBody(List<ResponseBody> parts) {
+        this.parts = parts;
+        long length = 0;
+        for (ResponseBody part : parts) {
+            length += part.length();
+        }
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (current < parts.size()) {
+            if (!parts.get(current).writeTo(channel)) {
+                return false;
+            }
+            parts.get(current).close();
+            current++;
+        }
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        while (current < parts.size()) {
+            int read = parts.get(current).read(dst);
+            if (read != -1) {
+                return read;
+            }
+            parts.get(current).close();
+            current++;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        for (ResponseBody part : parts) {
+            part.close();
+        }
+    }
+}
+
+/**
+ * Transfer-Encoding: chunked around another body, produced while it is written: every chunk is read from the body
+ * into one reusable buffer holding the chunk size line, the data and the closing CRLF, so the memory used does not
+ * depend on the body size and the first chunk goes out as soon as it is read. The buffer may come from the
+ * connection's BufferArena, which keeps it once the response is done.
+ */
+class ChunkedBody implements ResponseBody {
+    private static final int HEADER_SPACE = 10; // up to 8 hex digits and CRLF
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ResponseBody body;
+    private final ByteBuffer chunk;
+    private final int chunkEnd; // the buffer may be larger than a chunk
+    private final long length;
+    private boolean isLastChunkQueued;
+
+    ChunkedBody(ResponseBody body, int chunkSize) {
+        this(body, chunkSize, ByteBuffer.allocate(getBufferSize(chunkSize)));
+    }
+
+    /**
+     * @param chunk a buffer of at least getBufferSize(chunkSize) bytes
+     */
+    ChunkedBody(ResponseBody body, int chunkSize, ByteBuffer chunk) {
+        this.body = body;
+        this.chunk = chunk;
+        this.chunkEnd = getBufferSize(chunkSize);
+        this.chunk.limit(0);
+        this.length = getEncodedLength(body.length(), chunkSize);
+    }
+
+    static int getBufferSize(int chunkSize) {
+        return HEADER_SPACE + chunkSize + 2;
+    }
+
+    /**
+     * The encoded length is known up front, as every chunk but the last one is full.
+     */
+    private static long getEncodedLength(long bodyLength, int chunkSize) {
+        long fullChunks = bodyLength / chunkSize;
+        int lastChunkSize = (int) (bodyLength % chunkSize);
+        long length = fullChunks * (Integer.toHexString(chunkSize).length() + 2 + chunkSize + 2) + LAST_CHUNK.length;
+        if (lastChunkSize > 0) {
+            length += Integer.toHexString(lastChunkSize).length() + 2 + lastChunkSize + 2;
+        }
+        return length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public boolean writeTo(WritableByteChannel channel) throws IOException {
+        while (true) {
+            if (chunk.hasRemaining()) {
+                channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    return false; // the socket buffer is full, try again when it is writable
+                }
+            }
+            if (isLastChunkQueued) {
+                return true;
+            }
+            fillChunk();
+        }
+    }
+
+    /**
+     * Copies the encoded body, chunk size lines and CRLFs included, e.g. for a chunked body wrapped in another encoding.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int copied = 0;
+        while (dst.hasRemaining()) {
+            if (!chunk.hasRemaining()) {
+                if (isLastChunkQueued) {
+                    break;
+                }
+                fillChunk();
+                continue;
+            }
+            int count = Math.min(chunk.remaining(), dst.remaining());
+            int limit = chunk.limit();
+            chunk.limit(chunk.position() + count);
+            dst.put(chunk);
+            chunk.limit(limit);
+            copied += count;
+        }
+        return copied == 0 && isLastChunkQueued && !chunk.hasRemaining() ? -1 : copied;
+    }
+
+    private void fillChunk() throws IOException {
+        chunk.clear();
+        chunk.position(HEADER_SPACE);
+        chunk.limit(chunkEnd - 2);
+        int size = 0;
+        int read;
+        while (chunk.hasRemaining() && (read = body.read(chunk)) != -1) {
+            size += read;
+        }
+        if (size == 0) {
+            chunk.clear();
+            chunk.put(LAST_CHUNK).flip();
+            isLastChunkQueued = true;
+            return;
+        }
+        chunk.limit(chunkEnd);
+        chunk.put((byte) '\r').put((byte) '\n');
+        int end = chunk.position();
+
+        // the size line is written right before the data, hex digits from the last one
+        chunk.put(HEADER_SPACE - 2, (byte) '\r').put(HEADER_SPACE - 1, (byte) '\n');
+        int start = HEADER_SPACE - 2;
+        for (int remaining = size; remaining > 0; remaining >>>= 4) {
+            chunk.put(--start, HEX_DIGITS[remaining & 0xf]);
+        }
+        chunk.position(start).limit(end);
+    }
+
+    @Override
+    public void close() {
+        body.close();
+    }
+}
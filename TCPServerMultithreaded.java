@@ -1,30 +1,67 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.regex.Matcher;
 
 
 class ThreadRunnable implements Runnable {
     private final Socket clientSocket;
     private final String clientIP;
     private final String clientPort;
-    private BufferedReader inFromClient;
-    private DataOutputStream outToClient;
+    private final long acceptedAt;
+    private final AdmissionController admission; // null in virtual mode
+    private final ClientLimiter.Client client;
+    private boolean isFirstByteWritten;
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private InputStream inFromClient;
+    private WritableByteChannel outToClient;
+    private ByteBuffer requestBuffer; // pooled, reused for every request of the connection
+    private final BufferArena arena = new BufferArena(TCPServerMultithreaded.BUFFER_POOL);
+    private final HTTPRequestParser requestParser = new HTTPRequestParser();
+    private final ConnectionTimer timer = new ConnectionTimer(TCPServerMultithreaded.TIMER_WHEEL, this::onTimeout);
+    private volatile ConnectionPhase timedOutPhase; // set by the timer wheel's thread
     static volatile boolean serverRunning = true;
+    private static final Set<ThreadRunnable> CONNECTIONS = ConcurrentHashMap.newKeySet(); // being served, for the graceful shutdown
+    private volatile boolean isWaitingForRequest; // no byte of the next request read yet
+    private boolean isPrefaceRead; // the client started with the HTTP/2 preface
+    private volatile Http2Connection http2; // set once the connection has switched to HTTP/2
     private HTTPResponse httpResponse;
 
-    ThreadRunnable(Socket clientSocket) {
+    ThreadRunnable(Socket clientSocket, long acceptedAt, AdmissionController admission, ClientLimiter.Client client) {
         this.clientSocket = clientSocket;
+        this.acceptedAt = acceptedAt;
+        this.admission = admission;
+        this.client = client;
         this.clientIP = clientSocket.getInetAddress().getHostAddress();
         this.clientPort = Integer.toString(clientSocket.getPort());
     }
 
     @Override
     public void run() {
+        CONNECTIONS.add(this);
         try {
+            timer.enter(ConnectionPhase.FIRST_BYTE);
+            requestBuffer = TCPServerMultithreaded.BUFFER_POOL.acquire(INITIAL_BUFFER_SIZE);
             openStreams();
             handleClientRequest();
         } catch (SocketException e) {
@@ -39,54 +76,179 @@ class ThreadRunnable implements Runnable {
     }
 
     private void handleClientRequest() throws IOException {
-            StringBuilder clientRequestBuilder = new StringBuilder();
-            String line;
-            boolean isThereABody = false;
-            int contentLength = 0;
-            while (serverRunning && (line = inFromClient.readLine()) != null) {
-                clientRequestBuilder.append(line).append("\r\n");
-                if (line.startsWith("Content-Length:")) {
-                    isThereABody = true;
-                    contentLength = Integer.parseInt(line.split("Content-Length: ")[1]);
+        int requestsServed = 0;
+        boolean keepAlive = true;
+
+        while (keepAlive) {
+            HTTPRequest httpRequest = readClientRequest(requestsServed > 0);
+            if (isPrefaceRead) {
+                serveHttp2(null, null);
+                return;
+            }
+            if (httpRequest == null) {
+                return; // the client closed the connection or stayed idle past the keep-alive timeout
+            }
+            requestsServed++;
+            byte[] upgradeSettings = TCPServerMultithreaded.HTTP2 && serverRunning
+                    ? Http2Connection.getUpgradeSettings(httpRequest) : null;
+            if (upgradeSettings != null) {
+                outToClient.write(ByteBuffer.wrap(HeaderWriter.SWITCHING_PROTOCOLS_H2C));
+                requestBuffer.flip();
+                serveHttp2(httpRequest, upgradeSettings);
+                return;
+            }
+            keepAlive = processClientRequest(httpRequest, requestsServed < TCPServerMultithreaded.MAX_KEEP_ALIVE_REQUESTS);
+        }
+    }
+
+    /**
+     * @return the next request, or null if there is none; also null once the HTTP/2 preface has been read
+     * (isPrefaceRead), the buffer is then left in read mode with whatever followed it.
+     */
+    private HTTPRequest readClientRequest(boolean isIdleConnection) throws IOException {
+        boolean isPrefacePossible = !isIdleConnection && TCPServerMultithreaded.HTTP2;
+        while (true) {
+            requestBuffer.flip();
+            if (isPrefacePossible) {
+                int preface = Http2Connection.matchPreface(requestBuffer);
+                if (preface == 1) {
+                    isPrefaceRead = true;
+                    return null;
                 }
+                isPrefacePossible = preface == 0; // until the first bytes tell
+            }
+            long parseStart = System.nanoTime();
+            // pipelined requests may already be buffered
+            HTTPRequest httpRequest = isPrefacePossible ? null : requestParser.parse(requestBuffer);
+            requestBuffer.compact();
+            if (httpRequest != null) {
+                timer.enter(ConnectionPhase.PROCESSING);
+                TCPServerMultithreaded.METRICS.requestParsed(httpRequest, System.nanoTime() - parseStart);
+                return httpRequest;
+            }
 
-                if (line.isEmpty()) {
-                    if (isThereABody) {
-                        clientSocket.setSoTimeout(60000); // Timeout for body reading - 1 minute
-                        appendBodyToRequest(clientRequestBuilder, contentLength);
-                    }
-                    processClientRequest(clientRequestBuilder.toString());
-                    return; // we close the connection after the response
+            if (requestParser.takeContinueExpected()) {
+                outToClient.write(ByteBuffer.wrap(HeaderWriter.CONTINUE));
+            }
+            boolean isReadingBody = requestParser.isReadingBody(); // its bytes are consumed as they arrive
+            if (isReadingBody) {
+                timer.enter(ConnectionPhase.BODY);
+            } else if (requestBuffer.position() > 0) {
+                timer.enter(ConnectionPhase.HEADER);
+            } else {
+                timer.enter(isIdleConnection ? ConnectionPhase.KEEP_ALIVE : ConnectionPhase.FIRST_BYTE);
+            }
+            isWaitingForRequest = requestBuffer.position() == 0 && !isReadingBody;
+            if (isWaitingForRequest && !serverRunning) {
+                return null; // shutting down, don't wait for another request
+            }
+            if (readIntoBuffer() == -1) {
+                ConnectionPhase timedOut = timedOutPhase;
+                if (timedOut == ConnectionPhase.HEADER || timedOut == ConnectionPhase.BODY) {
+                    throw new SocketTimeoutException("Read timed out"); // answered with 408
                 }
+                if (requestParser.isReadingBody()) { // invalid request
+                    long missing = requestParser.getMissingBodyBytes();
+                    throw new IOException("Error reading body: "
+                            + (missing >= 0 ? missing + " bytes missing" : "chunked body incomplete"));
+                }
+                return null;
             }
-        
+        }
     }
 
-    private void appendBodyToRequest(StringBuilder clientRequestBuilder, int contentLength) throws IOException {
-        char[] body = new char[contentLength];
-            int charsRead = inFromClient.read(body, 0, contentLength);
-            if (charsRead < contentLength) { // invalid request
-                throw new IOException("Error reading body: " + charsRead + " chars read, " + contentLength + " expected");
+    private int readIntoBuffer() throws IOException {
+        if (!requestBuffer.hasRemaining()) {
+            ByteBuffer grown = TCPServerMultithreaded.BUFFER_POOL.acquire(Math.max(requestBuffer.capacity() * 2, requestParser.getRequiredCapacity()));
+            requestBuffer.flip();
+            grown.put(requestBuffer);
+            TCPServerMultithreaded.BUFFER_POOL.release(requestBuffer);
+            requestBuffer = grown;
+        }
+        try {
+            int read = inFromClient.read(requestBuffer.array(), requestBuffer.arrayOffset() + requestBuffer.position(), requestBuffer.remaining());
+            if (read > 0) {
+                requestBuffer.position(requestBuffer.position() + read);
+                timer.bytesRead(read);
+                TCPServerMultithreaded.METRICS.bytesRead(read);
             }
-        clientRequestBuilder.append(body);
+            return read;
+        } catch (IOException e) {
+            if (timedOutPhase != null) {
+                return -1; // the timer wheel shut the input down
+            }
+            if (isWaitingForRequest && !serverRunning) {
+                return -1; // closed by the graceful shutdown while idle
+            }
+            throw e;
+        } finally {
+            isWaitingForRequest = false;
+        }
+    }
+
+    /**
+     * Called by the timer wheel's thread when the deadline of the current phase passes. A read blocked on the
+     * socket returns the end of the input: quietly closed while waiting for a request, answered with 408 in the
+     * middle of one. A write can't be woken that way, so the socket is closed.
+     */
+    private void onTimeout(ConnectionPhase phase) {
+        timedOutPhase = phase;
+        try {
+            if (phase == ConnectionPhase.WRITE) {
+                clientSocket.close();
+            } else {
+                clientSocket.shutdownInput();
+            }
+        } catch (IOException e) {
+            // closed meanwhile
+        }
     }
 
-    private void processClientRequest(String clientRequest) throws IOException {
-        System.out.println(clientRequest);
-        HTTPRequest httpRequest = new HTTPRequest(clientRequest);
-        this.httpResponse = new HTTPResponse(httpRequest);
-        System.out.println(this.httpResponse.getResponse());
-        sendHttpResponseToClient(this.httpResponse);
-        outToClient.flush();
+    /**
+     * Hands the connection over to HTTP/2 until it closes, with requestBuffer in read mode holding what was read past
+     * the preface or the upgrade request.
+     */
+    private void serveHttp2(HTTPRequest upgradeRequest, byte[] upgradeSettings) {
+        Http2Connection http2 = new Http2Connection(clientSocket, inFromClient, outToClient, requestBuffer, timer,
+                getClientEndpoint(), client);
+        this.http2 = http2;
+        http2.serve(upgradeRequest, upgradeSettings);
+    }
+
+    private boolean processClientRequest(HTTPRequest httpRequest, boolean mayKeepAlive) throws IOException {
+        if (TCPServerMultithreaded.DEBUG_DUMP) {
+            System.out.println(httpRequest.getRequestString());
+        }
+        if (!client.tryRequest()) {
+            httpRequest.setRateLimited();
+        }
+        boolean keepAlive = mayKeepAlive && httpRequest.isKeepAlive() && serverRunning;
+        long requestStart = System.nanoTime();
+        this.httpResponse = new HTTPResponse(httpRequest, keepAlive, arena);
+        TCPServerMultithreaded.METRICS.responseBuilt(System.nanoTime() - requestStart);
+        if (TCPServerMultithreaded.DEBUG_DUMP) {
+            System.out.println(this.httpResponse.getResponse());
+        }
+        sendHttpResponseToClient(this.httpResponse, requestStart);
+        return keepAlive;
     }
 
     private void handleSocketException(SocketException e) {
+        if (isClosedByShutdown() || isClosedByWriteTimeout()) {
+            return;
+        }
         String clientEndpoint = getClientEndpoint();
         System.err.println("SocketException: " + clientEndpoint + " - " + e.getMessage());
         sendErrorResponse(e);
     }
 
     private void handleIOException(IOException e) {
+        if (isClosedByShutdown()) {
+            return;
+        }
+        if (isClosedByWriteTimeout()) {
+            return;
+        }
         String clientEndpoint = getClientEndpoint();
         String exceptionName = e instanceof SocketTimeoutException ? "SocketTimeoutException" : "IOException";
         System.err.println(exceptionName + ": " + clientEndpoint + " - " + e.getMessage());
@@ -99,16 +261,38 @@ class ThreadRunnable implements Runnable {
         sendErrorResponse(e);
     }
 
+    /**
+     * @return true if the socket was closed by a graceful shutdown that ran out of time, so there is no one to answer.
+     */
+    private boolean isClosedByShutdown() {
+        return !serverRunning && clientSocket.isClosed();
+    }
+
+    /**
+     * @return true if the timer wheel closed the socket because the response was not read in time.
+     */
+    private boolean isClosedByWriteTimeout() {
+        if (timedOutPhase != ConnectionPhase.WRITE) {
+            return false;
+        }
+        System.err.println("SocketTimeoutException: " + getClientEndpoint() + " - Write timed out");
+        return true;
+    }
+
     private void sendErrorResponse(Exception e) {
+        if (http2 != null) {
+            return; // not an HTTP/1.x connection anymore, Http2Connection answered what it could
+        }
+        long requestStart = System.nanoTime();
         if (e instanceof SocketTimeoutException) {
             this.httpResponse = new HTTPResponse(new HTTPRequest(true));
-        } else if (e.getMessage().startsWith("Error reading body")) {
-            this.httpResponse = new HTTPResponse(new HTTPRequest("")); // invalid request
+        } else if (e.getMessage() != null && e.getMessage().startsWith("Error reading body")) {
+            this.httpResponse = new HTTPResponse(HTTPRequest.invalid());
         } else {
             this.httpResponse = new HTTPResponse(null);
         }
         try {
-            sendHttpResponseToClient(this.httpResponse);
+            sendHttpResponseToClient(this.httpResponse, requestStart);
         } catch (IOException ex) {
             String clientEndpoint = getClientEndpoint();
             System.err.println(clientEndpoint + " - " + ex.getMessage());
@@ -116,13 +300,48 @@ class ThreadRunnable implements Runnable {
     }
 
     private void openStreams() throws IOException {
-        inFromClient = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-        outToClient = new DataOutputStream(clientSocket.getOutputStream());
+        inFromClient = clientSocket.getInputStream();
+        // the socket comes from a ServerSocketChannel, so file bodies can be sent with sendfile through its channel
+        outToClient = clientSocket.getChannel() != null
+                ? clientSocket.getChannel()
+                : Channels.newChannel(clientSocket.getOutputStream());
     }
 
     private void closeResources() {
+        timer.cancel();
         closeStreams();
         closeSocket();
+        if (requestBuffer != null) {
+            TCPServerMultithreaded.BUFFER_POOL.release(requestBuffer);
+            requestBuffer = null;
+        }
+        arena.close();
+        client.release();
+        CONNECTIONS.remove(this);
+        TCPServerMultithreaded.METRICS.connectionClosed();
+    }
+
+    /**
+     * Closes the connections waiting for their next request, during a graceful shutdown.
+     */
+    static void closeIdleConnections() {
+        for (ThreadRunnable connection : CONNECTIONS) {
+            Http2Connection http2 = connection.http2;
+            if (http2 != null) {
+                http2.shutdown(); // GOAWAY, then closed once its streams are answered
+            } else if (connection.isWaitingForRequest) {
+                connection.closeSocket();
+            }
+        }
+    }
+
+    /**
+     * Closes every connection still being served, when the graceful shutdown runs out of time.
+     */
+    static void closeAllConnections() {
+        for (ThreadRunnable connection : CONNECTIONS) {
+            connection.closeSocket();
+        }
     }
 
     private void closeStreams() {
@@ -141,9 +360,9 @@ class ThreadRunnable implements Runnable {
 
     private void closeSocket() {
         try {
-            if (serverRunning) {
-                String clientEndpoint = getClientEndpoint();
-                clientSocket.close();
+            String clientEndpoint = getClientEndpoint();
+            clientSocket.close();
+            if (TCPServerMultithreaded.DEBUG_DUMP) {
                 System.out.println(clientEndpoint + " disconnected!");
             }
         } catch (IOException e) {
@@ -156,65 +375,473 @@ class ThreadRunnable implements Runnable {
         return this.clientIP + ":" + this.clientPort;
     }
 
-    private void sendHttpResponseToClient(HTTPResponse httpResponse) throws IOException {
-        outToClient.writeBytes(httpResponse.getResponse().toString());
+    private void sendHttpResponseToClient(HTTPResponse httpResponse, long requestStart) throws IOException {
+        try {
+            long writeStart = System.nanoTime();
+            boolean isFirstResponse = !isFirstByteWritten;
+            timer.startWrite(httpResponse.getLength());
+            boolean isDone = httpResponse.writeTo(outToClient);
+            if (isFirstResponse) {
+                TCPServerMultithreaded.METRICS.firstByteWritten(acceptedAt);
+                isFirstByteWritten = true;
+            }
+            while (!isDone) {
+                // a blocking channel only stops early after a partial file transfer, keep writing
+                isDone = httpResponse.writeTo(outToClient);
+            }
+            TCPServerMultithreaded.METRICS.responseWritten(httpResponse, requestStart, writeStart);
+            if (admission != null) {
+                admission.onSample(System.nanoTime() - (isFirstResponse ? acceptedAt : requestStart));
+            }
+            if (TCPServerMultithreaded.ACCESS_LOG != null) {
+                TCPServerMultithreaded.ACCESS_LOG.log(clientIP, httpResponse);
+            }
+        } finally {
+            httpResponse.close();
+        }
     }
 }
 
 public class TCPServerMultithreaded {
 
     private static int PORT;
-    private static final String CONFIG_FILE_PATH = "./config.ini";
-    public static String ROOT;
-    public static String DEFAULT_PAGE;
-    public static int MAX_THREADS;
+    private static final String DEFAULT_CONFIG_FILE_PATH = "./config.ini";
+    // settings below marked volatile are applied again when config.ini changes, the others need a restart
+    public static volatile String ROOT;
+    public static volatile String DEFAULT_PAGE;
+    public static volatile int MAX_THREADS;
+    public static volatile int KEEP_ALIVE_TIMEOUT;
+    public static volatile int FIRST_BYTE_TIMEOUT;
+    public static volatile int HEADER_TIMEOUT;
+    public static volatile int BODY_TIMEOUT;
+    public static volatile int WRITE_TIMEOUT;
+    public static volatile int MIN_TRANSFER_RATE;
+    public static volatile int MAX_KEEP_ALIVE_REQUESTS;
+    public static volatile boolean HTTP2;
+    public static volatile int HTTP2_MAX_CONCURRENT_STREAMS;
+    public static volatile int HTTP2_INITIAL_WINDOW_SIZE;
+    public static ExecutorService HTTP2_STREAMS; // answers the requests of HTTP/2 streams, in the blocking engine
+    public static Semaphore HTTP2_STREAM_PERMITS; // HTTP/2 streams answered or waiting for a thread, across all connections
+    public static int HTTP2_STREAM_THREADS;
+    public static int HTTP2_STREAMS_PER_CONNECTION; // streams of one HTTP/2 connection answered at once
+    public static String MODE;
+    public static int NIO_REACTORS;
+    public static int NIO_WORKERS;
+    public static int MAX_CONNECTIONS;
+    public static FileCache FILE_CACHE;
+    public static volatile ResourceIndex RESOURCE_INDEX; // null when disabled, files are then looked up on disk
+    public static volatile Map<String, String> CACHE_CONTROL = new HashMap<>();
+    public static final Metrics METRICS = new Metrics();
+    public static final BufferPool BUFFER_POOL = new BufferPool();
+    public static final ClientLimiter CLIENT_LIMITER = new ClientLimiter();
+    public static final TimerWheel TIMER_WHEEL = new TimerWheel(); // the blocking engine's, each nio reactor has its own
+    public static int ADMIN_PORT;
+    public static String ADMIN_ADDRESS;
+    public static AccessLog ACCESS_LOG;
+    public static volatile Set<String> COMPRESSION_TYPES = new HashSet<>();
+    public static volatile int COMPRESSION_MIN_SIZE;
+    public static volatile int COMPRESSION_LEVEL;
+    public static volatile int CHUNK_SIZE;
+    public static volatile long MAX_BODY_SIZE;
+    public static int QUEUE_CAPACITY;
+    public static int ACCEPT_BACKLOG;
+    public static volatile long LATENCY_TARGET;
+    public static volatile int RETRY_AFTER;
+    public static int ACCEPTORS;
+    public static volatile boolean TCP_NO_DELAY;
+    public static volatile int SEND_BUFFER_SIZE;
+    public static int RECEIVE_BUFFER_SIZE;
+    public static volatile boolean DEBUG_DUMP;
+    public static volatile long SHUTDOWN_TIMEOUT;
+    public static long CONFIG_RELOAD_INTERVAL;
 
+    private static final long DRAIN_CHECK_INTERVAL = 50;
+    private static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    private static final String[] RESTART_SETTINGS = {"port", "mode", "acceptors", "acceptBacklog", "receiveBufferSize",
+            "queueCapacity", "maxConnections", "nioReactors", "nioWorkers", "http2StreamThreads",
+            "http2StreamsPerConnection", "adminPort", "adminAddress", "accessLog", "accessLogFormat",
+            "accessLogBufferSize", "accessLogFullPolicy", "accessLogMaxFileSize", "accessLogMaxFiles",
+            "configReloadInterval"};
+
+    private static String configFilePath;
+    private static Properties startupProperties;
+    private static volatile ServerSocketChannel[] listeners;
+    private static volatile NioServer nioServer;
+    private static volatile ExecutorService[] workerPools = new ExecutorService[0];
+    private static volatile AdmissionController[] admissionControllers = new AdmissionController[0];
 
-    public static void main(String[] args) throws Exception {
-        ExecutorService executor = null;
-        ServerSocket serverSocket = null;
 
+    public static void main(String[] args) throws Exception {
         try {
-            readDataFromConfigFile();
-            serverSocket = new ServerSocket(PORT);
-            executor = Executors.newFixedThreadPool(MAX_THREADS);
-            System.out.println("Server is listening on port " + PORT + "...");
-
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                System.out.println(
-                        clientSocket.getInetAddress().getHostAddress() + ':' + clientSocket.getPort()
-                                + " connected!");
-                Runnable worker = new ThreadRunnable(clientSocket);
-                executor.execute(worker);
+            readDataFromConfigFile(args.length > 0 ? args[0] : DEFAULT_CONFIG_FILE_PATH);
+            BUFFER_POOL.setLeakDetection(DEBUG_DUMP);
+            Runtime.getRuntime().addShutdownHook(new Thread(TCPServerMultithreaded::shutDownGracefully, "graceful-shutdown"));
+            if (ADMIN_PORT > 0) {
+                new AdminServer(ADMIN_ADDRESS, ADMIN_PORT, METRICS).start();
+            }
+            if (CONFIG_RELOAD_INTERVAL > 0) {
+                startConfigReloader();
+            }
+            if ("nio".equals(MODE)) {
+                nioServer = new NioServer(PORT, NIO_REACTORS, NIO_WORKERS, ACCEPTORS);
+                nioServer.run();
+                return;
+            }
+            TIMER_WHEEL.start("timer-wheel");
+            listeners = Acceptor.openListeners(PORT, ACCEPTORS);
+            boolean isVirtualMode = "virtual".equals(MODE);
+            // streams are answered outside the worker pool their connection holds a thread of, so a connection's
+            // streams are answered at once; permits bound them like the connections of their mode, past them a stream
+            // is refused
+            if (isVirtualMode) {
+                HTTP2_STREAMS = newVirtualThreadExecutor();
+                HTTP2_STREAM_PERMITS = new Semaphore(MAX_CONNECTIONS);
+            } else {
+                AtomicInteger streamThreadIndex = new AtomicInteger();
+                HTTP2_STREAMS = Executors.newFixedThreadPool(HTTP2_STREAM_THREADS, task -> {
+                    Thread streamThread = new Thread(task, "http2-stream-" + streamThreadIndex.getAndIncrement());
+                    streamThread.setDaemon(true);
+                    return streamThread;
+                });
+                HTTP2_STREAM_PERMITS = new Semaphore(HTTP2_STREAM_THREADS + QUEUE_CAPACITY);
+            }
+            if (HTTP2_STREAMS_PER_CONNECTION <= 0) { // a single connection never takes all the permits
+                HTTP2_STREAMS_PER_CONNECTION = Math.max(1, (isVirtualMode ? MAX_CONNECTIONS : HTTP2_STREAM_THREADS) / 2);
+            }
+            // virtual threads are cheap, so the number of connections served at once is capped by permits instead of threads
+            Semaphore connectionPermits = isVirtualMode ? new Semaphore(MAX_CONNECTIONS) : null;
+            ExecutorService[] executors = new ExecutorService[isVirtualMode ? 1 : ACCEPTORS];
+            AdmissionController[] admissions = new AdmissionController[isVirtualMode ? 0 : ACCEPTORS];
+            Acceptor[] acceptors = new Acceptor[ACCEPTORS];
+            for (int i = 0; i < ACCEPTORS; i++) {
+                AdmissionController admission = null;
+                if (isVirtualMode) {
+                    if (i == 0) {
+                        executors[0] = newVirtualThreadExecutor();
+                    }
+                } else {
+                    // each acceptor gets its own share of the worker threads and queue
+                    int threads = Math.max(share(MAX_THREADS, i), 1);
+                    int queueCapacity = share(QUEUE_CAPACITY, i);
+                    // a bounded queue: past it, or past the adaptive limit, connections are shed instead of piling up
+                    executors[i] = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                            queueCapacity > 0 ? new ArrayBlockingQueue<>(queueCapacity) : new SynchronousQueue<>());
+                    admission = new AdmissionController(threads, queueCapacity, LATENCY_TARGET, RETRY_AFTER);
+                    admissions[i] = admission;
+                }
+                METRICS.addWorkerGroup(executors[isVirtualMode ? 0 : i], admission);
+                acceptors[i] = new Acceptor(i, listeners[i], executors[isVirtualMode ? 0 : i], admission, connectionPermits);
+            }
+            workerPools = executors;
+            admissionControllers = admissions;
+            System.out.println("Server is listening on port " + PORT + " (" + ACCEPTORS + " acceptors)...");
+
+            for (Acceptor acceptor : acceptors) {
+                acceptor.start();
+            }
+            for (Acceptor acceptor : acceptors) {
+                acceptor.join();
             }
         } catch (Exception e) {
             System.err.println(e.getMessage());
         } finally {
-            if (executor != null) {
+            if (FILE_CACHE != null) {
+                System.out.println(FILE_CACHE);
+            }
+            if (workerPools.length > 0) {
                 System.out.println("Shutting down executor...");
-                executor.shutdown();
+                for (ExecutorService executor : workerPools) {
+                    executor.shutdown();
+                }
             }
-            if (serverSocket != null) {
+            if (listeners != null) {
                 System.out.println("Closing server socket...");
-                serverSocket.close();
+                Acceptor.close(listeners);
             }
             System.out.println("Shutting down...");
         }
     }
 
-    private static void readDataFromConfigFile() {
-        Properties properties = new Properties();
+    /**
+     * Runs on SIGTERM (or any other JVM exit): stops accepting, closes the idle keep-alive connections, lets the
+     * requests in flight finish for up to shutdownTimeout milliseconds, then closes whatever is still open.
+     * Connections answered meanwhile get 'Connection: close', and the access log is flushed last.
+     */
+    private static void shutDownGracefully() {
+        if (!ThreadRunnable.serverRunning) {
+            return;
+        }
+        ThreadRunnable.serverRunning = false;
+        System.out.println("Stopping, waiting up to " + SHUTDOWN_TIMEOUT + " ms for " + METRICS.getActiveConnections() + " open connections...");
+        NioServer nioServer = TCPServerMultithreaded.nioServer;
+        if (nioServer != null) {
+            nioServer.stopAccepting();
+        } else if (listeners != null) {
+            Acceptor.close(listeners);
+        }
 
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT;
+        while (METRICS.getActiveConnections() > 0 && System.currentTimeMillis() < deadline) {
+            if (nioServer == null) {
+                ThreadRunnable.closeIdleConnections(); // the reactors close theirs on their own
+            }
+            try {
+                Thread.sleep(DRAIN_CHECK_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        long remaining = METRICS.getActiveConnections();
+        if (remaining > 0) {
+            System.out.println("Closing " + remaining + " connections still open after " + SHUTDOWN_TIMEOUT + " ms");
+            ThreadRunnable.closeAllConnections();
+        }
+        if (nioServer != null) {
+            nioServer.stop();
+        }
+        if (ACCESS_LOG != null) {
+            ACCESS_LOG.close();
+        }
+        if (METRICS.getActiveConnections() == 0) { // otherwise some are still giving their buffers back
+            BUFFER_POOL.reportLeaks();
+        }
+    }
+
+    /**
+     * @return the part of total given to acceptor index, the remainder going to the first ones.
+     */
+    private static int share(int total, int index) {
+        return total / ACCEPTORS + (index < total % ACCEPTORS ? 1 : 0);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        // looked up reflectively so the server still compiles and runs on JDKs older than 21
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not supported by this JVM, using platform threads instead");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private static void readDataFromConfigFile(String configFilePath) {
         try {
-            properties.load(new FileInputStream(CONFIG_FILE_PATH));
+            Properties properties = loadProperties(configFilePath);
+            TCPServerMultithreaded.configFilePath = configFilePath;
+            startupProperties = properties;
             PORT = Integer.parseInt(properties.getProperty("port"));
-            ROOT = properties.getProperty("root");
-            DEFAULT_PAGE = properties.getProperty("defaultPage");
-            MAX_THREADS = Integer.parseInt(properties.getProperty("maxThreads"));
+            applySettings(properties);
+            QUEUE_CAPACITY = Integer.parseInt(properties.getProperty("queueCapacity", "100"));
+            ACCEPT_BACKLOG = Integer.parseInt(properties.getProperty("acceptBacklog", "50"));
+            ACCEPTORS = Math.max(Integer.parseInt(properties.getProperty("acceptors", "1")), 1);
+            RECEIVE_BUFFER_SIZE = Integer.parseInt(properties.getProperty("receiveBufferSize", "0"));
+            CONFIG_RELOAD_INTERVAL = Long.parseLong(properties.getProperty("configReloadInterval", "2000"));
+            String accessLogPath = properties.getProperty("accessLog", "");
+            if (!accessLogPath.isEmpty()) {
+                ACCESS_LOG = new AccessLog(accessLogPath,
+                        Integer.parseInt(properties.getProperty("accessLogBufferSize", "8192")),
+                        properties.getProperty("accessLogFormat", "combined"),
+                        properties.getProperty("accessLogFullPolicy", "drop"),
+                        Long.parseLong(properties.getProperty("accessLogMaxFileSize", "10485760")),
+                        Integer.parseInt(properties.getProperty("accessLogMaxFiles", "5")));
+            }
+            ADMIN_PORT = Integer.parseInt(properties.getProperty("adminPort", "0"));
+            ADMIN_ADDRESS = properties.getProperty("adminAddress", "127.0.0.1");
+            MODE = properties.getProperty("mode", "threads");
+            MAX_CONNECTIONS = Integer.parseInt(properties.getProperty("maxConnections", "10000"));
+            NIO_REACTORS = Integer.parseInt(properties.getProperty("nioReactors", "0"));
+            if (NIO_REACTORS <= 0) {
+                NIO_REACTORS = Runtime.getRuntime().availableProcessors();
+            }
+            NIO_WORKERS = Integer.parseInt(properties.getProperty("nioWorkers", "0"));
+            if (NIO_WORKERS <= 0) {
+                NIO_WORKERS = 2 * Runtime.getRuntime().availableProcessors();
+            }
+            HTTP2_STREAM_THREADS = Integer.parseInt(properties.getProperty("http2StreamThreads", "0"));
+            if (HTTP2_STREAM_THREADS <= 0) {
+                HTTP2_STREAM_THREADS = MAX_THREADS;
+            }
+            HTTP2_STREAMS_PER_CONNECTION = Integer.parseInt(properties.getProperty("http2StreamsPerConnection", "0"));
         } catch (IOException e) {
-            throw new RuntimeException("Failed to load configuration from " + CONFIG_FILE_PATH, e);
+            throw new RuntimeException("Failed to load configuration from " + configFilePath, e);
+        }
+
+    }
+
+    private static Properties loadProperties(String configFilePath) throws IOException {
+        Properties properties = new Properties();
+        try (FileInputStream in = new FileInputStream(configFilePath)) {
+            properties.load(in);
         }
+        return properties;
+    }
 
+    /**
+     * Reads the settings that can change while the server runs. Everything is parsed before anything is assigned,
+     * so a reload with a malformed value leaves the running settings untouched.
+     */
+    private static void applySettings(Properties properties) {
+        String root = properties.getProperty("root").replaceFirst("^~", Matcher.quoteReplacement(System.getProperty("user.home")));
+        String defaultPage = properties.getProperty("defaultPage");
+        int maxThreads = Integer.parseInt(properties.getProperty("maxThreads"));
+        int keepAliveTimeout = Integer.parseInt(properties.getProperty("keepAliveTimeout", "5000"));
+        int maxKeepAliveRequests = Integer.parseInt(properties.getProperty("maxKeepAliveRequests", "100"));
+        boolean http2 = Boolean.parseBoolean(properties.getProperty("http2", "false"));
+        int http2MaxConcurrentStreams = Integer.parseInt(properties.getProperty("http2MaxConcurrentStreams", "100"));
+        int http2InitialWindowSize = Integer.parseInt(properties.getProperty("http2InitialWindowSize", "1048576"));
+        int firstByteTimeout = Integer.parseInt(properties.getProperty("firstByteTimeout", "10000"));
+        int headerTimeout = Integer.parseInt(properties.getProperty("headerTimeout", "20000"));
+        int bodyTimeout = Integer.parseInt(properties.getProperty("bodyTimeout", "60000"));
+        int writeTimeout = Integer.parseInt(properties.getProperty("writeTimeout", "60000"));
+        int minTransferRate = Integer.parseInt(properties.getProperty("minTransferRate", "1024"));
+        Map<String, String> cacheControl = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith("cacheControl.")) {
+                cacheControl.put(name.substring("cacheControl.".length()).toLowerCase(), properties.getProperty(name));
+            }
+        }
+        long fileCacheSize = Long.parseLong(properties.getProperty("fileCacheSize", "67108864"));
+        long fileCacheMaxEntrySize = Long.parseLong(properties.getProperty("fileCacheMaxEntrySize", "1048576"));
+        long fileCacheRevalidateInterval = Long.parseLong(properties.getProperty("fileCacheRevalidateInterval", "1000"));
+        long mmapThreshold = Long.parseLong(properties.getProperty("mmapThreshold", "1048576"));
+        long mmapMaxBytes = Long.parseLong(properties.getProperty("mmapMaxBytes", "268435456"));
+        Set<String> compressionTypes = new HashSet<>();
+        for (String contentType : properties.getProperty("compressionTypes", "text/html").split(",")) {
+            if (!contentType.isBlank()) {
+                compressionTypes.add(contentType.trim().toLowerCase());
+            }
+        }
+        int compressionMinSize = Integer.parseInt(properties.getProperty("compressionMinSize", "1024"));
+        int compressionLevel = Integer.parseInt(properties.getProperty("compressionLevel", "6"));
+        long latencyTarget = Long.parseLong(properties.getProperty("latencyTarget", "0"));
+        int retryAfter = Integer.parseInt(properties.getProperty("retryAfter", "1"));
+        int maxConnectionsPerClient = Integer.parseInt(properties.getProperty("maxConnectionsPerClient", "0"));
+        int requestRate = Integer.parseInt(properties.getProperty("requestRate", "0"));
+        int requestBurst = Integer.parseInt(properties.getProperty("requestBurst", "100"));
+        byte[][] clientAllowlist = ClientLimiter.parseAllowlist(properties.getProperty("clientAllowlist", ""));
+        int chunkSize = Integer.parseInt(properties.getProperty("chunkSize", "8192"));
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) { // a chunk and its framing must fit one buffer
+            throw new IllegalArgumentException("chunkSize must be between 1 and " + MAX_CHUNK_SIZE + ": " + chunkSize);
+        }
+        long maxBodySize = Long.parseLong(properties.getProperty("maxBodySize", "10485760"));
+        boolean tcpNoDelay = Boolean.parseBoolean(properties.getProperty("tcpNoDelay", "true"));
+        int sendBufferSize = Integer.parseInt(properties.getProperty("sendBufferSize", "0"));
+        boolean debugDump = Boolean.parseBoolean(properties.getProperty("debugDump", "false"));
+        long shutdownTimeout = Long.parseLong(properties.getProperty("shutdownTimeout", "10000"));
+        boolean isResourceIndexEnabled = Boolean.parseBoolean(properties.getProperty("resourceIndex", "true"));
+
+        ROOT = root;
+        DEFAULT_PAGE = defaultPage;
+        MAX_THREADS = maxThreads;
+        KEEP_ALIVE_TIMEOUT = keepAliveTimeout;
+        MAX_KEEP_ALIVE_REQUESTS = maxKeepAliveRequests;
+        HTTP2 = http2;
+        HTTP2_MAX_CONCURRENT_STREAMS = http2MaxConcurrentStreams;
+        HTTP2_INITIAL_WINDOW_SIZE = http2InitialWindowSize;
+        FIRST_BYTE_TIMEOUT = firstByteTimeout;
+        HEADER_TIMEOUT = headerTimeout;
+        BODY_TIMEOUT = bodyTimeout;
+        WRITE_TIMEOUT = writeTimeout;
+        MIN_TRANSFER_RATE = minTransferRate;
+        CACHE_CONTROL = cacheControl; // before the file cache, which drops the entries whose Cache-Control changed
+        if (FILE_CACHE == null) {
+            FILE_CACHE = new FileCache(fileCacheSize, fileCacheMaxEntrySize, fileCacheRevalidateInterval, mmapThreshold, mmapMaxBytes);
+        } else {
+            FILE_CACHE.configure(fileCacheSize, fileCacheMaxEntrySize, fileCacheRevalidateInterval, mmapThreshold, mmapMaxBytes);
+        }
+        COMPRESSION_TYPES = compressionTypes;
+        COMPRESSION_MIN_SIZE = compressionMinSize;
+        COMPRESSION_LEVEL = compressionLevel;
+        LATENCY_TARGET = latencyTarget;
+        RETRY_AFTER = retryAfter;
+        CLIENT_LIMITER.configure(maxConnectionsPerClient, requestRate, requestBurst, clientAllowlist, retryAfter);
+        CHUNK_SIZE = chunkSize;
+        MAX_BODY_SIZE = maxBodySize;
+        TCP_NO_DELAY = tcpNoDelay;
+        SEND_BUFFER_SIZE = sendBufferSize;
+        DEBUG_DUMP = debugDump;
+        SHUTDOWN_TIMEOUT = shutdownTimeout;
+        updateResourceIndex(isResourceIndexEnabled);
     }
-}
\ No newline at end of file
+
+    /**
+     * Builds the resource index of ROOT, or drops it when it is disabled or ROOT changed. If the root can't be
+     * indexed the server keeps running and looks files up on disk.
+     */
+    private static void updateResourceIndex(boolean isEnabled) {
+        ResourceIndex current = RESOURCE_INDEX;
+        if (current != null && isEnabled && current.getRoot().equals(ROOT)) {
+            return;
+        }
+        ResourceIndex updated = null;
+        if (isEnabled) {
+            try {
+                updated = new ResourceIndex(ROOT);
+                System.out.println("Indexed " + updated.getSize() + " files under " + ROOT);
+            } catch (IOException e) {
+                System.err.println("Failed to index " + ROOT + ", files are looked up on disk - " + e.getMessage());
+            }
+        }
+        RESOURCE_INDEX = updated;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Polls config.ini every configReloadInterval milliseconds and applies it again when it changes,
+     * so tuning doesn't need a restart that would drop connections and empty the caches.
+     */
+    private static void startConfigReloader() {
+        File configFile = new File(configFilePath);
+        Thread reloader = new Thread(() -> {
+            long lastModified = configFile.lastModified();
+            long length = configFile.length();
+            while (ThreadRunnable.serverRunning) {
+                try {
+                    Thread.sleep(CONFIG_RELOAD_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (configFile.lastModified() != lastModified || configFile.length() != length) {
+                    lastModified = configFile.lastModified();
+                    length = configFile.length();
+                    reloadConfig();
+                }
+            }
+        }, "config-reloader");
+        reloader.setDaemon(true);
+        reloader.start();
+    }
+
+    private static void reloadConfig() {
+        Properties properties;
+        try {
+            properties = loadProperties(configFilePath);
+            applySettings(properties);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to reload " + configFilePath + ", keeping the current settings - " + e.getMessage());
+            return;
+        }
+
+        for (int i = 0; i < admissionControllers.length; i++) {
+            int threads = Math.max(share(MAX_THREADS, i), 1);
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) workerPools[i];
+            // the core size may never exceed the maximum, so the order depends on the direction
+            if (threads > pool.getMaximumPoolSize()) {
+                pool.setMaximumPoolSize(threads);
+                pool.setCorePoolSize(threads);
+            } else {
+                pool.setCorePoolSize(threads);
+                pool.setMaximumPoolSize(threads);
+            }
+            admissionControllers[i].configure(threads, LATENCY_TARGET, RETRY_AFTER);
+        }
+        for (String name : RESTART_SETTINGS) {
+            if (!Objects.equals(properties.getProperty(name), startupProperties.getProperty(name))) {
+                System.out.println("'" + name + "' changed in " + configFilePath + ", it takes effect after a restart");
+            }
+        }
+        System.out.println("Reloaded " + configFilePath);
+    }
+}
@@ -0,0 +1,211 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An HTML page under the root with insertion points, compiled once into pre-encoded literal segments.
+ * '{{params}}' inserts a table of all the request parameters and '{{name}}' the value of parameter 'name';
+ * a page without any insertion point gets the table right before its '</body>' (as params_info.html always did).
+ * Inserted names and values are HTML-escaped. Rendering measures the page first and then writes the segments and
+ * the escaped parameters straight into a byte array of the exact size, so a page costs one allocation.
+ * Compiled templates are kept per path and compiled again when FileCache sees the file change.
+ */
+class Template {
+    private static final String PARAMS = "params";
+    private static final byte[] TABLE_START = encode("<table border=\"1\">\n<tr>\n<th>Parameter Name</th>\n<th>Parameter Value</th>\n</tr>\n");
+    private static final byte[] ROW_START = encode("<tr><td>");
+    private static final byte[] CELL_SEPARATOR = encode("</td><td>");
+    private static final byte[] ROW_END = encode("</td></tr>\n");
+    private static final byte[] TABLE_END = encode("</table>\n");
+    private static final Map<String, Template> TEMPLATES = new ConcurrentHashMap<>();
+
+    private final FileCache.CachedFile source; // the file version this was compiled from
+    private final byte[][] segments; // one more than insertions: segment i comes before insertion i
+    private final String[] insertions; // PARAMS or the name of a parameter
+
+    private Template(FileCache.CachedFile source, byte[][] segments, String[] insertions) {
+        this.source = source;
+        this.segments = segments;
+        this.insertions = insertions;
+    }
+
+    /**
+     * @return the compiled template of the file at path, or null if there is no such file.
+     */
+    static Template get(String path) throws IOException {
+        FileCache.CachedFile cachedFile = TCPServerMultithreaded.FILE_CACHE.get(path);
+        if (cachedFile == null) {
+            TEMPLATES.remove(path);
+            return null;
+        }
+        Template template = TEMPLATES.get(path);
+        if (template == null || template.source != cachedFile) {
+            // racing threads compile equal templates, any of them will do
+            byte[] content = cachedFile.content != null ? cachedFile.content : Files.readAllBytes(cachedFile.file.toPath());
+            template = compile(cachedFile, content);
+            TEMPLATES.put(path, template);
+        }
+        return template;
+    }
+
+    private static Template compile(FileCache.CachedFile source, byte[] content) {
+        List<byte[]> segments = new ArrayList<>();
+        List<String> insertions = new ArrayList<>();
+        int segmentStart = 0;
+        for (int i = indexOf(content, "{{", 0); i != -1; i = indexOf(content, "{{", segmentStart)) {
+            int end = indexOf(content, "}}", i + 2);
+            if (end == -1) {
+                break;
+            }
+            segments.add(Arrays.copyOfRange(content, segmentStart, i));
+            insertions.add(new String(content, i + 2, end - i - 2, StandardCharsets.UTF_8).trim());
+            segmentStart = end + 2;
+        }
+        if (insertions.isEmpty()) {
+            int bodyEnd = indexOf(content, "</body>", 0);
+            if (bodyEnd != -1) {
+                segments.add(Arrays.copyOfRange(content, 0, bodyEnd));
+                insertions.add(PARAMS);
+                segmentStart = bodyEnd;
+            }
+        }
+        segments.add(Arrays.copyOfRange(content, segmentStart, content.length));
+        return new Template(source, segments.toArray(new byte[0][]), insertions.toArray(new String[0]));
+    }
+
+    /**
+     * @return the page, UTF-8 encoded, with the parameters inserted.
+     */
+    byte[] render(Map<String, String> parameters) {
+        int length = segments[segments.length - 1].length;
+        for (int i = 0; i < insertions.length; i++) {
+            length += segments[i].length;
+            if (insertions[i].equals(PARAMS)) {
+                length += TABLE_START.length + TABLE_END.length;
+                for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                    length += ROW_START.length + escapedLength(parameter.getKey()) + CELL_SEPARATOR.length
+                            + escapedLength(parameter.getValue()) + ROW_END.length;
+                }
+            } else {
+                length += escapedLength(parameters.getOrDefault(insertions[i], ""));
+            }
+        }
+
+        byte[] page = new byte[length];
+        int position = 0;
+        for (int i = 0; i < insertions.length; i++) {
+            position = put(segments[i], page, position);
+            if (insertions[i].equals(PARAMS)) {
+                position = put(TABLE_START, page, position);
+                for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                    position = put(ROW_START, page, position);
+                    position = putEscaped(parameter.getKey(), page, position);
+                    position = put(CELL_SEPARATOR, page, position);
+                    position = putEscaped(parameter.getValue(), page, position);
+                    position = put(ROW_END, page, position);
+                }
+                position = put(TABLE_END, page, position);
+            } else {
+                position = putEscaped(parameters.getOrDefault(insertions[i], ""), page, position);
+            }
+        }
+        put(segments[segments.length - 1], page, position);
+        return page;
+    }
+
+    /**
+     * @return the bytes of value once HTML-escaped and UTF-8 encoded.
+     */
+    private static int escapedLength(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String entity = getEntity(c);
+            if (entity != null) {
+                length += entity.length();
+            } else if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++; // unpaired, written as '?' like String.getBytes does
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int putEscaped(String value, byte[] page, int position) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            String entity = getEntity(c);
+            if (entity != null) {
+                for (int j = 0; j < entity.length(); j++) {
+                    page[position++] = (byte) entity.charAt(j);
+                }
+            } else if (c < 0x80) {
+                page[position++] = (byte) c;
+            } else if (c < 0x800) {
+                page[position++] = (byte) (0xc0 | c >> 6);
+                page[position++] = (byte) (0x80 | c & 0x3f);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                page[position++] = (byte) (0xf0 | codePoint >> 18);
+                page[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                page[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                page[position++] = (byte) (0x80 | codePoint & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                page[position++] = '?';
+            } else {
+                page[position++] = (byte) (0xe0 | c >> 12);
+                page[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                page[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return position;
+    }
+
+    private static String getEntity(char c) {
+        switch (c) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&#39;";
+            default:
+                return null;
+        }
+    }
+
+    private static int put(byte[] bytes, byte[] page, int position) {
+        System.arraycopy(bytes, 0, page, position, bytes.length);
+        return position + bytes.length;
+    }
+
+    private static int indexOf(byte[] bytes, String value, int from) {
+        for (int i = from; i <= bytes.length - value.length(); i++) {
+            if (HTTPRequest.equalsIgnoreCase(bytes, i, value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] encode(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
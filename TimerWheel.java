@@ -0,0 +1,166 @@
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hashed timer wheel: a ring of buckets, one per tick, each holding the timeouts whose deadline falls on it (modulo
+ * the ring), so scheduling, moving and cancelling a timeout is O(1) and a tick only looks at one bucket.
+ * A timeout is one object per connection, moved by setting its deadline: any thread may do so, the timeout is then
+ * pushed onto a lock-free stack that the wheel drains at every tick, and the buckets themselves are only ever
+ * touched by the thread advancing the wheel. A timeout whose deadline was moved later than its bucket is simply
+ * moved on when its bucket comes up. Expired timeouts run their action on the thread advancing the wheel: the
+ * thread started by start() for the blocking engine, the reactor thread itself for each nio reactor.
+ */
+class TimerWheel {
+    static final long TICK = 100; // ms
+    static final long NONE = 0; // no deadline, the timeout is not on the wheel
+    private static final int SIZE = 512; // buckets, a power of two: one revolution is 51.2 s
+
+    private final Timeout[] buckets = new Timeout[SIZE]; // doubly linked lists, head first
+    private final AtomicReference<Timeout> changed = new AtomicReference<>(); // stack of timeouts set since the last tick
+    private long currentTick = System.currentTimeMillis() / TICK; // the last tick processed
+
+    /**
+     * Starts a daemon thread advancing the wheel every tick.
+     */
+    void start(String name) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(TICK);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                advance(System.currentTimeMillis());
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Processes the ticks up to now, running the actions of the timeouts that expired; called by a single thread.
+     */
+    void advance(long now) {
+        drainChanged();
+        long nowTick = now / TICK;
+        long tick = Math.max(currentTick + 1, nowTick - SIZE + 1); // after a long pause every bucket is due once
+        for (; tick <= nowTick; tick++) {
+            expireBucket(tick, now);
+        }
+        currentTick = Math.max(currentTick, nowTick);
+    }
+
+    private void drainChanged() {
+        Timeout timeout = changed.getAndSet(null);
+        while (timeout != null) {
+            Timeout next = timeout.nextChanged;
+            timeout.nextChanged = null;
+            timeout.isChanged.set(false); // a change made from now on is pushed again
+            long deadline = timeout.deadline.get();
+            if (timeout.isScheduled) {
+                unlink(timeout);
+            }
+            if (deadline != NONE) {
+                link(timeout, deadline);
+            }
+            timeout = next;
+        }
+    }
+
+    private void expireBucket(long tick, long now) {
+        Timeout timeout = buckets[(int) (tick & (SIZE - 1))];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.tick <= tick) { // the others are due in a later revolution
+                long deadline = timeout.deadline.get();
+                if (deadline == NONE) {
+                    unlink(timeout);
+                } else if (deadline > now) {
+                    unlink(timeout); // moved later since it was linked
+                    link(timeout, deadline);
+                } else if (timeout.deadline.compareAndSet(deadline, NONE)) { // else changed meanwhile, drained next tick
+                    unlink(timeout);
+                    try {
+                        timeout.action.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timeout action failed - " + e);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void link(Timeout timeout, long deadline) {
+        timeout.tick = Math.max((deadline + TICK - 1) / TICK, currentTick + 1); // never in a bucket already processed
+        int index = (int) (timeout.tick & (SIZE - 1));
+        timeout.prev = null;
+        timeout.next = buckets[index];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[index] = timeout;
+        timeout.isScheduled = true;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[(int) (timeout.tick & (SIZE - 1))] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.isScheduled = false;
+    }
+
+    private void push(Timeout timeout) {
+        if (!timeout.isChanged.compareAndSet(false, true)) {
+            return; // already waiting for the next tick, which will read its latest deadline
+        }
+        Timeout head;
+        do {
+            head = changed.get();
+            timeout.nextChanged = head;
+        } while (!changed.compareAndSet(head, timeout));
+    }
+
+    /**
+     * A reusable deadline on the wheel running an action when it passes. Each expiry runs the action once; the
+     * timeout is then off the wheel until its deadline is set again.
+     */
+    static class Timeout {
+        private final TimerWheel wheel;
+        private final Runnable action;
+        private final AtomicLong deadline = new AtomicLong(NONE);
+        private final AtomicBoolean isChanged = new AtomicBoolean();
+        private volatile Timeout nextChanged;
+        // owned by the thread advancing the wheel
+        private Timeout prev;
+        private Timeout next;
+        private long tick;
+        private boolean isScheduled;
+
+        Timeout(TimerWheel wheel, Runnable action) {
+            this.wheel = wheel;
+            this.action = action;
+        }
+
+        /**
+         * @param deadline when the action runs, from System.currentTimeMillis, or NONE to cancel it
+         */
+        void set(long deadline) {
+            if (this.deadline.getAndSet(deadline) != deadline) {
+                wheel.push(this);
+            }
+        }
+
+        void cancel() {
+            set(NONE);
+        }
+    }
+}
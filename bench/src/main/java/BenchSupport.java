@@ -0,0 +1,239 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * JMH benchmarks must live in a named package, and classes in a named package can't refer to the server classes
+ * in the default package. The benchmarks look this class up once by name and only go through the plain
+ * java.util.function interfaces it returns, so the measured code paths are the real ones.
+ */
+public class BenchSupport {
+    public static final String LARGE_FILE = "large.html";
+    private static final int LARGE_FILE_SIZE = 4 * 1024 * 1024;
+
+    static {
+        TCPServerMultithreaded.DEFAULT_PAGE = "index.html";
+    }
+
+    /**
+     * Sets the server configuration up the way config.ini does, with a copy of root_dir plus a large HTML file
+     * (bigger than the file cache entry limit, so it is streamed from disk) as ROOT.
+     */
+    public static void configureServer(Path sourceRoot) throws IOException {
+        Path root = createRoot(sourceRoot);
+
+        TCPServerMultithreaded.ROOT = root.toString() + "/";
+        TCPServerMultithreaded.KEEP_ALIVE_TIMEOUT = 5000;
+        TCPServerMultithreaded.MAX_KEEP_ALIVE_REQUESTS = 100;
+        TCPServerMultithreaded.CHUNK_SIZE = 8192;
+        TCPServerMultithreaded.FILE_CACHE = new FileCache(64 * 1024 * 1024, 1024 * 1024, 1000, 1024 * 1024, 256 * 1024 * 1024);
+    }
+
+    /**
+     * @return a temporary copy of sourceRoot with LARGE_FILE added to it.
+     */
+    public static Path createRoot(Path sourceRoot) throws IOException {
+        Path root = Files.createTempDirectory("bench-root");
+        root.toFile().deleteOnExit();
+        try (var files = Files.list(sourceRoot)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.copy(file, root.resolve(file.getFileName()));
+                root.resolve(file.getFileName()).toFile().deleteOnExit();
+            }
+        }
+        StringBuilder largeFile = new StringBuilder("<html>\n<body>\n");
+        while (largeFile.length() < LARGE_FILE_SIZE) {
+            largeFile.append("<p>Bears. Beets. Battlestar Galactica. Identity theft is not a joke, Jim!</p>\n");
+        }
+        largeFile.append("</body>\n</html>\n");
+        Files.write(root.resolve(LARGE_FILE), largeFile.toString().getBytes(StandardCharsets.UTF_8));
+        root.resolve(LARGE_FILE).toFile().deleteOnExit();
+        return root;
+    }
+
+    public static Path findRootDir() {
+        return findInRepository("root_dir");
+    }
+
+    public static Path findInRepository(String name) {
+        for (Path candidate : new Path[]{Paths.get(name), Paths.get("..", name)}) {
+            if (Files.exists(candidate)) {
+                return candidate;
+            }
+        }
+        throw new IllegalStateException(name + " not found, run from the repository root or bench/");
+    }
+
+    /**
+     * Builds the response to a GET for the resource, then either just releases it or writes all of it
+     * into a channel that discards the bytes.
+     *
+     * @return the number of bytes written.
+     */
+    public static ToLongFunction<String> responseBuilder(boolean isChunked, boolean shouldWrite) {
+        WritableByteChannel sink = new DiscardingChannel();
+        return resource -> {
+            HTTPRequest httpRequest = parseRequest("GET /" + resource + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (isChunked ? "chunked: yes\r\n" : "") + "\r\n");
+            HTTPResponse httpResponse = new HTTPResponse(httpRequest, true);
+            if (!shouldWrite) {
+                httpResponse.close();
+                return httpResponse.getResponse().length();
+            }
+            try {
+                while (!httpResponse.writeTo(sink)) {
+                    // the sink accepts everything, a partial write only happens on a partial file transfer
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                httpResponse.close();
+            }
+            return ((DiscardingChannel) sink).written;
+        };
+    }
+
+    /**
+     * Serves a GET for the resource the way a connection of the blocking engine does: the request is read into a
+     * read buffer and parsed, the response built and written into a channel that discards the bytes, and the
+     * connection's buffers are given back. pooled takes the read buffer and the response buffers from
+     * TCPServerMultithreaded.BUFFER_POOL through a BufferArena, otherwise they are allocated for every connection
+     * as before the pool.
+     *
+     * @return the number of bytes written.
+     */
+    public static ToLongFunction<String> connectionSimulator(boolean pooled, boolean isChunked) {
+        DiscardingChannel sink = new DiscardingChannel();
+        Map<String, byte[]> requests = new HashMap<>();
+        return resource -> {
+            byte[] request = requests.computeIfAbsent(resource, r -> ("GET /" + r + " HTTP/1.1\r\nHost: localhost\r\n"
+                    + (isChunked ? "chunked: yes\r\n" : "") + "\r\n").getBytes(StandardCharsets.UTF_8));
+            ByteBuffer readBuffer = pooled ? TCPServerMultithreaded.BUFFER_POOL.acquire(8192) : ByteBuffer.allocate(8192);
+            BufferArena arena = pooled ? new BufferArena(TCPServerMultithreaded.BUFFER_POOL) : null;
+            readBuffer.put(request).flip();
+            HTTPRequest httpRequest = new HTTPRequestParser().parse(readBuffer);
+            HTTPResponse httpResponse = new HTTPResponse(httpRequest, true, arena);
+            try {
+                while (!httpResponse.writeTo(sink)) {
+                    // the sink accepts everything, a partial write only happens on a partial file transfer
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            } finally {
+                httpResponse.close();
+                if (pooled) {
+                    TCPServerMultithreaded.BUFFER_POOL.release(readBuffer);
+                    arena.close();
+                }
+            }
+            return sink.written;
+        };
+    }
+
+    private static HTTPRequest parseRequest(String request) {
+        return new HTTPRequestParser().parse(ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static String sampleRequest(String type) {
+        switch (type) {
+            case "GET":
+                return "GET /index.html?lang=en&theme=dark HTTP/1.1\r\n"
+                        + "Host: localhost:8080\r\n"
+                        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:122.0) Gecko/20100101 Firefox/122.0\r\n"
+                        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,image/avif,image/webp,*/*;q=0.8\r\n"
+                        + "Accept-Language: en-US,en;q=0.5\r\n"
+                        + "Accept-Encoding: gzip, deflate, br\r\n"
+                        + "Connection: keep-alive\r\n"
+                        + "Upgrade-Insecure-Requests: 1\r\n"
+                        + "\r\n";
+            case "POST":
+                String body = "firstName=Michael&lastName=Scott&company=Dunder+Mifflin&branch=Scranton&title=Regional+Manager";
+                return "POST /params_info.html HTTP/1.1\r\n"
+                        + "Host: localhost:8080\r\n"
+                        + "User-Agent: curl/8.4.0\r\n"
+                        + "Accept: */*\r\n"
+                        + "Content-Type: application/x-www-form-urlencoded\r\n"
+                        + "Content-Length: " + body.length() + "\r\n"
+                        + "\r\n"
+                        + body;
+            case "TRACE":
+                return "TRACE /dwight.jpg HTTP/1.1\r\n"
+                        + "Host: localhost:8080\r\n"
+                        + "User-Agent: curl/8.4.0\r\n"
+                        + "Accept: */*\r\n"
+                        + "chunked: yes\r\n"
+                        + "\r\n";
+            default:
+                throw new IllegalArgumentException("Unknown request type: " + type);
+        }
+    }
+
+    /**
+     * The String pipeline: the request as ThreadRunnable used to assemble it, parsed by BaselineHTTPRequest.
+     */
+    public static ToIntFunction<String> stringRequestParser() {
+        return request -> useRequest(new BaselineHTTPRequest(request));
+    }
+
+    /**
+     * The byte-level parser, fed from a buffer in read mode as both engines do.
+     */
+    public static ToIntFunction<ByteBuffer> byteRequestParser() {
+        HTTPRequestParser requestParser = new HTTPRequestParser();
+        return buffer -> useRequest(requestParser.parse(buffer));
+    }
+
+    private static class DiscardingChannel implements WritableByteChannel {
+        long written;
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            source.position(source.limit());
+            written += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Reads what HTTPResponse reads from a request, so lazily decoded fields are paid for as well.
+     */
+    private static int useRequest(HTTPRequest httpRequest) {
+        int result = httpRequest.getType().ordinal() + httpRequest.getRequestedResource().length();
+        result += httpRequest.isKeepAlive() ? 1 : 0;
+        result += httpRequest.getHeader("chunked") != null ? 1 : 0;
+        if (httpRequest.getType() == RequestType.POST) {
+            result += httpRequest.getParameters().size();
+        }
+        return result;
+    }
+
+    /**
+     * The same for the baseline, which had no keep-alive and looked its headers up in the map.
+     */
+    private static int useRequest(BaselineHTTPRequest httpRequest) {
+        int result = httpRequest.getType().ordinal() + httpRequest.getRequestedResource().length();
+        result += httpRequest.getHeaders().get("chunked") != null ? 1 : 0;
+        if (httpRequest.getType() == RequestType.POST) {
+            result += httpRequest.getParameters().size();
+        }
+        return result;
+    }
+}
@@ -0,0 +1,269 @@
+import java.io.BufferedInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback load test. Starts TCPServerMultithreaded in this JVM on a free port, with the repository's config.ini
+ * and a copy of root_dir, then drives it with keep-alive clients at several concurrency levels and reports
+ * requests per second and latency percentiles.
+ * <pre>
+ *   java -cp target/benchmarks.jar LoadHarness [mode=threads] [resource=index.html] [seconds=10] [concurrency=1,4,16,64]
+ * </pre>
+ * Any other key=value argument overrides the matching config.ini entry (e.g. maxThreads=64).
+ * The server's per-request console output is discarded while the clients run.
+ */
+public class LoadHarness {
+    private static final PrintStream REPORT = System.out;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("mode", "threads");
+        options.put("resource", "index.html");
+        options.put("seconds", "10");
+        options.put("concurrency", "1,4,16,64");
+        for (String arg : args) {
+            String[] keyValue = arg.split("=", 2);
+            options.put(keyValue[0], keyValue[1]);
+        }
+
+        int port = findFreePort();
+        startServer(port, options);
+        String resource = options.get("resource");
+        int seconds = Integer.parseInt(options.get("seconds"));
+
+        REPORT.printf("mode=%s resource=/%s duration=%ds cores=%d java=%s%n", options.get("mode"), resource, seconds,
+                Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"));
+        REPORT.printf("%11s %10s %10s %9s %9s %9s %7s%n", "concurrency", "requests", "req/s", "p50(us)", "p99(us)", "p999(us)", "errors");
+        for (String concurrency : options.get("concurrency").split(",")) {
+            run(port, resource, Integer.parseInt(concurrency), Math.max(1, seconds / 5)); // warm-up
+            Result result = run(port, resource, Integer.parseInt(concurrency), seconds);
+            REPORT.printf("%11s %10d %10.0f %9.0f %9.0f %9.0f %7d%n", concurrency, result.latencies.length,
+                    result.latencies.length / (double) seconds, result.percentile(50), result.percentile(99),
+                    result.percentile(99.9), result.errors);
+        }
+        System.exit(0);
+    }
+
+    private static void startServer(int port, Map<String, String> options) throws Exception {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(BenchSupport.findInRepository("config.ini"))) {
+            properties.load(in);
+        }
+        properties.setProperty("port", String.valueOf(port));
+        properties.setProperty("root", BenchSupport.createRoot(BenchSupport.findRootDir()).toString() + "/");
+        Path accessLog = Files.createTempFile("bench-access", ".log");
+        accessLog.toFile().deleteOnExit();
+        properties.setProperty("accessLog", accessLog.toString());
+        properties.setProperty("adminPort", "0");
+        for (Map.Entry<String, String> option : options.entrySet()) {
+            if (!option.getKey().equals("resource") && !option.getKey().equals("seconds") && !option.getKey().equals("concurrency")) {
+                properties.setProperty(option.getKey(), option.getValue());
+            }
+        }
+        Path config = Files.createTempFile("bench-config", ".ini");
+        config.toFile().deleteOnExit();
+        try (OutputStream out = new FileOutputStream(config.toFile())) {
+            properties.store(out, null);
+        }
+
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Thread server = new Thread(() -> {
+            try {
+                TCPServerMultithreaded.main(new String[]{config.toString()});
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static Result run(int port, String resource, int concurrency, int seconds) throws InterruptedException {
+        byte[] request = ("GET /" + resource + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        AtomicLong errors = new AtomicLong();
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            Client client = new Client(port, request, deadline, errors);
+            clients.add(client);
+            client.start();
+        }
+
+        int total = 0;
+        for (Client client : clients) {
+            client.join();
+            total += client.count;
+        }
+        long[] latencies = new long[total];
+        int offset = 0;
+        for (Client client : clients) {
+            System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+            offset += client.count;
+        }
+        Arrays.sort(latencies);
+        return new Result(latencies, errors.get());
+    }
+
+    private static class Client extends Thread {
+        private final int port;
+        private final byte[] request;
+        private final long deadline;
+        private final AtomicLong errors;
+        private final byte[] readBuffer = new byte[64 * 1024];
+        private long[] latencies = new long[1024];
+        private int count;
+        private Socket socket;
+        private InputStream in;
+
+        Client(int port, byte[] request, long deadline, AtomicLong errors) {
+            this.port = port;
+            this.request = request;
+            this.deadline = deadline;
+            this.errors = errors;
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline) {
+                try {
+                    if (socket == null) {
+                        socket = new Socket("127.0.0.1", port);
+                        socket.setTcpNoDelay(true);
+                        in = new BufferedInputStream(socket.getInputStream(), readBuffer.length);
+                    }
+                    long start = System.nanoTime();
+                    socket.getOutputStream().write(request);
+                    boolean keepAlive = readResponse();
+                    record(System.nanoTime() - start);
+                    if (!keepAlive) {
+                        closeSocket();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                    closeSocket();
+                }
+            }
+            closeSocket();
+        }
+
+        /**
+         * @return false if the server is going to close the connection.
+         */
+        private boolean readResponse() throws IOException {
+            StringBuilder head = new StringBuilder();
+            int previous = -1;
+            int b;
+            while ((b = in.read()) != -1) {
+                head.append((char) b);
+                if (b == '\n' && previous == '\n') {
+                    break;
+                }
+                if (b != '\r') {
+                    previous = b;
+                }
+            }
+            if (b == -1) {
+                throw new IOException("Connection closed by the server");
+            }
+            String headText = head.toString();
+            if (!headText.startsWith("HTTP/1.1 200") && !headText.startsWith("HTTP/1.1 304")) {
+                errors.incrementAndGet();
+            }
+
+            long contentLength = 0;
+            boolean keepAlive = true;
+            for (String line : headText.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon == -1) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+                    keepAlive = false;
+                }
+            }
+            while (contentLength > 0) {
+                int read = in.read(readBuffer, 0, (int) Math.min(readBuffer.length, contentLength));
+                if (read == -1) {
+                    throw new IOException("Connection closed in the middle of the body");
+                }
+                contentLength -= read;
+            }
+            return keepAlive;
+        }
+
+        private void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        private void closeSocket() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+                socket = null;
+            }
+        }
+    }
+
+    private static class Result {
+        private final long[] latencies; // sorted, in nanoseconds
+        private final long errors;
+
+        Result(long[] latencies, long errors) {
+            this.latencies = latencies;
+            this.errors = errors;
+        }
+
+        double percentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1000.0;
+        }
+    }
+}
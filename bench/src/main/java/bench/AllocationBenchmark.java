@@ -0,0 +1,54 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * A connection serving one request, with its I/O buffers taken from the BufferPool or allocated as before it.
+ * Meant to be run with '-prof gc': gc.alloc.rate.norm is the number of bytes allocated per connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AllocationBenchmark {
+    @Param({"index.html", "dwight.jpg"})
+    public String resource;
+
+    @Param({"false", "true"})
+    public boolean chunked;
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private ToLongFunction<String> connection;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> support = Class.forName("BenchSupport");
+        support.getMethod("configureServer", Path.class).invoke(null, support.getMethod("findRootDir").invoke(null));
+        connection = (ToLongFunction<String>) support.getMethod("connectionSimulator", boolean.class, boolean.class)
+                .invoke(null, pooled, chunked);
+    }
+
+    @Benchmark
+    public long serveConnection() {
+        return connection.applyAsLong(resource);
+    }
+}
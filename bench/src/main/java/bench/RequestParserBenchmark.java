@@ -0,0 +1,59 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * The String-based parser HTTPRequestParser replaced (BaselineHTTPRequest) against HTTPRequestParser on the same
+ * requests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class RequestParserBenchmark {
+    @Param({"GET", "POST", "TRACE"})
+    public String type;
+
+    private String request;
+    private ByteBuffer requestBuffer;
+    private ToIntFunction<String> stringRequestParser;
+    private ToIntFunction<ByteBuffer> byteRequestParser;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> support = Class.forName("BenchSupport");
+        request = (String) support.getMethod("sampleRequest", String.class).invoke(null, type);
+        requestBuffer = ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+        stringRequestParser = (ToIntFunction<String>) support.getMethod("stringRequestParser").invoke(null);
+        byteRequestParser = (ToIntFunction<ByteBuffer>) support.getMethod("byteRequestParser").invoke(null);
+    }
+
+    @Benchmark
+    public int stringConstructor() {
+        return stringRequestParser.applyAsInt(request);
+    }
+
+    @Benchmark
+    public int byteParser() {
+        requestBuffer.rewind();
+        return byteRequestParser.applyAsInt(requestBuffer);
+    }
+}
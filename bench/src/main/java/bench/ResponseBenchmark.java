@@ -0,0 +1,57 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * HTTPResponse for a small page, an image and a file too large for the file cache, with and without chunked encoding.
+ * build only constructs the response; buildAndWrite also writes all of it, body included, into a discarding channel.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ResponseBenchmark {
+    @Param({"index.html", "dwight.jpg", "large.html", "missing.html"})
+    public String resource;
+
+    @Param({"false", "true"})
+    public boolean chunked;
+
+    private ToLongFunction<String> build;
+    private ToLongFunction<String> buildAndWrite;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws ReflectiveOperationException {
+        Class<?> support = Class.forName("BenchSupport");
+        support.getMethod("configureServer", Path.class).invoke(null, support.getMethod("findRootDir").invoke(null));
+        build = (ToLongFunction<String>) support.getMethod("responseBuilder", boolean.class, boolean.class).invoke(null, chunked, false);
+        buildAndWrite = (ToLongFunction<String>) support.getMethod("responseBuilder", boolean.class, boolean.class).invoke(null, chunked, true);
+    }
+
+    @Benchmark
+    public long build() {
+        return build.applyAsLong(resource);
+    }
+
+    @Benchmark
+    public long buildAndWrite() {
+        return buildAndWrite.applyAsLong(resource);
+    }
+}
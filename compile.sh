@@ -1,3 +1,3 @@
 #!/bin/bash
-javac HTTPRequest.java HTTPResponse.java TCPServerMultithreaded.java
+javac HTTPRequest.java HTTPRequestParser.java FormDecoder.java HTTPResponse.java Template.java ResponseBody.java FileCache.java NioServer.java Metrics.java AdminServer.java AccessLog.java Compression.java AdmissionController.java Acceptor.java HeaderWriter.java BufferPool.java TimerWheel.java ConnectionTimer.java ClientLimiter.java Hpack.java Http2Connection.java ResourceIndex.java TCPServerMultithreaded.java
 
@@ -0,0 +1,126 @@
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * ClientLimiter: the token bucket arithmetic of the generic cell rate algorithm, driven with explicit timestamps,
+ * the connection limit and the allowlist.
+ */
+class ClientLimiterTest {
+    private static final long INTERVAL = 100_000_000L; // ns, at 10 requests per second
+
+    @Test
+    void allowsBurstThenOneRequestPerInterval() throws UnknownHostException {
+        ClientLimiter limiter = limiter(0, 10, 5);
+        ClientLimiter.Client client = limiter.acquire(address("192.0.2.1"));
+        long now = System.nanoTime();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(client.tryRequest(now), "request " + i + " of the burst");
+        }
+        assertFalse(client.tryRequest(now));
+
+        // one token is back after each interval, not before
+        assertFalse(client.tryRequest(now + INTERVAL - 1));
+        assertTrue(client.tryRequest(now + INTERVAL));
+        assertFalse(client.tryRequest(now + INTERVAL));
+        assertFalse(client.tryRequest(now + 2 * INTERVAL - 1));
+        assertTrue(client.tryRequest(now + 2 * INTERVAL));
+
+        // idle for burst intervals past the last request, the bucket is full again, and no fuller
+        long later = now + 2 * INTERVAL + 5 * INTERVAL + 10 * INTERVAL;
+        for (int i = 0; i < 5; i++) {
+            assertTrue(client.tryRequest(later), "request " + i + " of the second burst");
+        }
+        assertFalse(client.tryRequest(later));
+        assertEquals(5, limiter.getRejectedRequests());
+    }
+
+    @Test
+    void allowsTheRateIndefinitely() throws UnknownHostException {
+        ClientLimiter.Client client = limiter(0, 10, 1).acquire(address("192.0.2.1"));
+        long now = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(client.tryRequest(now + i * INTERVAL), "request " + i);
+        }
+        assertFalse(client.tryRequest(now + 999 * INTERVAL + INTERVAL / 2));
+    }
+
+    @Test
+    void allowsOneRequestWithoutBurst() throws UnknownHostException {
+        ClientLimiter.Client client = limiter(0, 10, 0).acquire(address("192.0.2.1"));
+        long now = System.nanoTime();
+        assertTrue(client.tryRequest(now));
+        assertFalse(client.tryRequest(now));
+        assertTrue(client.tryRequest(now + INTERVAL));
+    }
+
+    @Test
+    void neverLimitsWithoutRateOrConnectionLimit() throws UnknownHostException {
+        ClientLimiter limiter = limiter(0, 0, 0);
+        ClientLimiter.Client client = limiter.acquire(address("192.0.2.1"));
+        long now = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(client.tryRequest(now));
+        }
+        assertEquals(0, limiter.getTrackedClients());
+    }
+
+    @Test
+    void refusesConnectionsOverTheLimits() throws UnknownHostException {
+        ClientLimiter limiter = limiter(2, 0, 0);
+        InetAddress address = address("192.0.2.1");
+        ClientLimiter.Client first = limiter.acquire(address);
+        assertNotNull(first);
+        assertSame(first, limiter.acquire(address));
+        assertNull(limiter.acquire(address));
+        assertNotNull(limiter.acquire(address("192.0.2.2"))); // counted per address
+        first.release();
+        assertNotNull(limiter.acquire(address));
+        assertEquals(1, limiter.getRejectedConnections());
+
+        // a client with an empty bucket is refused when it connects; one request per second leaves a second for that
+        ClientLimiter rateLimiter = limiter(0, 1, 1);
+        ClientLimiter.Client client = rateLimiter.acquire(address);
+        assertTrue(client.tryRequest());
+        assertNull(rateLimiter.acquire(address));
+    }
+
+    @Test
+    void neverLimitsAllowlistedAddresses() throws UnknownHostException {
+        ClientLimiter limiter = new ClientLimiter();
+        limiter.configure(1, 10, 1, ClientLimiter.parseAllowlist("10.0.0.0/8, ::1/128, 192.0.2.7"), 1);
+        for (String allowlisted : new String[]{"10.1.2.3", "::1", "192.0.2.7"}) {
+            for (int i = 0; i < 3; i++) {
+                ClientLimiter.Client client = limiter.acquire(address(allowlisted));
+                assertNotNull(client, allowlisted);
+                assertTrue(client.tryRequest(0), allowlisted);
+            }
+        }
+        assertEquals(0, limiter.getTrackedClients());
+        assertNotNull(limiter.acquire(address("11.0.0.1")));
+        assertNull(limiter.acquire(address("11.0.0.1")));
+
+        assertThrows(IllegalArgumentException.class, () -> ClientLimiter.parseAllowlist("example.com"));
+        assertThrows(IllegalArgumentException.class, () -> ClientLimiter.parseAllowlist("10.0.0.0/33"));
+    }
+
+    private static ClientLimiter limiter(int maxConnections, int requestRate, int requestBurst) {
+        ClientLimiter limiter = new ClientLimiter();
+        limiter.configure(maxConnections, requestRate, requestBurst, new byte[0][], 1);
+        return limiter;
+    }
+
+    private static InetAddress address(String literal) throws UnknownHostException {
+        return InetAddress.getByName(literal); // a literal, never looked up
+    }
+}
@@ -0,0 +1,28 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Accept-Encoding negotiation: quality values and the "*" wildcard.
+ */
+class CompressionTest {
+    @Test
+    void readsQualityValues() {
+        assertEquals(1, Compression.getQuality("gzip", Compression.GZIP));
+        assertEquals(0.5, Compression.getQuality("br;q=0.5, gzip;q=0.5", Compression.GZIP));
+        assertEquals(0.001, Compression.getQuality("gzip; Q=0.001", Compression.GZIP));
+        assertEquals(1, Compression.getQuality("gzip;q=1.000", Compression.GZIP));
+        assertEquals(0, Compression.getQuality("gzip;q=0.", Compression.GZIP));
+        assertEquals(0.8, Compression.getQuality("deflate, *;q=0.8", Compression.GZIP));
+        assertEquals(0, Compression.getQuality("deflate", Compression.GZIP));
+        assertEquals(0, Compression.getQuality(null, Compression.GZIP));
+    }
+
+    @Test
+    void readsInvalidQualityValuesAsZero() {
+        for (String quality : new String[]{"NaN", "Infinity", "1.5", "2", "1.001", "0.0001", "1e0", "-1", ".5", "+1",
+                "0,5", "0.5x", ""}) {
+            assertEquals(0, Compression.getQuality("gzip;q=" + quality, Compression.GZIP), quality);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * HTTPRequestParser and HTTPRequest.normalizePath: requests split over reads, the header limits, chunked bodies,
+ * and the requests that must get 400 (smuggling attempts and paths escaping the root).
+ */
+class HTTPRequestParserTest {
+    private static final String GET = "GET /index.html?x=1&y=%20 HTTP/1.1\r\nHost: localhost\r\nAccept: */*\r\n\r\n";
+    private static final String FORM_POST = "POST /params_info.html HTTP/1.1\r\nHost: localhost\r\n"
+            + "Content-Type: application/x-www-form-urlencoded\r\nContent-Length: 15\r\n\r\nname=a+b&age=30";
+    private static final String CHUNKED_POST = "POST /upload.txt HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+            + "Transfer-Encoding: chunked\r\n\r\n"
+            + "5;name=value\r\nhello\r\n" // an extension
+            + "7 ; ext=\"quoted;value\"\r\n, world\r\n" // whitespace before an extension
+            + "A\r\n!012345678\r\n" // a hexadecimal size
+            + "0;last\r\nX-Trailer: yes\r\nX-Checksum: 1234\r\n\r\n"; // trailers
+
+    @BeforeAll
+    static void configure() {
+        TCPServerMultithreaded.DEFAULT_PAGE = "index.html";
+        TCPServerMultithreaded.MAX_BODY_SIZE = 10 * 1024 * 1024;
+    }
+
+    @Test
+    void parsesSplitAtEveryOffset() {
+        String pipelined = GET + CHUNKED_POST + FORM_POST + GET;
+        for (String input : new String[]{GET, FORM_POST, CHUNKED_POST, pipelined}) {
+            byte[] bytes = input.getBytes(StandardCharsets.ISO_8859_1);
+            List<String> expected = describe(parse(bytes));
+            assertEquals(input == pipelined ? 4 : 1, expected.size());
+            for (int split = 1; split < bytes.length; split++) {
+                List<String> actual = describe(parse(Arrays.copyOfRange(bytes, 0, split),
+                        Arrays.copyOfRange(bytes, split, bytes.length)));
+                assertEquals(expected, actual, "split at " + split);
+            }
+            byte[][] single = new byte[bytes.length][];
+            for (int i = 0; i < bytes.length; i++) {
+                single[i] = new byte[]{bytes[i]};
+            }
+            assertEquals(expected, describe(parse(single)), "byte by byte");
+        }
+    }
+
+    @Test
+    void parsesRequests() {
+        HTTPRequest get = parseOne(GET);
+        assertTrue(get.isValid());
+        assertEquals(RequestType.GET, get.getType());
+        assertEquals("index.html", get.getRequestedResource());
+        assertEquals("localhost", get.getHeader("Host"));
+        assertEquals("1", get.getParameters().get("x"));
+        assertEquals(" ", get.getParameters().get("y"));
+
+        HTTPRequest form = parseOne(FORM_POST);
+        assertEquals("a b", form.getParameters().get("name"));
+        assertEquals("30", form.getParameters().get("age"));
+    }
+
+    @Test
+    void decodesChunkExtensionsAndTrailers() {
+        HTTPRequest request = parseOne(CHUNKED_POST);
+        assertTrue(request.isValid());
+        assertFalse(request.isBodyTooLarge());
+        assertEquals("hello, world!012345678", request.getBody());
+
+        // the request after the trailers is parsed on its own
+        List<HTTPRequest> requests = parse((CHUNKED_POST + GET).getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(2, requests.size());
+        assertEquals("index.html", requests.get(1).getRequestedResource());
+    }
+
+    @Test
+    void rejectsMalformedChunks() {
+        String head = "POST /upload.txt HTTP/1.1\r\nHost: localhost\r\nTransfer-Encoding: chunked\r\n\r\n";
+        assertBadRequest(parseOne(head + "zz\r\nhello\r\n0\r\n\r\n")); // not a size
+        assertBadRequest(parseOne(head + ";ext\r\nhello\r\n0\r\n\r\n")); // an extension without a size
+        assertBadRequest(parseOne(head + "3\r\nhello\r\n0\r\n\r\n")); // more data than the size
+        assertBadRequest(parseOne(head + "5\nhello\r\n0\r\n\r\n")); // a bare LF
+        assertTrue(parseOne(head + "FFFFFFFFFF\r\n").isBodyTooLarge());
+    }
+
+    @Test
+    void acceptsMaxTrailerLinesAndRejectsOneMore() {
+        String head = "POST /upload.txt HTTP/1.1\r\nHost: localhost\r\nContent-Type: text/plain\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n5\r\nhello\r\n0\r\n";
+        HTTPRequest atLimit = parseOne(head + trailerLines(HTTPRequestParser.MAX_LINES - 1) + "\r\n");
+        assertTrue(atLimit.isValid());
+        assertEquals("hello", atLimit.getBody());
+
+        // rejected as soon as the line past the limit ends, without waiting for the end of the trailer
+        assertBadRequest(parseOne(head + trailerLines(HTTPRequestParser.MAX_LINES)));
+    }
+
+    @Test
+    void rejectsHeaderBlockOverMaxSizeReadAtOnce() {
+        // the whole block fits in the buffer, so the limit is checked after a successful scan
+        String atLimit = requestOfSize(HTTPRequestParser.MAX_HEADER_SIZE);
+        assertTrue(parseOne(atLimit).isValid());
+        assertBadRequest(parseOne(requestOfSize(HTTPRequestParser.MAX_HEADER_SIZE + 1)));
+    }
+
+    @Test
+    void acceptsMaxLinesAndRejectsOneMore() {
+        HTTPRequest atLimit = parseOne(requestWithLines(HTTPRequestParser.MAX_LINES));
+        assertTrue(atLimit.isValid());
+        assertEquals("v" + (HTTPRequestParser.MAX_LINES - 1), atLimit.getHeader("X-Header-" + (HTTPRequestParser.MAX_LINES - 1)));
+
+        byte[] overLimit = requestWithLines(HTTPRequestParser.MAX_LINES + 1).getBytes(StandardCharsets.ISO_8859_1);
+        assertBadRequest(parse(overLimit).get(0));
+        byte[][] single = new byte[overLimit.length][];
+        for (int i = 0; i < overLimit.length; i++) {
+            single[i] = new byte[]{overLimit[i]};
+        }
+        assertBadRequest(parse(single).get(0));
+    }
+
+    @Test
+    void rejectsTransferEncodingWithContentLength() {
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 5\r\n\r\n"
+                + "0\r\n\r\n"));
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nContent-Length: 5\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + "0\r\n\r\n"));
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nTransfer-Encoding: chunked, gzip\r\n\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void rejectsConflictingContentLengths() {
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nContent-Length: 5, 6\r\n\r\nhello!"));
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nContent-Length: 5\r\nContent-Length: 6\r\n\r\nhello!"));
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nContent-Length: -5\r\n\r\n"));
+        assertBadRequest(parseOne("POST /upload.txt HTTP/1.1\r\nContent-Length: 5x\r\n\r\nhello"));
+
+        // the same value twice is one Content-Length
+        HTTPRequest repeated = parseOne("POST /upload.txt HTTP/1.1\r\nContent-Type: text/plain\r\n"
+                + "Content-Length: 5, 5\r\n\r\nhello");
+        assertTrue(repeated.isValid());
+        assertEquals("hello", repeated.getBody());
+    }
+
+    @Test
+    void rejectsPathsEscapingTheRoot() {
+        for (String path : new String[]{"/%2e%2e/", "/%2E%2E/etc/passwd", "/..%2f", "/..%2fetc/passwd", "/a%2fb",
+                "/index.html%00", "/%00", "/..", "/../index.html", "/a/../../index.html", "/.%2e/", "/a\\..\\b",
+                "/%5c..%5cindex.html", "/%zz", "/%2", "index.html"}) {
+            assertBadRequest(parseOne("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+        }
+    }
+
+    @Test
+    void normalizesPaths() {
+        assertEquals("", normalize("/"));
+        assertEquals("index.html", normalize("/index.html"));
+        assertEquals("a/c", normalize("/a/./b/../c"));
+        assertEquals("a/c", normalize("/a//b/%2e%2e/c"));
+        assertEquals("index.html", normalize("/a/../index.html"));
+        assertEquals("my file.html", normalize("/my%20file.html"));
+        assertEquals("a/", normalize("/a/"));
+        assertNull(normalize("/a/../.."));
+        assertNull(normalize("/%2e%2e"));
+        assertNull(normalize("/a%2f..%2f..%2fb"));
+    }
+
+    private static String normalize(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.ISO_8859_1);
+        return HTTPRequest.normalizePath(bytes, 0, bytes.length);
+    }
+
+    private static String requestWithLines(int lines) {
+        StringBuilder request = new StringBuilder("GET /index.html HTTP/1.1\r\n");
+        for (int i = 1; i < lines; i++) {
+            request.append("X-Header-").append(i).append(": v").append(i).append("\r\n");
+        }
+        return request.append("\r\n").toString();
+    }
+
+    private static String trailerLines(int lines) {
+        StringBuilder trailer = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            trailer.append("X-Trailer-").append(i).append(": v\r\n");
+        }
+        return trailer.toString();
+    }
+
+    /**
+     * @return a GET whose header block, blank line included, is size bytes long.
+     */
+    private static String requestOfSize(int size) {
+        String head = "GET /index.html HTTP/1.1\r\nX-Padding: ";
+        return head + "a".repeat(size - head.length() - 4) + "\r\n\r\n";
+    }
+
+    private static void assertBadRequest(HTTPRequest request) {
+        assertFalse(request.isValid());
+        assertEquals(StatusCode.BAD_REQUEST, new HTTPResponse(request).getStatusCode());
+    }
+
+    private static HTTPRequest parseOne(String input) {
+        List<HTTPRequest> requests = parse(input.getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(1, requests.size());
+        return requests.get(0);
+    }
+
+    /**
+     * Feeds the reads to one parser the way the engines do: appended to a buffer, which is compacted after parsing.
+     *
+     * @return the requests parsed, in order.
+     */
+    private static List<HTTPRequest> parse(byte[]... reads) {
+        HTTPRequestParser parser = new HTTPRequestParser();
+        ByteBuffer buffer = ByteBuffer.allocate(HTTPRequestParser.MAX_HEADER_SIZE + 1);
+        List<HTTPRequest> requests = new ArrayList<>();
+        for (byte[] read : reads) {
+            buffer.put(read).flip();
+            HTTPRequest request;
+            while (buffer.hasRemaining() && (request = parser.parse(buffer)) != null) {
+                requests.add(request);
+            }
+            buffer.compact();
+        }
+        return requests;
+    }
+
+    private static List<String> describe(List<HTTPRequest> requests) {
+        List<String> descriptions = new ArrayList<>();
+        for (HTTPRequest request : requests) {
+            descriptions.add(request.isValid() + " " + request.getType() + " " + request.getRequestedResource() + " "
+                    + new TreeMap<>(request.getHeaders()) + " " + new TreeMap<>(request.getParameters()) + " "
+                    + request.getBody());
+        }
+        return descriptions;
+    }
+}
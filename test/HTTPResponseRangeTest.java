@@ -0,0 +1,194 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Range requests (RFC 7233) against a file of root_dir: single, suffix, open-ended, overlapping and unsatisfiable
+ * ranges, the MAX_RANGES limit, multipart/byteranges bodies and If-Range.
+ */
+class HTTPResponseRangeTest {
+    private static final String FILE = "index.html";
+
+    private static byte[] content;
+
+    @BeforeAll
+    static void configure() throws IOException {
+        TCPServerMultithreaded.ROOT = Paths.get("root_dir").toAbsolutePath() + "/";
+        TCPServerMultithreaded.DEFAULT_PAGE = "index.html";
+        TCPServerMultithreaded.RESOURCE_INDEX = null;
+        TCPServerMultithreaded.FILE_CACHE = new FileCache(1024 * 1024, 1024 * 1024, 1000, 1024 * 1024, 1024 * 1024);
+        content = Files.readAllBytes(Paths.get("root_dir", FILE));
+        assertTrue(content.length > 100);
+    }
+
+    @Test
+    void sendsOneRange() throws IOException {
+        Response response = get("Range: bytes=0-9");
+        assertEquals(StatusCode.PARTIAL_CONTENT, response.statusCode);
+        assertEquals("bytes 0-9/" + content.length, response.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 0, 10), response.body);
+    }
+
+    @Test
+    void sendsSuffixAndOpenEndedRanges() throws IOException {
+        Response suffix = get("Range: bytes=-10");
+        assertEquals(StatusCode.PARTIAL_CONTENT, suffix.statusCode);
+        assertEquals("bytes " + (content.length - 10) + "-" + (content.length - 1) + "/" + content.length,
+                suffix.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 10, content.length), suffix.body);
+
+        // a suffix longer than the file is the whole file
+        Response longSuffix = get("Range: bytes=-" + (content.length + 1000));
+        assertEquals("bytes 0-" + (content.length - 1) + "/" + content.length, longSuffix.header("Content-Range"));
+        assertArrayEquals(content, longSuffix.body);
+
+        Response openEnded = get("Range: bytes=10-");
+        assertEquals("bytes 10-" + (content.length - 1) + "/" + content.length, openEnded.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, content.length), openEnded.body);
+
+        // a last position past the end is cut at the end
+        Response pastEnd = get("Range: bytes=20-" + (content.length + 1000));
+        assertArrayEquals(Arrays.copyOfRange(content, 20, content.length), pastEnd.body);
+    }
+
+    @Test
+    void answersUnsatisfiableRangesWith416() throws IOException {
+        for (String range : new String[]{"bytes=" + content.length + "-", "bytes=" + (content.length + 10) + "-"
+                + (content.length + 20), "bytes=-0"}) {
+            Response response = get("Range: " + range);
+            assertEquals(StatusCode.RANGE_NOT_SATISFIABLE, response.statusCode, range);
+            assertEquals("bytes */" + content.length, response.header("Content-Range"), range);
+            assertEquals(0, response.body.length, range);
+        }
+
+        // one satisfiable range among unsatisfiable ones is sent on its own
+        Response mixed = get("Range: bytes=" + content.length + "-,5-9");
+        assertEquals(StatusCode.PARTIAL_CONTENT, mixed.statusCode);
+        assertEquals("bytes 5-9/" + content.length, mixed.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 5, 10), mixed.body);
+    }
+
+    @Test
+    void sendsWholeFileForInvalidRanges() throws IOException {
+        for (String range : new String[]{"bytes=9-5", "bytes=abc", "bytes=5", "bytes=+1-5", "items=0-5", "bytes=0x1-5"}) {
+            Response response = get("Range: " + range);
+            assertEquals(StatusCode.OK, response.statusCode, range);
+            assertNull(response.header("Content-Range"), range);
+            assertArrayEquals(content, response.body, range);
+        }
+    }
+
+    @Test
+    void sendsSeveralRangesAsMultipart() throws IOException {
+        // overlapping ranges are sent as they were asked for, in order
+        Response response = get("Range: bytes=0-9, 5-14, -3");
+        assertEquals(StatusCode.PARTIAL_CONTENT, response.statusCode);
+        assertNull(response.header("Content-Range"));
+        String contentType = response.header("Content-Type");
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="), contentType);
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+
+        long[][] ranges = {{0, 9}, {5, 14}, {content.length - 3, content.length - 1}};
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (long[] range : ranges) {
+            expected.write(("\r\n--" + boundary + "\r\nContent-Type: " + get("").header("Content-Type")
+                    + "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + content.length + "\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            expected.write(content, (int) range[0], (int) (range[1] - range[0] + 1));
+        }
+        expected.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        assertArrayEquals(expected.toByteArray(), response.body);
+        assertEquals(String.valueOf(expected.size()), response.header("Content-Length"));
+    }
+
+    @Test
+    void ignoresMoreThanMaxRanges() throws IOException {
+        StringBuilder ranges = new StringBuilder("Range: bytes=0-0");
+        for (int i = 1; i < HTTPResponse.MAX_RANGES; i++) {
+            ranges.append(",").append(i).append("-").append(i);
+        }
+        assertEquals(StatusCode.PARTIAL_CONTENT, get(ranges.toString()).statusCode);
+
+        ranges.append(",").append(HTTPResponse.MAX_RANGES).append("-").append(HTTPResponse.MAX_RANGES);
+        Response tooMany = get(ranges.toString());
+        assertEquals(StatusCode.OK, tooMany.statusCode);
+        assertArrayEquals(content, tooMany.body);
+    }
+
+    @Test
+    void honoursIfRange() throws IOException {
+        Response full = get("");
+        String etag = full.header("ETag");
+        String lastModified = full.header("Last-Modified");
+        assertNotNull(etag);
+        assertNotNull(lastModified);
+
+        assertEquals(StatusCode.PARTIAL_CONTENT, get("Range: bytes=0-9\r\nIf-Range: " + etag).statusCode);
+        assertEquals(StatusCode.PARTIAL_CONTENT, get("Range: bytes=0-9\r\nIf-Range: " + lastModified).statusCode);
+
+        // anything else, a weak ETag included, gets the whole file
+        for (String ifRange : new String[]{"\"other\"", "W/" + etag, "Thu, 01 Jan 1970 00:00:00 GMT"}) {
+            Response response = get("Range: bytes=0-9\r\nIf-Range: " + ifRange);
+            assertEquals(StatusCode.OK, response.statusCode, ifRange);
+            assertArrayEquals(content, response.body, ifRange);
+        }
+    }
+
+    /**
+     * @param headers header lines to add to a GET of FILE, without the final CRLF, or ""
+     */
+    private static Response get(String headers) throws IOException {
+        String request = "GET /" + FILE + " HTTP/1.1\r\nHost: localhost\r\n" + (headers.isEmpty() ? "" : headers + "\r\n")
+                + "\r\n";
+        HTTPRequest httpRequest = new HTTPRequestParser().parse(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+        HTTPResponse httpResponse = new HTTPResponse(httpRequest, true);
+        try {
+            ByteArrayOutputStream written = new ByteArrayOutputStream();
+            while (!httpResponse.writeTo(Channels.newChannel(written))) {
+                // a blocking channel takes everything, this only loops over the parts of the body
+            }
+            int headLength = httpResponse.getResponse().length();
+            byte[] bytes = written.toByteArray();
+            return new Response(httpResponse.getStatusCode(), httpResponse.getResponse(),
+                    Arrays.copyOfRange(bytes, headLength, bytes.length));
+        } finally {
+            httpResponse.close();
+        }
+    }
+
+    private static class Response {
+        final StatusCode statusCode;
+        final String head;
+        final byte[] body;
+
+        Response(StatusCode statusCode, String head, byte[] body) {
+            this.statusCode = statusCode;
+            this.head = head;
+            this.body = body;
+        }
+
+        String header(String name) {
+            for (String line : head.split("\r\n")) {
+                int colon = line.indexOf(':');
+                if (colon != -1 && line.substring(0, colon).equalsIgnoreCase(name)) {
+                    return line.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Hpack against the examples of RFC 7541 Appendix C, and Encoder to Decoder round trips.
+ */
+class HpackTest {
+    private static final String DATE_1 = "Mon, 21 Oct 2013 20:13:21 GMT";
+    private static final String DATE_2 = "Mon, 21 Oct 2013 20:13:22 GMT";
+    private static final String LOCATION = "https://www.example.com";
+    private static final String COOKIE = "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1";
+
+    @Test
+    void decodesRequestsWithoutHuffman() throws Exception { // C.3
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertDecodes(decoder, "828684410f7777772e6578616d706c652e636f6d",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertDecodes(decoder, "828684be58086e6f2d6361636865",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertDecodes(decoder, "828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertTable(decoder, "custom-key", "custom-value", "cache-control", "no-cache", ":authority", "www.example.com");
+    }
+
+    @Test
+    void decodesRequestsWithHuffman() throws Exception { // C.4
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        assertDecodes(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+        assertDecodes(decoder, "828684be5886a8eb10649cbf",
+                ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com",
+                "cache-control", "no-cache");
+        assertDecodes(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+                ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com",
+                "custom-key", "custom-value");
+        assertTable(decoder, "custom-key", "custom-value", "cache-control", "no-cache", ":authority", "www.example.com");
+    }
+
+    @Test
+    void decodesResponsesWithHuffmanAndEviction() throws Exception { // C.6
+        // the examples assume a 256-byte table on both ends, which the first block sets with a size update (3fe101)
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertDecodes(decoder, "3fe101" + "488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+                        + "6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+                ":status", "302", "cache-control", "private", "date", DATE_1, "location", LOCATION);
+        assertDecodes(decoder, "4883640effc1c0bf",
+                ":status", "307", "cache-control", "private", "date", DATE_1, "location", LOCATION);
+        assertDecodes(decoder, "88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7821dd7f2e6c7b3"
+                        + "35dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007",
+                ":status", "200", "cache-control", "private", "date", DATE_2, "location", LOCATION,
+                "content-encoding", "gzip", "set-cookie", COOKIE);
+        // only the last three entries are left, 215 bytes: cache-control was evicted
+        assertTable(decoder, "set-cookie", COOKIE, "content-encoding", "gzip", "date", DATE_2);
+        assertCompressionError(decoder, "c1");
+    }
+
+    @Test
+    void rejectsMalformedBlocks() {
+        Hpack.Decoder decoder = new Hpack.Decoder(256);
+        assertCompressionError(decoder, "80"); // index 0
+        assertCompressionError(decoder, "be"); // index 62, the dynamic table is empty
+        assertCompressionError(decoder, "3fe201"); // a table size of 257, above the announced 256
+        assertCompressionError(decoder, "823f0e"); // a table size update after a field
+        assertCompressionError(decoder, "0181ff"); // Huffman padding of 8 bits
+        assertCompressionError(decoder, "0184ffffffff"); // EOS in a string
+        assertCompressionError(decoder, "0105ab"); // a string longer than the block
+        assertCompressionError(decoder, "1fffffffff7f"); // an integer over 28 bits
+    }
+
+    @Test
+    void roundTripsEveryOctetThroughHuffman() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        for (int octet = 0; octet < 256; octet++) {
+            // enough short codes around the octet that Huffman is the shorter form
+            String value = "eeeeeeeeeeeeeeeeeeee" + (char) octet + "eeeeeeeeeeeeeeeeeeee";
+            assertRoundTrips(encoder, decoder, List.of("x-octet", value, "etag", value));
+        }
+    }
+
+    @Test
+    void roundTripsAcrossTableSizeShrinkThenGrow() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<String> fields = List.of(":status", "200", "content-type", "text/html", "vary", "Accept-Encoding",
+                "cache-control", "max-age=60", "content-length", "1234");
+        assertRoundTrips(encoder, decoder, fields);
+        assertRoundTrips(encoder, decoder, fields);
+
+        // shrunk to 100 bytes then back to 4096 between two blocks: the next block signals 100 first, so the
+        // decoder evicts what the encoder did, then 4096 (RFC 7541 4.2)
+        encoder.setMaxTableSize(100);
+        encoder.setMaxTableSize(Hpack.DEFAULT_TABLE_SIZE);
+        byte[] block = encoder.encode(fields);
+        assertTrue(encoder.getLength() >= 5);
+        assertEquals("3f45" + "3fe11f", toHex(block, 0, 5));
+        List<String> decoded = new ArrayList<>();
+        assertTrue(decoder.decode(block, 0, encoder.getLength(), decoded, Integer.MAX_VALUE));
+        assertEquals(fields, decoded);
+        assertRoundTrips(encoder, decoder, fields);
+
+        // shrunk to nothing: every field goes out as a literal, and the table is refilled once it grows again
+        encoder.setMaxTableSize(0);
+        assertRoundTrips(encoder, decoder, fields);
+        encoder.setMaxTableSize(Hpack.DEFAULT_TABLE_SIZE);
+        assertRoundTrips(encoder, decoder, fields);
+        assertRoundTrips(encoder, decoder, fields);
+    }
+
+    @Test
+    void decodesOverTheListSizeWithoutLosingTheTable() throws Exception {
+        Hpack.Encoder encoder = new Hpack.Encoder();
+        Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+        List<String> fields = List.of("content-type", "text/html", "x-custom", "value");
+        byte[] block = encoder.encode(fields);
+        List<String> decoded = new ArrayList<>();
+        assertFalse(decoder.decode(block, 0, encoder.getLength(), decoded, 50));
+        assertRoundTrips(encoder, decoder, fields); // indexed from the table the first block filled
+    }
+
+    private static void assertRoundTrips(Hpack.Encoder encoder, Hpack.Decoder decoder, List<String> fields)
+            throws Http2Exception {
+        byte[] block = encoder.encode(fields);
+        List<String> decoded = new ArrayList<>();
+        assertTrue(decoder.decode(block, 0, encoder.getLength(), decoded, Integer.MAX_VALUE));
+        assertEquals(fields, decoded);
+    }
+
+    private static void assertDecodes(Hpack.Decoder decoder, String hex, String... fields) throws Http2Exception {
+        byte[] block = fromHex(hex);
+        List<String> decoded = new ArrayList<>();
+        assertTrue(decoder.decode(block, 0, block.length, decoded, Integer.MAX_VALUE));
+        assertEquals(List.of(fields), decoded);
+    }
+
+    /**
+     * Checks the dynamic table holds exactly the entries, newest first, through indexed fields from 62 on.
+     */
+    private static void assertTable(Hpack.Decoder decoder, String... entries) throws Http2Exception {
+        for (int i = 0; i < entries.length / 2; i++) {
+            assertDecodes(decoder, Integer.toHexString(0x80 | 62 + i), entries[2 * i], entries[2 * i + 1]);
+        }
+        assertCompressionError(decoder, Integer.toHexString(0x80 | 62 + entries.length / 2));
+    }
+
+    private static void assertCompressionError(Hpack.Decoder decoder, String hex) {
+        byte[] block = fromHex(hex);
+        Http2Exception e = assertThrows(Http2Exception.class,
+                () -> decoder.decode(block, 0, block.length, new ArrayList<>(), Integer.MAX_VALUE));
+        assertEquals(Http2Exception.COMPRESSION_ERROR, e.getErrorCode());
+    }
+
+    private static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static String toHex(byte[] bytes, int from, int to) {
+        StringBuilder hex = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            hex.append(String.format("%02x", bytes[i]));
+        }
+        return hex.toString();
+    }
+}
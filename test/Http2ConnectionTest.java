@@ -0,0 +1,246 @@
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Connection errors of Http2Connection: a server with http2=true runs in this JVM, each test opens a connection with
+ * the preface, sends a malformed frame and expects the GOAWAY error code it calls for (RFC 7540), or the single
+ * RST_STREAM of a stream error.
+ */
+class Http2ConnectionTest {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    private static final int END_STREAM = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    // GET / over http, from the static table
+    private static final byte[] REQUEST_BLOCK = {(byte) 0x82, (byte) 0x86, (byte) 0x84};
+    // the same with 'content-length: x', a literal with the static table's name
+    private static final byte[] INVALID_LENGTH_BLOCK = {(byte) 0x82, (byte) 0x86, (byte) 0x84, 0x0f, 0x0d, 0x01, 'x'};
+
+    private static int port;
+
+    @BeforeAll
+    static void startServer() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get("config.ini"))) {
+            properties.load(in);
+        }
+        properties.setProperty("port", String.valueOf(port));
+        properties.setProperty("root", Paths.get("root_dir").toAbsolutePath() + "/");
+        properties.setProperty("http2", "true");
+        properties.setProperty("adminPort", "0");
+        properties.setProperty("configReloadInterval", "0");
+        Path accessLog = Files.createTempFile("http2-test-access", ".log");
+        accessLog.toFile().deleteOnExit();
+        properties.setProperty("accessLog", accessLog.toString());
+        Path config = Files.createTempFile("http2-test-config", ".ini");
+        config.toFile().deleteOnExit();
+        try (OutputStream out = Files.newOutputStream(config)) {
+            properties.store(out, null);
+        }
+
+        Thread server = new Thread(() -> {
+            try {
+                TCPServerMultithreaded.main(new String[]{config.toString()});
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }, "server");
+        server.setDaemon(true);
+        server.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Server did not start on port " + port, e);
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @Test
+    void rejectsPaddingAsLongAsTheFrame() throws IOException {
+        // a pad length of 5 in a 4-byte HEADERS payload
+        byte[] payload = {5, (byte) 0x82, (byte) 0x86, (byte) 0x84};
+        assertEquals(Http2Exception.PROTOCOL_ERROR,
+                sendAndReadGoAway(frame(HEADERS, PADDED | END_HEADERS | END_STREAM, 1, payload)));
+    }
+
+    @Test
+    void rejectsContinuationOnAnotherStream() throws IOException {
+        byte[] headers = frame(HEADERS, END_STREAM, 1, REQUEST_BLOCK);
+        byte[] continuation = frame(CONTINUATION, END_HEADERS, 3, new byte[]{(byte) 0x81});
+        assertEquals(Http2Exception.PROTOCOL_ERROR, sendAndReadGoAway(concat(headers, continuation)));
+    }
+
+    @Test
+    void rejectsFrameBetweenHeadersAndContinuation() throws IOException {
+        byte[] headers = frame(HEADERS, END_STREAM, 1, REQUEST_BLOCK);
+        byte[] settings = frame(SETTINGS, 0, 0, new byte[0]);
+        assertEquals(Http2Exception.PROTOCOL_ERROR, sendAndReadGoAway(concat(headers, settings)));
+    }
+
+    @Test
+    void rejectsConnectionWindowOverflow() throws IOException {
+        byte[] increment = ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE).array();
+        assertEquals(Http2Exception.FLOW_CONTROL_ERROR, sendAndReadGoAway(frame(WINDOW_UPDATE, 0, 0, increment)));
+    }
+
+    @Test
+    void rejectsWindowUpdateOfZero() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR, sendAndReadGoAway(frame(WINDOW_UPDATE, 0, 0, new byte[4])));
+    }
+
+    @Test
+    void rejectsWindowUpdateOfWrongLength() throws IOException {
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR, sendAndReadGoAway(frame(WINDOW_UPDATE, 0, 0, new byte[3])));
+    }
+
+    @Test
+    void rejectsFrameOverMaxFrameSize() throws IOException {
+        assertEquals(Http2Exception.FRAME_SIZE_ERROR,
+                sendAndReadGoAway(frame(HEADERS, END_HEADERS | END_STREAM, 1, new byte[16385])));
+    }
+
+    @Test
+    void rejectsSettingsOnStream() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR, sendAndReadGoAway(frame(SETTINGS, 0, 1, new byte[0])));
+    }
+
+    @Test
+    void rejectsMalformedHeaderBlock() throws IOException {
+        // index 0
+        assertEquals(Http2Exception.COMPRESSION_ERROR,
+                sendAndReadGoAway(frame(HEADERS, END_HEADERS | END_STREAM, 1, new byte[]{(byte) 0x80})));
+    }
+
+    @Test
+    void rejectsEvenStreamId() throws IOException {
+        assertEquals(Http2Exception.PROTOCOL_ERROR,
+                sendAndReadGoAway(frame(HEADERS, END_HEADERS | END_STREAM, 2, REQUEST_BLOCK)));
+    }
+
+    @Test
+    void closesConnectionOnRapidReset() throws IOException {
+        // streams opened and cancelled right away, one over the limit
+        byte[][] frames = new byte[2 * (Http2Connection.MAX_CLIENT_RESETS + 1)][];
+        byte[] cancel = ByteBuffer.allocate(4).putInt(Http2Exception.CANCEL).array();
+        for (int i = 0; i <= Http2Connection.MAX_CLIENT_RESETS; i++) {
+            frames[2 * i] = frame(HEADERS, END_HEADERS | END_STREAM, 2 * i + 1, REQUEST_BLOCK);
+            frames[2 * i + 1] = frame(RST_STREAM, 0, 2 * i + 1, cancel);
+        }
+        assertEquals(Http2Exception.ENHANCE_YOUR_CALM, sendAndReadGoAway(concat(frames)));
+    }
+
+    @Test
+    void ignoresDataOnStreamItReset() throws IOException {
+        // the invalid Content-Length gets the stream reset, the DATA the client had in flight is dropped silently
+        byte[] data = frame(DATA, 0, 1, new byte[100]);
+        List<byte[]> received = sendAndReadUntil(concat(frame(HEADERS, END_HEADERS, 1, INVALID_LENGTH_BLOCK),
+                data, data, data, frame(PING, 0, 0, new byte[8])), PING);
+        int resets = 0;
+        for (byte[] frame : received) {
+            if (frame[3] == RST_STREAM) {
+                assertEquals(1, ByteBuffer.wrap(frame).getInt(5));
+                assertEquals(Http2Exception.PROTOCOL_ERROR, ByteBuffer.wrap(frame).getInt(9));
+                resets++;
+            }
+            assertNotEquals(GOAWAY, frame[3]);
+        }
+        assertEquals(1, resets);
+    }
+
+    /**
+     * Sends the preface, empty SETTINGS and frames on a new connection, then reads the server's frames until GOAWAY.
+     *
+     * @return the error code of the GOAWAY.
+     */
+    private static int sendAndReadGoAway(byte[] frames) throws IOException {
+        List<byte[]> received = sendAndReadUntil(frames, GOAWAY);
+        return ByteBuffer.wrap(received.get(received.size() - 1)).getInt(9 + 4);
+    }
+
+    /**
+     * Sends the preface, empty SETTINGS and frames on a new connection, then reads the server's frames until one of
+     * the given type.
+     *
+     * @return the frames read, header and payload, that one last.
+     */
+    private static List<byte[]> sendAndReadUntil(byte[] frames, int type) throws IOException {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            out.write(concat(PREFACE, frame(SETTINGS, 0, 0, new byte[0]), frames));
+            out.flush();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            List<byte[]> received = new ArrayList<>();
+            while (true) {
+                byte[] header = new byte[9];
+                try {
+                    in.readFully(header);
+                } catch (EOFException e) {
+                    throw new AssertionError("Connection closed without a frame of type " + type, e);
+                }
+                int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+                byte[] frame = ByteBuffer.allocate(9 + length).put(header).array();
+                in.readFully(frame, 9, length);
+                received.add(frame);
+                if (header[3] == type) {
+                    return received;
+                }
+            }
+        }
+    }
+
+    private static byte[] frame(int type, int flags, int streamId, byte[] payload) {
+        return ByteBuffer.allocate(9 + payload.length)
+                .put((byte) (payload.length >>> 16)).put((byte) (payload.length >>> 8)).put((byte) payload.length)
+                .put((byte) type).put((byte) flags).putInt(streamId).put(payload).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            joined.put(part);
+        }
+        return joined.array();
+    }
+}